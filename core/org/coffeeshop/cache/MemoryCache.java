@@ -0,0 +1,128 @@
+package org.coffeeshop.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MemoryCache keeps the objects in memory and is bounded by their total
+ * size, the least recently used objects are removed first when the limit is
+ * exceeded. The size of an object is given by {@link #getDataLength(Object)}.
+ *
+ * Unlike the other caches an object that is inserted with the key of a cached
+ * object replaces it, so that changed resources can be updated.
+ *
+ */
+public abstract class MemoryCache<K, V> extends AbstractCache<K, V> {
+
+	/**
+	 * the objects in the order of access, the least recently used first
+	 */
+	private LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(64, 0.75f, true);
+
+	private long limit, usage = 0;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param limit
+	 *            the maximum total size of the cached objects
+	 */
+	public MemoryCache(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Searches for the object by its key. If the object is found, it becomes
+	 * the most recently used one.
+	 *
+	 * @param key
+	 *            the key to search with
+	 * @return the object or <code>null</code> if no object is found
+	 */
+	public synchronized V query(K key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Inserts an object to the cache, replacing the object with the same key.
+	 * An object that is larger than the limit of the cache is not stored.
+	 *
+	 * @param key
+	 *            a key that is used to identify the object
+	 * @param object
+	 *            the object itself
+	 */
+	public synchronized void insert(K key, V object) {
+
+		V previous = entries.remove(key);
+
+		if (previous != null)
+			usage -= getDataLength(previous);
+
+		long length = getDataLength(object);
+
+		if (length <= limit) {
+			entries.put(key, object);
+			usage += length;
+
+			Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+			while (usage > limit && it.hasNext()) {
+				usage -= getDataLength(it.next().getValue());
+				it.remove();
+			}
+		}
+
+		fireCacheUpdate();
+	}
+
+	public synchronized boolean contains(K key) {
+		return entries.containsKey(key);
+	}
+
+	public synchronized V remove(K key) {
+
+		V object = entries.remove(key);
+
+		if (object == null)
+			return null;
+
+		usage -= getDataLength(object);
+
+		fireCacheUpdate();
+
+		return object;
+	}
+
+	public synchronized void flush() {
+
+		entries.clear();
+		usage = 0;
+
+		fireCacheUpdate();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the total size of the cached objects.
+	 *
+	 */
+	public synchronized long usage() {
+		return usage;
+	}
+
+	public long capacity() {
+		return limit;
+	}
+
+	/**
+	 * Returns the size of an object, it must not change while the object is
+	 * in the cache.
+	 *
+	 */
+	protected abstract long getDataLength(V object);
+
+}
@@ -0,0 +1,122 @@
+/* THIS FILE IS A MEMBER OF THE COFFEESHOP LIBRARY
+ * 
+ * License:
+ * 
+ * Coffeeshop is a conglomerate of handy general purpose Java classes.  
+ * 
+ * Copyright (C) 2006-2008 Luka Cehovin
+ * This library is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as 
+ *  published by the Free Software Foundation; either version 2.1 of 
+ *  the License, or (at your option) any later version.
+ *  
+ *  This library is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the 
+ *  GNU Lesser General Public License for more details. 
+ *  
+ *  http://www.opensource.org/licenses/lgpl-license.php
+ *  
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the 
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA 
+ * 
+ */
+
+package org.coffeeshop.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of equally sized byte arrays. Used to avoid allocating
+ * large transfer buffers for every copy operation. Buffers are created on
+ * demand, at most a given number of returned buffers is retained for reuse.
+ * 
+ * @author lukacu
+ * @since CoffeeShop 1.0
+ */
+public class BufferPool {
+
+	private ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	private AtomicInteger pooled = new AtomicInteger(0);
+
+	private int size;
+
+	private int capacity;
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param size
+	 *            the size of the buffers in bytes
+	 * @param capacity
+	 *            the maximum number of idle buffers that are retained
+	 */
+	public BufferPool(int size, int capacity) {
+
+		if (size < 1)
+			throw new IllegalArgumentException("Buffer size must be positive");
+
+		this.size = size;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns a buffer from the pool or a new buffer if the pool is empty.
+	 * 
+	 * @return a buffer of the size of the pool
+	 */
+	public byte[] acquire() {
+
+		byte[] buffer = buffers.poll();
+
+		if (buffer == null)
+			return new byte[size];
+
+		pooled.decrementAndGet();
+
+		return buffer;
+	}
+
+	/**
+	 * Returns the buffer to the pool. Buffers of different size and buffers
+	 * over the capacity of the pool are discarded.
+	 * 
+	 * @param buffer
+	 *            the buffer to return
+	 */
+	public void release(byte[] buffer) {
+
+		if (buffer == null || buffer.length != size)
+			return;
+
+		if (pooled.incrementAndGet() > capacity) {
+			pooled.decrementAndGet();
+			return;
+		}
+
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * Returns the number of idle buffers that are retained by the pool.
+	 * 
+	 * @return the number of buffers that can be acquired without allocating
+	 */
+	public int getAvailable() {
+		return pooled.get();
+	}
+
+	/**
+	 * Returns the size of the buffers in this pool.
+	 * 
+	 * @return the size of the buffers in bytes
+	 */
+	public int getBufferSize() {
+		return size;
+	}
+
+}
@@ -0,0 +1,117 @@
+/* THIS FILE IS A MEMBER OF THE COFFEESHOP LIBRARY
+ * 
+ * License:
+ * 
+ * Coffeeshop is a conglomerate of handy general purpose Java classes.  
+ * 
+ * Copyright (C) 2006-2008 Luka Cehovin
+ * This library is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as 
+ *  published by the Free Software Foundation; either version 2.1 of 
+ *  the License, or (at your option) any later version.
+ *  
+ *  This library is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the 
+ *  GNU Lesser General Public License for more details. 
+ *  
+ *  http://www.opensource.org/licenses/lgpl-license.php
+ *  
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the 
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA 
+ * 
+ */
+
+package org.coffeeshop.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reads at most a given number of bytes from the
+ * underlying stream and reports the end of stream afterwards. Closing the
+ * stream does not close the underlying stream.
+ * 
+ * @author lukacu
+ * @since CoffeeShop 1.0
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+	private long remaining;
+
+	/**
+	 * Creates a new limited stream.
+	 * 
+	 * @param in
+	 *            the underlying stream
+	 * @param limit
+	 *            the number of bytes that can be read
+	 */
+	public LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.remaining = limit;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (remaining <= 0)
+			return -1;
+
+		int b = in.read();
+
+		if (b >= 0)
+			remaining--;
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0)
+			return -1;
+
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+
+		if (n > 0)
+			remaining -= n;
+
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(Math.min(n, remaining));
+
+		if (skipped > 0)
+			remaining -= skipped;
+
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Returns the number of bytes that can still be read.
+	 * 
+	 * @return the number of remaining bytes
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+}
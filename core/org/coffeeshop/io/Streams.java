@@ -99,7 +99,7 @@ public class Streams {
 	 */
 	public static void copyStream(InputStream in, OutputStream out) throws IOException {
 		
-	    byte [] b = new byte[512];
+	    byte [] b = new byte[8192];
 	    int len = 0;
 	    while ( (len = in.read(b))!= -1 ) {
 	    	out.write(b,0,len);
@@ -1,5 +1,7 @@
 package org.coffeeshop.string;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -47,6 +49,55 @@ public class Cryptography {
 		return encoded;
 	}
 
+	/**
+	 * Returns the SHA-1 hash of the data in hex format.
+	 * 
+	 * @param data
+	 *            the data to hash
+	 * @return the hash, 40 hex digits
+	 */
+	public static final String sha1(byte[] data) {
+		MessageDigest md = sha1();
+
+		return hex(md.digest(data));
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the content of a stream in hex format. The
+	 * stream is read to its end but not closed.
+	 * 
+	 * @param in
+	 *            the stream to hash
+	 * @return the hash, 40 hex digits
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 */
+	public static final String sha1(InputStream in) throws IOException {
+		MessageDigest md = sha1();
+
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			md.update(buffer, 0, n);
+
+		return hex(md.digest());
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder encoded = new StringBuilder(b.length * 2);
+		for (int i = 0; i < b.length; i++)
+			encoded.append(Character.forDigit((b[i] >> 4) & 0xf, 16)).append(Character.forDigit(b[i] & 0xf, 16));
+		return encoded.toString();
+	}
+
 	/**
 	 * Return a random 32 char length String or a random number if the md5
 	 * cannot be generated (No such algo)
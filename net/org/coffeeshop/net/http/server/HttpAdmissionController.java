@@ -0,0 +1,244 @@
+package org.coffeeshop.net.http.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.coffeeshop.net.http.server.resource.Resource;
+
+/**
+ * Limits the number of requests that are served at the same time. The limit
+ * adapts to the observed latency (additive increase, multiplicative
+ * decrease): while the requests are served quickly the limit grows by one
+ * for every full limit of completed requests, when the latency rises above
+ * the target the limit is cut by a fixed factor. The requests above the
+ * limit are answered immediately with <code>503 Service Unavailable</code>
+ * instead of waiting in a queue.
+ *
+ * Without a configured target every request is compared to the lowest
+ * latency of its resource seen recently (the latency of the resource without
+ * load), so that slow resources do not look like congestion by themselves.
+ * When the recent requests take on average more than twice as long as
+ * without load, the requests are queueing for the processors or other shared
+ * resources and the limit is cut.
+ *
+ * The priority of the resource decides which requests are shed first: the
+ * requests for {@link Resource#PRIORITY_LOW} resources are refused when the
+ * server is three quarters full, the {@link Resource#PRIORITY_CRITICAL}
+ * resources (health checks, metrics) are never refused and do not count
+ * against the limit.
+ *
+ */
+public class HttpAdmissionController {
+
+	/**
+	 * the factor the limit is cut by on congestion
+	 */
+	private static final double BACKOFF = 0.9;
+
+	/**
+	 * the latency above this multiple of the latency without load indicates
+	 * congestion
+	 */
+	private static final double TOLERANCE = 2.0;
+
+	/**
+	 * the weight of a new sample in the average (about the last ten requests)
+	 */
+	private static final double WEIGHT = 0.1;
+
+	/**
+	 * the number of requests of a resource after which its latency without
+	 * load is measured again, so that it follows the changes of the resource
+	 */
+	private static final int BASELINE_WINDOW = 1000;
+
+	/**
+	 * The lowest latency of a resource in the previous and in the current
+	 * window.
+	 *
+	 */
+	private static class Baseline {
+
+		private long previous = Long.MAX_VALUE, current = Long.MAX_VALUE;
+
+		private int count = 0;
+
+		private synchronized long update(long nanos) {
+			if (nanos < current)
+				current = nanos;
+			if (++count >= BASELINE_WINDOW) {
+				previous = current;
+				current = Long.MAX_VALUE;
+				count = 0;
+			}
+			return Math.min(previous, current);
+		}
+
+	}
+
+	private final int minimumLimit, maximumLimit;
+
+	private final long targetLatency;
+
+	private final int retryAfter;
+
+	private AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * the current limit, the fractional part accumulates the increments
+	 */
+	private volatile double limit;
+
+	private ConcurrentHashMap<Resource, Baseline> baselines = new ConcurrentHashMap<Resource, Baseline>();
+
+	/**
+	 * the average latency relative to the target or the latency without load
+	 */
+	private double load = 1;
+
+	/**
+	 * the number of requests to complete before the limit can be cut again,
+	 * the requests admitted under the old limit do not count twice
+	 */
+	private int cooldown = 0;
+
+	/**
+	 * Creates a new admission controller.
+	 *
+	 * @param initialLimit
+	 *            the limit to start with
+	 * @param minimumLimit
+	 *            the limit is never cut below this
+	 * @param maximumLimit
+	 *            the limit never grows above this
+	 * @param targetLatency
+	 *            the latency in milliseconds above which the server is
+	 *            considered congested, 0 to detect the congestion from the
+	 *            latency without load
+	 * @param retryAfter
+	 *            the number of seconds the refused clients are asked to wait
+	 */
+	public HttpAdmissionController(int initialLimit, int minimumLimit, int maximumLimit, long targetLatency,
+			int retryAfter) {
+
+		if (minimumLimit < 1 || maximumLimit < minimumLimit)
+			throw new IllegalArgumentException("Illegal limits");
+
+		this.minimumLimit = minimumLimit;
+		this.maximumLimit = maximumLimit;
+		this.limit = Math.max(minimumLimit, Math.min(maximumLimit, initialLimit));
+		this.targetLatency = targetLatency * 1000000L;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Asks for the admission of a request.
+	 *
+	 * @param priority
+	 *            the priority of the resource that serves the request
+	 * @return <code>true</code> if the request may be served,
+	 *         <code>false</code> if it should be refused; an admitted request
+	 *         must be followed by a call to {@link #release} unless it is
+	 *         critical
+	 */
+	public boolean acquire(int priority) {
+
+		if (priority >= Resource.PRIORITY_CRITICAL)
+			return true;
+
+		int allowed = (int) getLimit();
+
+		if (priority < Resource.PRIORITY_NORMAL)
+			allowed = Math.max(1, allowed * 3 / 4);
+
+		while (true) {
+			int current = inFlight.get();
+			if (current >= allowed)
+				return false;
+			if (inFlight.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Releases an admitted request without reporting its duration. Used for
+	 * requests that are suspended, a stream that stays open for hours does
+	 * not tell anything about the load of the server.
+	 *
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Reports the completion of an admitted request.
+	 *
+	 * @param resource
+	 *            the resource that served the request
+	 * @param nanos
+	 *            the time it took to serve the request
+	 */
+	public void release(Resource resource, long nanos) {
+
+		int current = inFlight.getAndDecrement();
+
+		double ratio;
+
+		if (targetLatency > 0) {
+			ratio = (double) nanos / targetLatency * TOLERANCE;
+		} else {
+			Baseline baseline = baselines.get(resource);
+			if (baseline == null) {
+				baseline = new Baseline();
+				Baseline previous = baselines.putIfAbsent(resource, baseline);
+				if (previous != null)
+					baseline = previous;
+			}
+			ratio = (double) nanos / Math.max(1, baseline.update(nanos));
+		}
+
+		synchronized (this) {
+
+			load += (ratio - load) * WEIGHT;
+
+			if (cooldown > 0)
+				cooldown--;
+
+			if (load > TOLERANCE) {
+				if (cooldown == 0) {
+					limit = Math.max(minimumLimit, limit * BACKOFF);
+					cooldown = (int) limit;
+				}
+			} else if (current >= limit / 2) {
+				// grow only when the limit is actually used
+				limit = Math.min(maximumLimit, limit + 1 / limit);
+			}
+
+		}
+	}
+
+	/**
+	 * Returns the current limit of concurrent requests.
+	 *
+	 */
+	public double getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the number of admitted requests that are being served.
+	 *
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the number of seconds the refused clients are asked to wait.
+	 *
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a response body with the <code>chunked</code> transfer coding, so
+ * that a body of unknown length can be sent over a persistent connection.
+ * Small writes are collected in a buffer and sent as a single chunk.
+ *
+ */
+class HttpChunkedOutputStream extends OutputStream {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private OutputStream out;
+
+	private byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int count = 0;
+
+	private boolean finished = false;
+
+	public HttpChunkedOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (finished)
+			throw new IOException("Response already finished");
+		if (count == buffer.length)
+			flushBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (finished)
+			throw new IOException("Response already finished");
+
+		if (len <= buffer.length - count) {
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+			return;
+		}
+
+		flushBuffer();
+
+		if (len < buffer.length) {
+			System.arraycopy(b, off, buffer, 0, len);
+			count = len;
+			return;
+		}
+
+		// large writes are sent as a chunk of their own
+		writeChunk(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Sends the buffered bytes and the last chunk that terminates the body.
+	 * The underlying stream is not closed.
+	 *
+	 */
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		flushBuffer();
+		finished = true;
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count == 0)
+			return;
+		writeChunk(buffer, 0, count);
+		count = 0;
+	}
+
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+
+		// chunk size in hexadecimal followed by a line break
+		byte[] size = new byte[10];
+		int i = size.length;
+		size[--i] = '\n';
+		size[--i] = '\r';
+		int n = len;
+		do {
+			size[--i] = HEX[n & 0xf];
+			n >>>= 4;
+		} while (n != 0);
+
+		out.write(size, i, size.length - i);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.coffeeshop.net.http.server;
+
+/**
+ * The completion of an asynchronous response. A resource that serves a
+ * request asynchronously calls exactly one of the methods when the response
+ * is written, from any thread. Until then the connection is not served by
+ * any thread. Only the first call counts, the following calls are ignored.
+ *
+ * @see org.coffeeshop.net.http.server.resource.AsyncResource
+ */
+public interface HttpCompletion {
+
+	/**
+	 * Completes the response. If no response was sent, the client gets the
+	 * same answer as from a resource that returned without sending one.
+	 */
+	public void complete();
+
+	/**
+	 * Completes the response with an error. The error is reported and the
+	 * client gets a <code>500 Internal Server Error</code> if nothing was
+	 * sent yet, otherwise the connection is closed.
+	 *
+	 * @param error
+	 *            the cause of the failure
+	 */
+	public void fail(Throwable error);
+
+}
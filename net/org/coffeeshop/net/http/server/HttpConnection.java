@@ -0,0 +1,638 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.coffeeshop.application.Application;
+import org.coffeeshop.io.BufferPool;
+import org.coffeeshop.net.http.server.resource.AsyncResource;
+import org.coffeeshop.net.http.server.resource.Resource;
+
+/**
+ * This class represents a single client connection of the server. It
+ * hides the way the bytes are moved to and from the client (a blocking
+ * socket or a selector driven channel) and contains the request dispatch
+ * logic that is shared by all the connection engines.
+ *
+ */
+abstract class HttpConnection {
+
+	static final byte[] REJECT_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+			+ "content-length: 0\r\nretry-after: 1\r\nconnection: close\r\n\r\n").getBytes();
+
+	/**
+	 * transfer buffers for connections that cannot send files directly
+	 */
+	private static final BufferPool buffers = new BufferPool(65536, 32);
+
+	private HttpServer server;
+
+	private HttpRequest request = null;
+
+	private HttpResponse response = null;
+
+	private HttpSession session = null;
+
+	private int requestCounter = 0;
+
+	private HttpInputBuffer inputBuffer = null;
+
+	private HttpRequestHead head = new HttpRequestHead();
+
+	/**
+	 * the number of bytes sent to the client
+	 */
+	private long sent = 0;
+
+	/**
+	 * the numbers of bytes that were already added to the metrics of the
+	 * server
+	 */
+	private long countedReceived = 0, countedSent = 0;
+
+	/**
+	 * Counts the bytes that are written to the client.
+	 *
+	 */
+	private class CountingOutputStream extends OutputStream {
+
+		private OutputStream out;
+
+		public CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			sent++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			sent += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+	}
+
+	private CountingOutputStream output = null;
+
+	/**
+	 * The results of {@link #serve()}.
+	 */
+	static final int CLOSE = 0, KEEP_ALIVE = 1, SUSPENDED = 2;
+
+	/**
+	 * the resource of the current request and the time it was started
+	 */
+	private Resource resource = null;
+
+	private long begin = 0;
+
+	/**
+	 * the current request was admitted by the admission controller
+	 */
+	private boolean admitted = false;
+
+	/**
+	 * the error that completed the suspended request
+	 */
+	private volatile Throwable failure = null;
+
+	/**
+	 * The completion of the current request. The resource may complete it
+	 * while it is still running (then the request is finished by the thread
+	 * that serves the connection) or after the thread was released (then the
+	 * connection is continued by a new task).
+	 *
+	 */
+	private class Completion implements HttpCompletion {
+
+		private static final int RUNNING = 0, SUSPENDED = 1, COMPLETED = 2;
+
+		private AtomicInteger state = new AtomicInteger(RUNNING);
+
+		private AtomicBoolean done = new AtomicBoolean(false);
+
+		private volatile Throwable failure = null;
+
+		public void complete() {
+			done(null);
+		}
+
+		public void fail(Throwable error) {
+			done(error != null ? error : new NullPointerException("No error given"));
+		}
+
+		private void done(Throwable error) {
+
+			if (!done.compareAndSet(false, true))
+				return;
+
+			this.failure = error;
+
+			if (state.compareAndSet(RUNNING, COMPLETED))
+				return;
+
+			if (!state.compareAndSet(SUSPENDED, COMPLETED))
+				return;
+
+			HttpConnection.this.failure = error;
+
+			Runnable task = continuation();
+
+			// finish the response anyway if the executor is saturated, the
+			// calling thread only writes this response and closes the
+			// connection, it does not serve the following requests
+			HttpExecutor executor = server.getExecutor();
+
+			if (executor == null || !executor.execute(task)) {
+				response.disableKeepAlive();
+				task.run();
+			}
+		}
+
+		/**
+		 * Releases the thread that runs the resource.
+		 *
+		 * @return <code>false</code> if the request was already completed
+		 */
+		private boolean suspend() {
+			return state.compareAndSet(RUNNING, SUSPENDED);
+		}
+
+	}
+
+	/**
+	 * the largest unread request body that is skipped to keep the
+	 * connection open, connections with a longer unread body are closed
+	 */
+	private static final long MAX_DISCARD = 65536;
+
+	/**
+	 * The default constructor.
+	 *
+	 * @param server
+	 *            a reference to the server
+	 */
+	protected HttpConnection(HttpServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * this method returns the HttpSession object
+	 *
+	 */
+	public HttpSession getHttpSession() {
+		return session;
+	}
+
+	/**
+	 * this method returns the http server object. Required for accessing
+	 * settings and other options
+	 *
+	 */
+	public HttpServerInformation getServer() {
+		return server;
+	}
+
+	/**
+	 * Returns the pool of the memory buffers for the uploads or
+	 * <code>null</code> if the uploads are not kept in memory.
+	 *
+	 */
+	BufferPool getUploadBuffers() {
+		return server.getUploadBuffers();
+	}
+
+	/**
+	 * Returns the current httprequest. Warning: you can only use this after the
+	 * request has been succesfully parsed
+	 *
+	 */
+	public HttpRequest getHttpRequest() {
+		return request;
+	}
+
+	/**
+	 * Returns the current response. Warning: you can only use this after the
+	 * request has been succesfully parsed
+	 *
+	 */
+	public HttpResponse getHttpResponse() {
+		return response;
+	}
+
+	/**
+	 * Returns the number of requests that were served on this connection.
+	 *
+	 */
+	public int getRequestCount() {
+		return requestCounter;
+	}
+
+	/**
+	 * Returns the address of the client.
+	 *
+	 */
+	public abstract InetAddress getRemoteAddress();
+
+	/**
+	 * Returns the stream of the bytes sent by the client.
+	 *
+	 */
+	public abstract InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns the stream that delivers bytes to the client.
+	 *
+	 */
+	public abstract OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Returns the buffer through which the requests are read. The buffer is
+	 * created on the first request and reused for the following ones.
+	 *
+	 */
+	HttpInputBuffer getInputBuffer() throws IOException {
+		if (inputBuffer == null)
+			inputBuffer = new HttpInputBuffer(getInputStream());
+		return inputBuffer;
+	}
+
+	/**
+	 * Returns the head of the current request.
+	 *
+	 */
+	HttpRequestHead getRequestHead() {
+		return head;
+	}
+
+	/**
+	 * Closes the connection.
+	 *
+	 */
+	public abstract void close();
+
+	/**
+	 * Sends a part of a file to the client. Any bytes written to the output
+	 * stream of the connection are sent before the file. Connections that
+	 * are backed by a channel override this method to move the bytes from
+	 * the file to the socket without copying them through the heap, this
+	 * implementation copies them through large pooled buffers.
+	 *
+	 * @param source
+	 *            the file channel to read
+	 * @param position
+	 *            the position of the first byte in the file
+	 * @param count
+	 *            the number of bytes to send
+	 * @return the number of bytes sent
+	 * @throws IOException
+	 *             on a communication error or if the file is shorter than
+	 *             expected
+	 */
+	public long transfer(FileChannel source, long position, long count)
+			throws IOException {
+
+		OutputStream output = getOutputStream();
+
+		byte[] buffer = buffers.acquire();
+
+		try {
+			ByteBuffer b = ByteBuffer.wrap(buffer);
+			long total = 0;
+
+			while (count > 0) {
+				b.clear();
+				b.limit((int) Math.min(buffer.length, count));
+
+				int n = source.read(b, position);
+
+				if (n < 0)
+					throw new EOFException("Unexpected end of file");
+
+				output.write(buffer, 0, n);
+
+				position += n;
+				count -= n;
+				total += n;
+			}
+
+			return total;
+		} finally {
+			buffers.release(buffer);
+		}
+	}
+
+	/**
+	 * Sends the head of a response followed by the first part of its body.
+	 * This implementation writes both to the output stream of the
+	 * connection, connections that are backed by a channel override it to
+	 * send both buffers with a single gathering write.
+	 *
+	 * @param head
+	 *            the buffer with the head
+	 * @param headLength
+	 *            the length of the head
+	 * @param body
+	 *            the buffer with the body or <code>null</code>
+	 * @param offset
+	 *            the offset of the body in its buffer
+	 * @param length
+	 *            the length of the body
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public void gather(byte[] head, int headLength, byte[] body, int offset, int length)
+			throws IOException {
+
+		OutputStream output = getOutputStream();
+
+		output.write(head, 0, headLength);
+
+		if (length > 0)
+			output.write(body, offset, length);
+	}
+
+	/**
+	 * Sends the head of a response with {@link #gather} and counts the
+	 * bytes.
+	 *
+	 */
+	void send(byte[] head, int headLength, byte[] body, int offset, int length) throws IOException {
+		gather(head, headLength, body, offset, length);
+		sent += headLength + length;
+	}
+
+	/**
+	 * Sends a part of a file to the client with {@link #transfer} and counts
+	 * the bytes.
+	 *
+	 */
+	long send(FileChannel source, long position, long count) throws IOException {
+		long n = transfer(source, position, count);
+		sent += n;
+		return n;
+	}
+
+	/**
+	 * Answers the client with a <code>503 Service Unavailable</code> without
+	 * reading the request and closes the connection. Used when the server is
+	 * too busy to serve the client.
+	 *
+	 */
+	public void reject() {
+		try {
+			OutputStream output = getOutputStream();
+			output.write(REJECT_RESPONSE);
+			output.flush();
+		} catch (IOException e) {
+		}
+		close();
+	}
+
+	/**
+	 * Reads, dispatches and answers a single request on this connection.
+	 *
+	 * @return {@link #KEEP_ALIVE} if the client wishes to keep the connection
+	 *         open for another request, {@link #CLOSE} if the connection
+	 *         should be closed or {@link #SUSPENDED} if the request is served
+	 *         by an {@link AsyncResource}; the connection is then continued by
+	 *         the task of {@link #continuation()} when the response is complete
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public int serve() throws IOException {
+
+		requestCounter++;
+
+		if (output == null)
+			output = new CountingOutputStream(getOutputStream());
+
+		HttpServerMetrics metrics = server.getMetrics();
+
+		// create the request and response, a keep-alive connection reuses
+		// the objects of its previous request
+		if (request == null)
+			request = new HttpRequest(this);
+		else
+			request.reset();
+
+		// init the request object
+		int result = request.init(requestCounter > 0);
+
+		if (response == null)
+			response = new HttpResponse(this, request, output);
+		else
+			response.reset();
+
+		if (result != HttpResponse.HTTP_OK) {
+			if (result != 0) {
+				// the request may not have been read completely
+				response.disableKeepAlive();
+				HttpResponse.sendErrorMessage(response, result);
+				response.finish();
+				metrics.requestRefused(result, received(), sent());
+			}
+			return CLOSE;
+		}
+
+		begin = System.nanoTime();
+
+		metrics.requestStarted();
+
+		//session = server.getSessionManager().loadSessionVars(request, response);
+
+		String location = request.getLocation();
+
+		if (location.length() > 0 && location.charAt(0) == '/')
+			location = location.substring(1);
+
+		Resource r = server.getRoot().route(location, request.getPathParameters());
+
+		resource = r;
+		admitted = false;
+
+		// unknown resources are cheap to answer, the critical ones are always served
+		HttpAdmissionController admission = server.getAdmissionController();
+
+		if (admission != null && r != null && r.getPriority() < Resource.PRIORITY_CRITICAL) {
+
+			if (!admission.acquire(r.getPriority())) {
+				// shed the request before any work is done for it
+				response.setHeader("retry-after:", String.valueOf(admission.getRetryAfter()));
+				HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_SERVICE_UNAVAILABLE);
+				response.finish();
+				metrics.requestFinished(r.getFullName(), HttpResponse.HTTP_SERVICE_UNAVAILABLE,
+						System.nanoTime() - begin, received(), sent());
+				return response.isKeepAlive() && request.discardBody(MAX_DISCARD) ? KEEP_ALIVE : CLOSE;
+			}
+
+			admitted = true;
+		}
+
+		Throwable failure = null;
+
+		if (r instanceof AsyncResource) {
+
+			Completion completion = new Completion();
+
+			try {
+				((AsyncResource) r).execute(request, response, completion);
+			} catch (Exception e) {
+				completion.fail(e);
+			}
+
+			boolean holds = admitted;
+
+			// a suspended request does not count against the limit and its
+			// duration is not sampled
+			admitted = false;
+
+			// release the thread until the resource completes the response
+			if (completion.suspend()) {
+				if (holds)
+					admission.release();
+				return SUSPENDED;
+			}
+
+			admitted = holds;
+
+			failure = completion.failure;
+
+		} else if (r != null) {
+
+			try {
+				r.execute(request, response);
+			} catch (Exception e) {
+				failure = e;
+			}
+
+		}
+
+		return complete(failure);
+	}
+
+	/**
+	 * Finishes a request that was suspended by an {@link AsyncResource}
+	 * after the resource completed the response. Called by the task of
+	 * {@link #continuation()}.
+	 *
+	 * @return {@link #KEEP_ALIVE} or {@link #CLOSE}, as {@link #serve()}
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public int resume() throws IOException {
+		return complete(failure);
+	}
+
+	/**
+	 * Returns the task that continues to serve this connection once a
+	 * suspended request is completed. The task calls {@link #resume()} and
+	 * continues as after {@link #serve()}.
+	 *
+	 */
+	protected abstract Runnable continuation();
+
+	/**
+	 * Sends the response if the resource did not, finishes it and decides
+	 * whether the connection stays open.
+	 *
+	 * @param failure
+	 *            the error of the resource or <code>null</code>
+	 */
+	private int complete(Throwable failure) throws IOException {
+
+		Resource r = resource;
+
+		try {
+
+			try {
+
+				if (failure != null) {
+
+					// reported below
+
+				} else if (r == null) {
+
+					HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_NOT_FOUND);
+
+				} else if (!response.isHeadersSent()) {
+
+					if (response.getResultCode() == HttpResponse.HTTP_OK) {
+						HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_INTERNAL_ERROR);
+					} else {
+						HttpResponse.sendErrorMessage(response, response.getResultCode());
+					}
+
+				}
+
+			} catch (Exception e) {
+				failure = e;
+			}
+
+			if (failure != null) {
+
+				Application.getApplicationLogger().report(failure);
+
+				// the response may be broken if a part of it was already sent
+				if (response.isHeadersSent())
+					return CLOSE;
+
+				HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_INTERNAL_ERROR);
+
+			}
+
+			response.finish();
+
+		} finally {
+			request.release();
+			if (admitted)
+				server.getAdmissionController().release(r, System.nanoTime() - begin);
+			server.getMetrics().requestFinished(r == null ? HttpServerMetrics.NO_ROUTE : r.getFullName(),
+					response.getResultCode(), System.nanoTime() - begin, received(), sent());
+		}
+
+		if (!response.isKeepAlive())
+			return CLOSE;
+
+		return request.discardBody(MAX_DISCARD) ? KEEP_ALIVE : CLOSE;
+	}
+
+	/**
+	 * Returns the number of bytes received since the last call.
+	 *
+	 */
+	private long received() {
+		if (inputBuffer == null)
+			return 0;
+		long n = inputBuffer.getReceived() - countedReceived;
+		countedReceived += n;
+		return n;
+	}
+
+	/**
+	 * Returns the number of bytes sent since the last call.
+	 *
+	 */
+	private long sent() {
+		long n = sent - countedSent;
+		countedSent += n;
+		return n;
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.coffeeshop.net.http.server;
+
+/**
+ * An executor runs the tasks that serve the client connections of the
+ * server. The server asks the executor to run a task for every accepted
+ * connection (or every complete request when the selector engine is used)
+ * and answers the client with a <code>503 Service Unavailable</code> if the
+ * executor refuses the task.
+ * 
+ * @see HttpPoolExecutor
+ * @see HttpVirtualThreadExecutor
+ */
+public interface HttpExecutor {
+
+	/**
+	 * Runs the given task at some point in the future.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @return <code>true</code> if the task was accepted, <code>false</code>
+	 *         if the executor is saturated and the task was rejected
+	 */
+	public boolean execute(Runnable task);
+
+	/**
+	 * Stops the executor and interrupts the running tasks.
+	 */
+	public void shutdown();
+
+}
@@ -1,7 +1,22 @@
 package org.coffeeshop.net.http.server;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
+import org.coffeeshop.application.Application;
+import org.coffeeshop.io.BufferPool;
+
+/**
+ * A file that was uploaded with a <code>multipart/form-data</code> request.
+ * Small files are kept in memory, the buffers are taken from a shared pool;
+ * larger files are spooled to a file in the temporary directory of the
+ * application. The memory and the file belong to the request, they are
+ * released when the response is finished: the temporary file is deleted once
+ * the response is complete, also when the request is served asynchronously.
+ * A handler that wants to keep the file has to move it with
+ * {@link #moveTo(File)} (or copy it) before it completes the response.
+ */
 public class HttpFileUpload
 {
 ////////////////////////////////////////////////////////////////////////////////
@@ -11,7 +26,9 @@ public class HttpFileUpload
     /**
      * the different results (Those come directly from PHP)<BR/>
      * RESULT_OK = Upload succeeded<BR/>
-     * RESULT_SIZE = File is larger the size specified in HttpServerSettings<BR/>
+     * RESULT_SIZE = File is larger the size specified in HttpServerSettings
+     * (no longer reported, a request with a body larger than the upload limit
+     * is refused with <code>413 Request Entity Too Large</code>)<BR/>
      * RESULT_FORM_PARTIAL = File uploaded was only partial uploaded<BR/>
      * RESULT_NO_FILE = No file was uploaded<BR/>
      *
@@ -28,22 +45,56 @@ public class HttpFileUpload
     /** the original filename */
     String originalFilename;
 
-    /** the temporary file (is null on error!) */
+    /** the temporary file (is null on error or if kept in memory!) */
     File tempFile;
 
+    /** the content of an upload kept in memory (or null) */
+    byte[] data;
+
     /** the resultcode of the fileupload */
     int result;
 
+    /** the number of bytes stored in the temporary file or in memory */
+    long size;
+
+    /** the content type sent by the client (may be null) */
+    String contentType;
+
+    /** the pool the memory of the upload is returned to (or null) */
+    BufferPool pool;
+
+    /** true if the file was moved out of the request and is not deleted */
+    boolean kept;
+
 ////////////////////////////////////////////////////////////////////////////////
 // construction / initialisation
 ////////////////////////////////////////////////////////////////////////////////
 
     /** the constructor */
     public HttpFileUpload(String originalFilename, File tempFile, int result )
+    {
+        this(originalFilename, tempFile, result,
+                tempFile == null ? 0 : tempFile.length(), null);
+    }
+
+    /** the constructor with the size and the content type of the upload */
+    public HttpFileUpload(String originalFilename, File tempFile, int result,
+            long size, String contentType )
     {
         this.originalFilename   = originalFilename;
         this.tempFile           = tempFile;
         this.result             = result;
+        this.size               = size;
+        this.contentType        = contentType;
+    }
+
+    /** the constructor for an upload kept in memory */
+    HttpFileUpload(String originalFilename, byte[] data, BufferPool pool,
+            int result, long size, String contentType )
+    {
+        this(originalFilename, (File) null, result, size, contentType);
+        this.data               = data;
+        this.pool               = pool;
     }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -62,9 +113,154 @@ public class HttpFileUpload
         return this.result;
     }
 
-    /** this method returns the temp File object (on success) */
-    public File getTempFile()
+    /**
+     * this method returns the temp File object (on success). An upload kept
+     * in memory is written to a temporary file first. The file is deleted
+     * when the response is complete, use moveTo() to keep it.
+     */
+    public synchronized File getTempFile()
     {
+        if (this.tempFile == null && this.data != null)
+        {
+            try
+            {
+                File file = createTempFile();
+                OutputStream out = new FileOutputStream(file);
+                try
+                {
+                    out.write(this.data, 0, (int) this.size);
+                }
+                finally
+                {
+                    out.close();
+                }
+                this.tempFile = file;
+            }
+            catch (IOException e)
+            {
+                Application.getApplicationLogger().report(e);
+            }
+        }
         return this.tempFile;
     }
-}
\ No newline at end of file
+
+    /**
+     * this method returns the content of the upload as a stream, without
+     * writing an upload kept in memory to a file
+     */
+    public synchronized InputStream getInputStream() throws IOException
+    {
+        if (this.data != null)
+            return new ByteArrayInputStream(this.data, 0, (int) this.size);
+        if (this.tempFile != null)
+            return new FileInputStream(this.tempFile);
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * this method moves the upload to the given file, which replaces an
+     * existing file and is not deleted when the response is complete. An
+     * upload kept in memory is written to the file and its memory is
+     * released. Afterwards getTempFile() and getInputStream() refer to the
+     * new file.
+     *
+     * @param target the file the upload is moved to
+     * @throws IOException if the file can not be written
+     */
+    public synchronized void moveTo(File target) throws IOException
+    {
+        if (this.data != null)
+        {
+            OutputStream out = new FileOutputStream(target);
+            try
+            {
+                out.write(this.data, 0, (int) this.size);
+            }
+            finally
+            {
+                out.close();
+            }
+            this.pool.release(this.data);
+            this.data = null;
+        }
+        else if (this.tempFile != null)
+        {
+            // copies the file if the target is on another file system
+            Files.move(this.tempFile.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        else
+        {
+            throw new IOException("No file was uploaded");
+        }
+        this.tempFile = target;
+        this.kept = true;
+    }
+
+    /** this method returns true if the upload is kept in memory */
+    public synchronized boolean isInMemory()
+    {
+        return this.data != null;
+    }
+
+    /** this method returns the number of stored bytes */
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    /** this method returns the content type of the upload (or null) */
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+////////////////////////////////////////////////////////////////////////////////
+// spooling
+////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * this method releases the memory and deletes the temporary file of the
+     * upload (unless it was moved), called when the request is finished
+     */
+    synchronized void release()
+    {
+        if (this.data != null)
+        {
+            this.pool.release(this.data);
+            this.data = null;
+        }
+        if (this.tempFile != null)
+        {
+            if (!this.kept)
+                this.tempFile.delete();
+            this.tempFile = null;
+        }
+    }
+
+    /**
+     * this method creates a new temporary file in the temporary directory of
+     * the application (or in the temporary directory of the system if there is
+     * no application)
+     */
+    static File createTempFile() throws IOException
+    {
+        Application application;
+        try
+        {
+            application = Application.getApplication();
+        }
+        catch (RuntimeException e)
+        {
+            return File.createTempFile("httpd", ".file");
+        }
+        File file;
+        synchronized (application)
+        {
+            file = application.getTempDirectory().tempFileName("upload", "file");
+        }
+        if (!file.createNewFile())
+            throw new IOException("Unable to create temporary file " + file);
+        return file;
+    }
+}
@@ -0,0 +1,177 @@
+package org.coffeeshop.net.http.server;
+
+import java.util.HashMap;
+
+import org.coffeeshop.io.BufferPool;
+
+/**
+ * Assembles the head of a response in a single pooled byte buffer, so that
+ * it can be sent with one write instead of one write per string. The status
+ * lines of the known result codes and the names of the common headers are
+ * encoded once for all the responses. The space that remains in the buffer
+ * after the head is used to collect the beginning of the body, a small
+ * response is then sent with one write as a whole.
+ *
+ */
+class HttpHeadEncoder {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final BufferPool buffers = new BufferPool(BUFFER_SIZE, 64);
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final HashMap<String, byte[]> statusLines = new HashMap<String, byte[]>();
+
+	private static final HashMap<String, byte[]> headerNames = new HashMap<String, byte[]>();
+
+	static {
+
+		int[] codes = { HttpResponse.HTTP_OK, HttpResponse.HTTP_PARTIAL_CONTENT,
+				HttpResponse.HTTP_MOVED_PERMANENTLY, HttpResponse.HTTP_NOT_MODIFIED,
+				HttpResponse.HTTP_BAD_REQUEST, HttpResponse.HTTP_NOT_FOUND, HttpResponse.HTTP_BAD_METHOD,
+				HttpResponse.HTTP_LENGTH_REQUIRED, HttpResponse.HTTP_ENTITY_TOO_LARGE,
+				HttpResponse.HTTP_RANGE_NOT_SATISFIABLE, HttpResponse.HTTP_INTERNAL_ERROR,
+				HttpResponse.HTTP_SERVICE_UNAVAILABLE };
+
+		for (int code : codes) {
+			String line = "HTTP/1.1 " + code + " " + HttpResponse.getHttpResultText(code);
+			statusLines.put(line, bytes(line + "\r\n"));
+		}
+
+		String[] names = { "date:", "server:", "connection:", "keep-alive:", "content-type:",
+				"content-length:", "content-encoding:", "content-range:", "transfer-encoding:",
+				"cache-control:", "pragma:", "expires:", "last-modified:", "etag:", "vary:",
+				"accept-ranges:", "location:", "retry-after:", "set-cookie: " };
+
+		for (String name : names)
+			headerNames.put(name, bytes(name));
+	}
+
+	private byte[] buffer;
+
+	private int length = 0;
+
+	/**
+	 * Returns the pool of the buffers, shared by all the encoders.
+	 *
+	 */
+	static BufferPool getBuffers() {
+		return buffers;
+	}
+
+	public HttpHeadEncoder() {
+		buffer = buffers.acquire();
+	}
+
+	/**
+	 * Appends the status line and its line break.
+	 */
+	public void status(String line) {
+		byte[] cached = statusLines.get(line);
+		if (cached != null) {
+			append(cached, 0, cached.length);
+		} else {
+			append(line);
+			append(CRLF, 0, CRLF.length);
+		}
+	}
+
+	/**
+	 * Appends a header and its line break.
+	 *
+	 * @param name
+	 *            the name of the header including the colon
+	 * @param value
+	 *            the value of the header
+	 */
+	public void header(String name, String value) {
+		name(name);
+		append(value);
+		append(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Appends the name of a header.
+	 */
+	public void name(String name) {
+		byte[] cached = headerNames.get(name);
+		if (cached != null)
+			append(cached, 0, cached.length);
+		else
+			append(name);
+	}
+
+	/**
+	 * Appends the line break that ends a header or the head.
+	 */
+	public void end() {
+		append(CRLF, 0, CRLF.length);
+	}
+
+	/**
+	 * Appends the characters of a string as single bytes (the head of a
+	 * response is ISO-8859-1).
+	 */
+	public void append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+			buffer[length++] = (byte) s.charAt(i);
+	}
+
+	public void append(char c) {
+		ensure(1);
+		buffer[length++] = (byte) c;
+	}
+
+	public void append(byte[] b, int off, int len) {
+		ensure(len);
+		System.arraycopy(b, off, buffer, length, len);
+		length += len;
+	}
+
+	/**
+	 * Returns the number of bytes that can be appended without growing the
+	 * buffer.
+	 */
+	public int remaining() {
+		return buffer.length - length;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the buffer to the pool, the encoder must not be used
+	 * afterwards.
+	 */
+	public void release() {
+		buffers.release(buffer);
+		buffer = null;
+	}
+
+	private void ensure(int n) {
+		if (length + n <= buffer.length)
+			return;
+		// a head larger than the pooled buffers, the larger buffer is not
+		// retained by the pool
+		byte[] larger = new byte[Math.max(buffer.length * 2, length + n)];
+		System.arraycopy(buffer, 0, larger, 0, length);
+		buffers.release(buffer);
+		buffer = larger;
+	}
+
+	private static byte[] bytes(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+
+}
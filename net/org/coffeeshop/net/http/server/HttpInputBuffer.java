@@ -0,0 +1,228 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The input buffer of a connection. The buffer is kept for the lifetime of
+ * the connection: request heads are read into it and parsed in place, the
+ * request body is read through it and the bytes that were received after the
+ * current request (for instance a pipelined request) stay in it for the next
+ * request.
+ *
+ * While a request is processed, the bytes of its head are never overwritten,
+ * the body is read into the space after the head.
+ *
+ */
+class HttpInputBuffer extends InputStream {
+
+	/**
+	 * the result of {@link #readHead()} if the head does not fit the buffer
+	 */
+	static final int HEAD_TOO_LARGE = -2;
+
+	private static final int INITIAL_SIZE = 8192;
+
+	private static final int MAX_HEAD_SIZE = 65536;
+
+	private InputStream input;
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+
+	/**
+	 * the unread bytes are between position (inclusive) and limit (exclusive)
+	 */
+	private int position = 0, limit = 0;
+
+	/**
+	 * the bytes before floor belong to the head of the current request
+	 */
+	private int floor = 0;
+
+	/**
+	 * the number of bytes read from the connection
+	 */
+	private long received = 0;
+
+	public HttpInputBuffer(InputStream input) {
+		this.input = input;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of bytes that were received but not read yet.
+	 *
+	 */
+	int getBuffered() {
+		return limit - position;
+	}
+
+	/**
+	 * Returns the number of bytes that were read from the connection so far.
+	 *
+	 */
+	long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Reads the next request head into the buffer. The head of the previous
+	 * request is discarded.
+	 *
+	 * @return the position of the end of the head (the start of the head is
+	 *         0), -1 if the stream ended before the head was complete or
+	 *         {@link #HEAD_TOO_LARGE}
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	int readHead() throws IOException {
+
+		// move the unread bytes to the beginning
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+
+		floor = 0;
+
+		int scanned = 0;
+
+		while (true) {
+
+			// skip the empty lines between requests
+			int skip = 0;
+			while (skip < limit && (buffer[skip] == '\r' || buffer[skip] == '\n'))
+				skip++;
+
+			if (skip > 0) {
+				System.arraycopy(buffer, skip, buffer, 0, limit - skip);
+				limit -= skip;
+				scanned = 0;
+			}
+
+			int end = HttpRequestHead.findEnd(buffer, Math.max(0, scanned - 2), limit);
+
+			if (end > 0) {
+				floor = end;
+				return end;
+			}
+
+			scanned = limit;
+
+			if (limit == buffer.length) {
+				if (buffer.length >= MAX_HEAD_SIZE)
+					return HEAD_TOO_LARGE;
+				byte[] grown = new byte[Math.min(buffer.length * 2, MAX_HEAD_SIZE)];
+				System.arraycopy(buffer, 0, grown, 0, limit);
+				buffer = grown;
+			}
+
+			int n = input.read(buffer, limit, buffer.length - limit);
+
+			if (n < 0)
+				return -1;
+
+			limit += n;
+			received += n;
+		}
+
+	}
+
+	/**
+	 * Marks the head as consumed, the following reads return the body.
+	 *
+	 */
+	void consumeHead() {
+		position = floor;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == limit && !fill())
+			return -1;
+
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if (len == 0)
+			return 0;
+
+		if (position == limit) {
+
+			// large reads bypass the buffer
+			if (len >= buffer.length - floor) {
+				int n = input.read(b, off, len);
+				if (n > 0)
+					received += n;
+				return n;
+			}
+
+			if (!fill())
+				return -1;
+		}
+
+		int n = Math.min(len, limit - position);
+
+		System.arraycopy(buffer, position, b, off, n);
+
+		position += n;
+
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+
+		if (n <= 0)
+			return 0;
+
+		if (position == limit && !fill())
+			return 0;
+
+		int skipped = (int) Math.min(n, limit - position);
+
+		position += skipped;
+
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	private boolean fill() throws IOException {
+
+		// keep a reasonable space for the body after a large head
+		if (buffer.length - floor < INITIAL_SIZE / 2) {
+			byte[] grown = new byte[floor + INITIAL_SIZE];
+			System.arraycopy(buffer, 0, grown, 0, floor);
+			buffer = grown;
+		}
+
+		position = floor;
+		limit = floor;
+
+		int n = input.read(buffer, floor, buffer.length - floor);
+
+		if (n < 0)
+			return false;
+
+		limit += n;
+		received += n;
+
+		return true;
+	}
+
+}
@@ -0,0 +1,148 @@
+package org.coffeeshop.net.http.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds. The buckets are log-linear: every
+ * power of two is divided into eight buckets, so a recorded value is known
+ * with a relative error of at most 12.5% over the whole range. Values are
+ * recorded without locking, a snapshot read concurrently with the recording
+ * may be off by the requests that were recorded in the meantime.
+ *
+ */
+public class HttpLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * the largest value that is recorded in its own bucket (about 19 hours),
+	 * larger values are recorded as this value
+	 */
+	private static final long HIGHEST_VALUE = (1L << 36) - 1;
+
+	private static final int BUCKETS = index(HIGHEST_VALUE) + 1;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private AtomicLong count = new AtomicLong();
+
+	private AtomicLong total = new AtomicLong();
+
+	private AtomicLong maximum = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value
+	 *            the latency in microseconds
+	 */
+	public void record(long value) {
+
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(index(Math.min(value, HIGHEST_VALUE)));
+		count.incrementAndGet();
+		total.addAndGet(value);
+
+		long max;
+		while (value > (max = maximum.get()) && !maximum.compareAndSet(max, value));
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the recorded values in microseconds.
+	 *
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Returns the largest recorded value in microseconds.
+	 *
+	 */
+	public long getMaximum() {
+		return maximum.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values in microseconds.
+	 *
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * Returns the value below which the given share of the recorded values
+	 * lies.
+	 *
+	 * @param percentile
+	 *            the share in percent (for instance 99.9)
+	 * @return the upper bound of the bucket that contains the percentile in
+	 *         microseconds or 0 if no values were recorded
+	 */
+	public long getPercentile(double percentile) {
+
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n);
+
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), getMaximum());
+		}
+
+		return getMaximum();
+	}
+
+	private static int index(long value) {
+
+		if (value < SUB_BUCKETS * 2)
+			return (int) value;
+
+		// keep the highest bits of the value, drop the rest
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long upperBound(int index) {
+
+		if (index < SUB_BUCKETS * 2)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = index - shift * SUB_BUCKETS;
+
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+}
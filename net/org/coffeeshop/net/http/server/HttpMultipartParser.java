@@ -0,0 +1,415 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * A streaming parser for <code>multipart/form-data</code> request bodies.
+ * The body is read through a fixed buffer, the part delimiters are found with
+ * a Boyer-Moore-Horspool search and the content of a part is handed to the
+ * caller in bulk, so the parser never holds more than one buffer of the body
+ * in memory.
+ *
+ * Usage: call {@link #next()} to advance to the next part, inspect its
+ * headers and read its content with {@link #read(byte[], int, int)} until it
+ * returns -1.
+ *
+ */
+class HttpMultipartParser {
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final int MAX_HEADER_LINE = 8192;
+
+	private InputStream input;
+
+	/**
+	 * the delimiter that precedes every boundary: CRLF--boundary
+	 */
+	private byte[] delimiter;
+
+	private int[] skip = new int[256];
+
+	private byte[] buffer;
+
+	/**
+	 * the unread bytes are between position (inclusive) and limit (exclusive)
+	 */
+	private int position = 0, limit = 0;
+
+	/**
+	 * the position of the next delimiter in the buffer, -1 if not known
+	 */
+	private int delimiterPosition = -1;
+
+	/**
+	 * no delimiter starts before this position, used to avoid searching the
+	 * same bytes again
+	 */
+	private int searched = 0;
+
+	private boolean inPart = false, finished = false, eof = false;
+
+	private HashMap<String, String> headers = new HashMap<String, String>();
+
+	/**
+	 * Creates a new parser.
+	 *
+	 * @param input
+	 *            the request body, the stream must end with the body
+	 * @param boundary
+	 *            the boundary from the <code>content-type</code> header
+	 */
+	public HttpMultipartParser(InputStream input, String boundary) {
+		this.input = input;
+
+		delimiter = new byte[boundary.length() + 4];
+		delimiter[0] = '\r';
+		delimiter[1] = '\n';
+		delimiter[2] = '-';
+		delimiter[3] = '-';
+		for (int i = 0; i < boundary.length(); i++)
+			delimiter[i + 4] = (byte) boundary.charAt(i);
+
+		int m = delimiter.length;
+
+		for (int i = 0; i < skip.length; i++)
+			skip[i] = m;
+		for (int i = 0; i < m - 1; i++)
+			skip[delimiter[i] & 0xff] = m - 1 - i;
+
+		buffer = new byte[Math.max(BUFFER_SIZE, m * 4)];
+
+		// the first boundary is not preceded by a line break, pretend it is
+		// and treat the preamble as a part that is skipped
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		limit = 2;
+		inPart = true;
+	}
+
+	/**
+	 * Extracts the boundary parameter from a <code>content-type</code> header.
+	 *
+	 * @param contentType
+	 *            the value of the header
+	 * @return the boundary or <code>null</code> if not present
+	 */
+	public static String getBoundary(String contentType) {
+		return getParameter(contentType, "boundary");
+	}
+
+	/**
+	 * Extracts a parameter from a header value, such as the
+	 * <code>name</code> of a <code>content-disposition</code> header.
+	 *
+	 * @param header
+	 *            the header value
+	 * @param name
+	 *            the name of the parameter (case insensitive)
+	 * @return the value of the parameter or <code>null</code> if not present
+	 */
+	public static String getParameter(String header, String name) {
+
+		if (header == null)
+			return null;
+
+		int i = 0;
+		int length = header.length();
+
+		while (i < length) {
+
+			int semicolon = header.indexOf(';', i);
+
+			if (semicolon < 0)
+				return null;
+
+			i = semicolon + 1;
+
+			while (i < length && header.charAt(i) == ' ')
+				i++;
+
+			if (!header.regionMatches(true, i, name, 0, name.length())
+					|| i + name.length() >= length
+					|| header.charAt(i + name.length()) != '=')
+				continue;
+
+			i += name.length() + 1;
+
+			if (i < length && header.charAt(i) == '"') {
+				int end = header.indexOf('"', i + 1);
+				return header.substring(i + 1, end < 0 ? length : end);
+			}
+
+			int end = header.indexOf(';', i);
+			return header.substring(i, end < 0 ? length : end).trim();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Advances to the next part, skipping the unread content of the current
+	 * one, and reads the headers of the part.
+	 *
+	 * @return <code>true</code> if there is another part, <code>false</code>
+	 *         if the closing boundary was reached
+	 * @throws IOException
+	 *             if the body is malformed or cannot be read
+	 */
+	public boolean next() throws IOException {
+
+		if (finished)
+			return false;
+
+		while (inPart) {
+			int n = skipPart();
+			if (n < 0)
+				break;
+		}
+
+		// after the boundary comes either -- or a line break
+		if (!ensure(2))
+			throw new IOException("Malformed multipart body");
+
+		if (buffer[position] == '-' && buffer[position + 1] == '-') {
+			finished = true;
+			return false;
+		}
+
+		// skip transport padding and the line break
+		String line = readLine();
+
+		if (line == null)
+			throw new IOException("Malformed multipart body");
+
+		headers.clear();
+
+		while (true) {
+			line = readLine();
+
+			if (line == null)
+				throw new IOException("Malformed multipart body");
+
+			if (line.length() == 0)
+				break;
+
+			int colon = line.indexOf(':');
+
+			if (colon > 0)
+				headers.put(line.substring(0, colon).trim().toLowerCase(),
+						line.substring(colon + 1).trim());
+		}
+
+		inPart = true;
+
+		return true;
+	}
+
+	/**
+	 * Returns a header of the current part.
+	 *
+	 * @param name
+	 *            the name of the header without the colon (case insensitive)
+	 * @return the value of the header or <code>null</code>
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * Reads the content of the current part.
+	 *
+	 * @return the number of bytes read or -1 at the end of the part
+	 * @throws IOException
+	 *             if the body is malformed or cannot be read
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if (!inPart)
+			return -1;
+
+		while (true) {
+
+			locate();
+
+			if (delimiterPosition >= 0) {
+
+				int available = delimiterPosition - position;
+
+				if (available == 0) {
+					// end of the part, consume the delimiter
+					position += delimiter.length;
+					delimiterPosition = -1;
+					inPart = false;
+					return -1;
+				}
+
+				int n = Math.min(len, available);
+				System.arraycopy(buffer, position, b, off, n);
+				position += n;
+				return n;
+			}
+
+			// the last bytes may be the beginning of a delimiter
+			int safe = limit - (delimiter.length - 1);
+
+			if (safe > position) {
+				int n = Math.min(len, safe - position);
+				System.arraycopy(buffer, position, b, off, n);
+				position += n;
+				return n;
+			}
+
+			if (!fill())
+				throw new IOException("Malformed multipart body");
+		}
+
+	}
+
+	private int skipPart() throws IOException {
+
+		locate();
+
+		if (delimiterPosition >= 0) {
+			if (delimiterPosition == position) {
+				position += delimiter.length;
+				delimiterPosition = -1;
+				inPart = false;
+				return -1;
+			}
+			int n = delimiterPosition - position;
+			position = delimiterPosition;
+			return n;
+		}
+
+		int safe = limit - (delimiter.length - 1);
+
+		if (safe > position) {
+			int n = safe - position;
+			position = safe;
+			return n;
+		}
+
+		if (!fill())
+			throw new IOException("Malformed multipart body");
+
+		return 0;
+	}
+
+	/**
+	 * Finds the next delimiter in the buffered bytes if it is not known yet.
+	 */
+	private void locate() {
+
+		if (delimiterPosition >= 0)
+			return;
+
+		delimiterPosition = search(Math.max(position, searched), limit);
+
+		if (delimiterPosition < 0)
+			searched = Math.max(position, limit - delimiter.length + 1);
+	}
+
+	/**
+	 * Boyer-Moore-Horspool search for the delimiter.
+	 *
+	 * @return the position of the delimiter or -1
+	 */
+	private int search(int from, int to) {
+
+		int m = delimiter.length;
+		int last = m - 1;
+		int i = from;
+
+		while (i <= to - m) {
+			int j = last;
+			while (j >= 0 && buffer[i + j] == delimiter[j])
+				j--;
+			if (j < 0)
+				return i;
+			i += skip[buffer[i + last] & 0xff];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Reads more bytes into the buffer, compacting it first.
+	 *
+	 * @return <code>false</code> if the end of stream was reached
+	 */
+	private boolean fill() throws IOException {
+
+		if (eof)
+			return false;
+
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			if (delimiterPosition >= 0)
+				delimiterPosition -= position;
+			searched = Math.max(0, searched - position);
+			limit -= position;
+			position = 0;
+		}
+
+		if (limit == buffer.length)
+			throw new IOException("Multipart header too long");
+
+		int n = input.read(buffer, limit, buffer.length - limit);
+
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+
+		limit += n;
+
+		return true;
+	}
+
+	private boolean ensure(int count) throws IOException {
+		while (limit - position < count) {
+			if (!fill())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a header line of a part.
+	 *
+	 * @return the line without the line break or <code>null</code> at the
+	 *         end of stream
+	 */
+	private String readLine() throws IOException {
+
+		int scanned = position;
+
+		while (true) {
+
+			for (int i = scanned; i < limit; i++) {
+				if (buffer[i] == '\n') {
+					int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+					String line = new String(buffer, position, end - position, "UTF-8");
+					position = i + 1;
+					delimiterPosition = -1;
+					return line;
+				}
+			}
+
+			if (limit - position > MAX_HEADER_LINE)
+				throw new IOException("Multipart header too long");
+
+			scanned = limit - position;
+
+			if (!fill())
+				return null;
+
+			scanned = position + scanned;
+		}
+
+	}
+
+}
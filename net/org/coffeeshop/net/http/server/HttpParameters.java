@@ -0,0 +1,334 @@
+package org.coffeeshop.net.http.server;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A view of the parameters in a raw string such as the query of a request
+ * (<code>a=1&amp;b=2&amp;a=3</code>) or a <code>cookie</code> header
+ * (<code>a=1; b=2</code>). The string is not split in advance: the first
+ * access records the positions of the names and the values in the string,
+ * a value is only decoded when it is requested. A name may occur several
+ * times, the values are returned in the order of the string.
+ *
+ * The names are compared as they appear in the string (without the
+ * surrounding spaces), the values are URL-decoded as UTF-8. Malformed
+ * escapes are kept as they are.
+ *
+ */
+public class HttpParameters {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] NONE = new String[0];
+
+	private String raw;
+
+	private char separator;
+
+	/**
+	 * the positions of the parameters in the raw string, four per parameter:
+	 * the start and the end of the name and of the value (-1 if the
+	 * parameter has no value)
+	 */
+	private int[] positions = new int[32];
+
+	/**
+	 * the number of parameters, -1 if the string was not scanned yet
+	 */
+	private int count = -1;
+
+	/**
+	 * the decoded values, created with the first value that needs decoding
+	 */
+	private String[] decoded = null;
+
+	/**
+	 * the parameters that were set by the server, they replace all the
+	 * values of the same name in the string
+	 */
+	private HashMap<String, String> replaced = null;
+
+	/**
+	 * Creates a new view.
+	 *
+	 * @param raw
+	 *            the raw string, may be <code>null</code>
+	 * @param separator
+	 *            the character that separates the parameters
+	 */
+	public HttpParameters(String raw, char separator) {
+		this.separator = separator;
+		reset(raw);
+	}
+
+	/**
+	 * Replaces the raw string of the view, the buffers of the view are
+	 * reused.
+	 *
+	 * @param raw
+	 *            the raw string, may be <code>null</code>
+	 */
+	void reset(String raw) {
+		this.raw = raw == null ? "" : raw;
+		this.count = -1;
+		if (decoded != null)
+			Arrays.fill(decoded, null);
+		if (replaced != null)
+			replaced.clear();
+	}
+
+	/**
+	 * Returns the raw string.
+	 *
+	 */
+	public String getRaw() {
+		return raw;
+	}
+
+	/**
+	 * Returns the last value of a parameter.
+	 *
+	 * @param name
+	 *            the name of the parameter (case sensitive)
+	 * @param def
+	 *            the value to return if there is no such parameter
+	 * @return the value of the parameter or def
+	 */
+	public String get(String name, String def) {
+		if (replaced != null && replaced.containsKey(name))
+			return replaced.get(name);
+		scan();
+		for (int i = count - 1; i >= 0; i--)
+			if (matches(i, name))
+				return value(i);
+		return def;
+	}
+
+	/**
+	 * Returns a value of a parameter that occurs several times.
+	 *
+	 * @param name
+	 *            the name of the parameter (case sensitive)
+	 * @param index
+	 *            the index of the value
+	 * @param def
+	 *            the value to return if there is no such value
+	 * @return the value of the parameter or def
+	 */
+	public String get(String name, int index, String def) {
+		if (replaced != null && replaced.containsKey(name))
+			return index == 0 ? replaced.get(name) : def;
+		scan();
+		for (int i = 0; i < count; i++)
+			if (matches(i, name) && index-- == 0)
+				return value(i);
+		return def;
+	}
+
+	/**
+	 * Returns all the values of a parameter.
+	 *
+	 * @param name
+	 *            the name of the parameter (case sensitive)
+	 * @return the values, an empty array if there is no such parameter
+	 */
+	public String[] getAll(String name) {
+		int n = getCount(name);
+		if (n == 0)
+			return NONE;
+		if (replaced != null && replaced.containsKey(name))
+			return new String[] { replaced.get(name) };
+		String[] values = new String[n];
+		for (int i = 0, j = 0; i < count; i++)
+			if (matches(i, name))
+				values[j++] = value(i);
+		return values;
+	}
+
+	/**
+	 * Returns the number of values of a parameter.
+	 *
+	 * @param name
+	 *            the name of the parameter (case sensitive)
+	 * @return the number of times the parameter occurs
+	 */
+	public int getCount(String name) {
+		if (replaced != null && replaced.containsKey(name))
+			return 1;
+		scan();
+		int n = 0;
+		for (int i = 0; i < count; i++)
+			if (matches(i, name))
+				n++;
+		return n;
+	}
+
+	/**
+	 * Checks if the parameter is present.
+	 *
+	 */
+	public boolean contains(String name) {
+		return getCount(name) > 0;
+	}
+
+	/**
+	 * Returns the names of all the parameters in the order of their first
+	 * occurrence.
+	 *
+	 */
+	public Set<String> getNames() {
+		scan();
+		LinkedHashSet<String> names = new LinkedHashSet<String>();
+		for (int i = 0; i < count; i++)
+			names.add(raw.substring(positions[i * 4], positions[i * 4 + 1]));
+		if (replaced != null)
+			names.addAll(replaced.keySet());
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Sets a parameter, all the values of the parameter in the string are
+	 * replaced by the given value.
+	 *
+	 * @param name
+	 *            the name of the parameter
+	 * @param value
+	 *            the value of the parameter
+	 */
+	public void set(String name, String value) {
+		if (replaced == null)
+			replaced = new HashMap<String, String>();
+		replaced.put(name, value);
+	}
+
+	/**
+	 * Records the positions of the parameters, once per string.
+	 */
+	private void scan() {
+
+		if (count >= 0)
+			return;
+
+		count = 0;
+
+		int length = raw.length();
+		int start = 0;
+
+		while (start < length) {
+
+			int end = raw.indexOf(separator, start);
+			if (end < 0)
+				end = length;
+
+			int equals = -1;
+			for (int i = start; i < end; i++) {
+				if (raw.charAt(i) == '=') {
+					equals = i;
+					break;
+				}
+			}
+
+			int nameStart = start, nameEnd = equals < 0 ? end : equals;
+
+			while (nameStart < nameEnd && raw.charAt(nameStart) <= ' ')
+				nameStart++;
+			while (nameEnd > nameStart && raw.charAt(nameEnd - 1) <= ' ')
+				nameEnd--;
+
+			// parameters without a name are ignored
+			if (nameEnd > nameStart) {
+
+				if ((count + 1) * 4 > positions.length)
+					positions = Arrays.copyOf(positions, positions.length * 2);
+
+				int p = count * 4;
+				positions[p] = nameStart;
+				positions[p + 1] = nameEnd;
+				positions[p + 2] = equals < 0 ? -1 : equals + 1;
+				positions[p + 3] = end;
+
+				count++;
+			}
+
+			start = end + 1;
+		}
+	}
+
+	private boolean matches(int index, String name) {
+		int start = positions[index * 4], end = positions[index * 4 + 1];
+		return end - start == name.length() && raw.regionMatches(start, name, 0, end - start);
+	}
+
+	private String value(int index) {
+
+		int start = positions[index * 4 + 2], end = positions[index * 4 + 3];
+
+		if (start < 0)
+			return "";
+
+		boolean escaped = false;
+		for (int i = start; i < end && !escaped; i++) {
+			char c = raw.charAt(i);
+			escaped = c == '%' || c == '+';
+		}
+
+		if (!escaped)
+			return raw.substring(start, end);
+
+		if (decoded == null || decoded.length < count)
+			decoded = decoded == null ? new String[count] : Arrays.copyOf(decoded, count);
+
+		if (decoded[index] == null)
+			decoded[index] = decode(raw, start, end);
+
+		return decoded[index];
+	}
+
+	/**
+	 * Decodes a part of a URL-encoded string.
+	 */
+	static String decode(String s, int start, int end) {
+
+		byte[] bytes = new byte[end - start];
+		int n = 0;
+
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '+') {
+				bytes[n++] = ' ';
+			} else if (c == '%' && i + 2 < end && hex(s.charAt(i + 1)) >= 0 && hex(s.charAt(i + 2)) >= 0) {
+				bytes[n++] = (byte) (hex(s.charAt(i + 1)) * 16 + hex(s.charAt(i + 2)));
+				i += 2;
+			} else if (c < 0x80) {
+				bytes[n++] = (byte) c;
+			} else {
+				// characters that were not encoded by the client
+				int length = Character.charCount(s.codePointAt(i));
+				byte[] encoded = s.substring(i, i + length).getBytes(UTF8);
+				if (n + encoded.length > bytes.length)
+					bytes = Arrays.copyOf(bytes, n + encoded.length + (end - i));
+				System.arraycopy(encoded, 0, bytes, n, encoded.length);
+				n += encoded.length;
+				i += length - 1;
+			}
+		}
+
+		return new String(bytes, 0, n, UTF8);
+	}
+
+	private static int hex(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+
+}
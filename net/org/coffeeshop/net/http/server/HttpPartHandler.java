@@ -0,0 +1,34 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the content of a file part of a <code>multipart/form-data</code>
+ * request as it arrives, instead of a finished temporary file. A handler is
+ * registered for a field with
+ * {@link HttpRequest#setPartHandler(String, HttpPartHandler)} before the post
+ * variables are used.
+ *
+ */
+public interface HttpPartHandler {
+
+	/**
+	 * Receives a file part. The content that the handler does not read is
+	 * skipped when the method returns.
+	 *
+	 * @param name
+	 *            the name of the field
+	 * @param filename
+	 *            the original name of the file
+	 * @param contentType
+	 *            the content type sent by the client or <code>null</code>
+	 * @param content
+	 *            the content of the part, valid only during the call
+	 * @throws IOException
+	 *             stops reading the request, the upload is marked as partial
+	 */
+	public void receive(String name, String filename, String contentType, InputStream content)
+			throws IOException;
+
+}
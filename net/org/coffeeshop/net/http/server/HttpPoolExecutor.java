@@ -0,0 +1,87 @@
+package org.coffeeshop.net.http.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that runs the tasks on a bounded pool of platform threads.
+ * Tasks that arrive when all the threads are busy wait in a bounded queue,
+ * tasks that arrive when the queue is full are rejected.
+ * 
+ */
+public class HttpPoolExecutor implements HttpExecutor {
+
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param group
+	 *            the thread group of the pool threads
+	 * @param threads
+	 *            the maximum number of threads
+	 * @param queue
+	 *            the maximum number of waiting tasks (0 means that a task is
+	 *            rejected if no thread is free)
+	 * @param timeout
+	 *            the time in milliseconds after which an idle thread is
+	 *            stopped
+	 */
+	public HttpPoolExecutor(final ThreadGroup group, int threads, int queue, long timeout) {
+
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread required");
+
+		BlockingQueue<Runnable> tasks = queue > 0 ? new ArrayBlockingQueue<Runnable>(queue)
+				: new SynchronousQueue<Runnable>();
+
+		executor = new ThreadPoolExecutor(threads, threads, timeout, TimeUnit.MILLISECONDS,
+				tasks, new ThreadFactory() {
+
+					private int counter = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(group, r, "thread" + (counter++));
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public boolean execute(Runnable task) {
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of threads that are currently running a task.
+	 * 
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Returns the number of tasks that wait for a free thread.
+	 * 
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+}
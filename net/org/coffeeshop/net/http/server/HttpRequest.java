@@ -1,14 +1,16 @@
 package org.coffeeshop.net.http.server;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -16,7 +18,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
-import org.coffeeshop.string.StringUtils;
+import org.coffeeshop.io.BufferPool;
+import org.coffeeshop.io.LimitedInputStream;
 
 /**
  * This class represents an http request An url is defined the following way (in
@@ -33,16 +36,71 @@ public class HttpRequest {
 			HTTP_METHOD_HEAD = 2;
 
 	/**
-	 * this arrayslist contains a http header with the following items key:
-	 * header-key value: the header value. The header keys are translated to
-	 * lowercase can the spaces are trimmed
+	 * requests with more ranges are answered with the whole resource
 	 */
-	private HashMap<String, String> httpHeaders = new HashMap<String, String>();
+	private final static int MAX_RANGES = 32;
+
+	private final static byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+	/**
+	 * the parsed head of the request (the request line and the headers). The
+	 * head refers to the input buffer of the connection, so the header
+	 * values are only converted to strings when requested
+	 */
+	private HttpRequestHead head;
+
+	/**
+	 * the body of the request, null if the request has no body
+	 */
+	private LimitedInputStream body;
+
+	private long contentLength = -1;
 
 	/**
-	 * this is the complete request (the first line) send to the server
+	 * the body was handed to the handler as a stream
 	 */
-	private String rawRequest;
+	private boolean bodyStreamed = false;
+
+	/**
+	 * the form variables were parsed from the body
+	 */
+	private boolean postParsed = false;
+
+	/**
+	 * the client waits for <code>100 Continue</code> before sending the body
+	 */
+	private boolean continueExpected = false;
+
+	/**
+	 * The body of the request. The client is asked to send the body with the
+	 * first read if it waits for a confirmation.
+	 *
+	 */
+	private class RequestBody extends LimitedInputStream {
+
+		public RequestBody(InputStream in, long length) {
+			super(in, length);
+		}
+
+		@Override
+		public int read() throws IOException {
+			requestBody();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			requestBody();
+			return super.read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			requestBody();
+			return super.skip(n);
+		}
+
+	}
 
 	// parsed data ////////////////////
 
@@ -68,39 +126,95 @@ public class HttpRequest {
 
 	private String rawPostString;
 
-	private HashMap<String, Object> get = new HashMap<String, Object>();
+	// the maps are created when the first value is added and kept when the
+	// request is reset, most requests do not need all of them
+
+	/**
+	 * the parameters of the query, decoded when they are requested
+	 */
+	private HttpParameters get = new HttpParameters(null, '&');
+
+	private HashMap<String, Object> post = null;
 
-	private HashMap<String, Object> post = new HashMap<String, Object>();
+	private HashMap<String, HttpFileUpload> postFiles = null;
 
-	private HashMap<String, HttpFileUpload> postFiles = new HashMap<String, HttpFileUpload>();
+	private HashMap<String, HttpPartHandler> partHandlers = null;
 
 	private InetAddress ipaddress;
 
-	private HashMap<String, Object> cookies = new HashMap<String, Object>();
+	/**
+	 * the cookies, the header is read when the first cookie is requested
+	 */
+	private HttpParameters cookies = new HttpParameters(null, ';');
+
+	private boolean cookiesParsed = false;
+
+	/**
+	 * the values of the parameter segments of the path (such as
+	 * <code>{id}</code>), filled when the resource is found
+	 */
+	private HashMap<String, String> pathParameters = null;
 
-	private HttpServerThread httpServerThread;
+	private HttpConnection connection;
 
 	private boolean keepAlive = false;
+
+	private boolean http11 = false;
 	
 	private HttpServerInformation serverInfo;
 	
 	private String contentType = "";
 	
 	/**
-	 * The constructor with the serverthread, so we can read the webserver
+	 * The constructor with the connection, so we can read the webserver
 	 * settings
 	 * 
 	 * @since V1.01
 	 */
-	public HttpRequest(HttpServerThread httpServerThread) {
-		this.httpServerThread = httpServerThread;
+	public HttpRequest(HttpConnection connection) {
+		this.connection = connection;
 		
-		this.serverInfo = httpServerThread.getServer();
+		this.serverInfo = connection.getServer();
 	}
 
 	public HttpServerInformation getServerInformation() {
 		return serverInfo;
 	}
+
+	/**
+	 * this method returns the request to its initial state, so that the
+	 * connection can use it for its next request instead of creating a new
+	 * one. The maps are emptied but kept, the uploads are released.
+	 */
+	void reset() {
+		release();
+		head = null;
+		body = null;
+		contentLength = -1;
+		bodyStreamed = false;
+		postParsed = false;
+		continueExpected = false;
+		rawurl = null;
+		method = HTTP_METHOD_GET;
+		location = null;
+		anchorName = null;
+		rawGetString = null;
+		rawPostString = null;
+		get.reset(null);
+		clear(post);
+		clear(postFiles);
+		clear(partHandlers);
+		cookiesParsed = false;
+		clear(pathParameters);
+		keepAlive = false;
+		http11 = false;
+		contentType = "";
+	}
+
+	private static void clear(HashMap<?, ?> map) {
+		if (map != null && !map.isEmpty())
+			map.clear();
+	}
 	
 	/**
 	 * this method sets the location of the given request. You shouldn't use
@@ -148,14 +262,7 @@ public class HttpRequest {
 	 * @return the value of the given GET variable or def if not found.
 	 */
 	public String getGet(String id, String def) {
-		if (!get.containsKey(id))
-			return def;
-		Object o = get.get(id);
-		if (o instanceof ArrayList) {
-			List<?> arr = (List<?>) o;
-			return (String) arr.get(arr.size() - 1);
-		}
-		return (String) o;
+		return get.get(id, def);
 	}
 
 	/**
@@ -172,16 +279,7 @@ public class HttpRequest {
 	 * @since V1.03
 	 */
 	public String getGet(String id, int index, String def) {
-		if (!get.containsKey(id))
-			return def;
-		Object o = get.get(id);
-		if (o instanceof ArrayList) {
-			List<?> arr = (List<?>) o;
-			if (index >= arr.size())
-				return def;
-			return (String) arr.get(index);
-		}
-		return (String) o;
+		return get.get(id, index, def);
 	}
 
 	/**
@@ -191,7 +289,7 @@ public class HttpRequest {
 	 * @since V1.03
 	 */
 	public void setGet(String id, String value) {
-		get.put(id, value);
+		get.set(id, value);
 	}
 
 	/**
@@ -202,21 +300,38 @@ public class HttpRequest {
 	 * @return the number of times the given get variable is used.
 	 * @since v1.03
 	 */
-	@SuppressWarnings("unchecked")
 	public int getGetCount(String id) {
-		if (!get.containsKey(id))
-			return 0;
-		Object o = get.get(id);
-		if (o instanceof ArrayList)
-			return ((ArrayList<String>) o).size();
-		return 1;
+		return get.getCount(id);
 	}
 
 	public Set<String> getGetKeys() {
-		return Collections.unmodifiableSet(get.keySet());
+		return get.getNames();
+	}
+
+	/**
+	 * Returns all the values of a GET variable.
+	 * 
+	 * @param id
+	 *            the variable name (case sensitive !!)
+	 * @return the values in the order of the query, an empty array if the
+	 *         variable is not used
+	 */
+	public String[] getGetValues(String id) {
+		return get.getAll(id);
+	}
+
+	/**
+	 * Returns the GET variables of the request.
+	 * 
+	 */
+	public HttpParameters getGetParameters() {
+		return get;
 	}
 	
 	public Set<String> getPostKeys() {
+		parsePost();
+		if (post == null)
+			return Collections.emptySet();
 		return Collections.unmodifiableSet(post.keySet());
 	}
 	
@@ -230,7 +345,8 @@ public class HttpRequest {
 	 * @return the value of the given POST variable or def if not found.
 	 */
 	public String getPost(String id, String def) {
-		if (!post.containsKey(id))
+		parsePost();
+		if (post == null || !post.containsKey(id))
 			return def;
 		Object o = post.get(id);
 		if (o instanceof ArrayList) {
@@ -254,7 +370,8 @@ public class HttpRequest {
 	 * @since V1.03
 	 */
 	public String getPost(String id, int index, String def) {
-		if (!post.containsKey(id))
+		parsePost();
+		if (post == null || !post.containsKey(id))
 			return def;
 		Object o = post.get(id);
 		if (o instanceof ArrayList) {
@@ -273,6 +390,9 @@ public class HttpRequest {
 	 * @since V1.03
 	 */
 	public void setPost(String id, String value) {
+		parsePost();
+		if (post == null)
+			post = new HashMap<String, Object>();
 		post.put(id, value);
 	}
 
@@ -285,7 +405,8 @@ public class HttpRequest {
 	 * @since v1.03
 	 */
 	public int getPostCount(String id) {
-		if (!post.containsKey(id))
+		parsePost();
+		if (post == null || !post.containsKey(id))
 			return 0;
 		Object o = post.get(id);
 		if (o instanceof ArrayList)
@@ -294,7 +415,9 @@ public class HttpRequest {
 	}
 
 	/**
-	 * this method returns a HttpFileUpload object
+	 * this method returns a HttpFileUpload object. Its temporary file is
+	 * deleted when the response is complete, see
+	 * {@link HttpFileUpload#moveTo(File)}.
 	 * 
 	 * @param id
 	 *            the filename id
@@ -302,9 +425,35 @@ public class HttpRequest {
 	 * @since V1.01
 	 */
 	public HttpFileUpload getPostFile(String id) {
+		parsePost();
+		if (postFiles == null)
+			return null;
 		return (HttpFileUpload) postFiles.get(id);
 	}
 
+	/**
+	 * this method registers a handler that receives the file parts of a field
+	 * while the body is read, instead of spooling them to memory or to a
+	 * temporary file. The handler must be registered before the post
+	 * variables are first used. The upload of the field is still returned by
+	 * {@link #getPostFile(String)}, without content.
+	 * 
+	 * @param id
+	 *            the name of the field
+	 * @param handler
+	 *            the handler or <code>null</code> to spool the parts
+	 */
+	public void setPartHandler(String id, HttpPartHandler handler) {
+		if (handler == null) {
+			if (partHandlers != null)
+				partHandlers.remove(id);
+		} else {
+			if (partHandlers == null)
+				partHandlers = new HashMap<String, HttpPartHandler>();
+			partHandlers.put(id, handler);
+		}
+	}
+
 	/**
 	 * this method returns the value of a COOCKIE variable NOTE: for setting a
 	 * cookie variable see
@@ -319,14 +468,7 @@ public class HttpRequest {
 	 * @return the value of the COOKIE variable or def if not found
 	 */
 	public String getCookie(String id, String def) {
-		if (!cookies.containsKey(id))
-			return def;
-		Object o = cookies.get(id);
-		if (o instanceof ArrayList) {
-			List<?> arr = (List<?>) o;
-			return (String) arr.get(arr.size() - 1);
-		}
-		return (String) o;
+		return getCookieParameters().get(id, def);
 	}
 
 	/**
@@ -344,16 +486,7 @@ public class HttpRequest {
 	 * @since V1.03
 	 */
 	public String getCookie(String id, int index, String def) {
-		if (!cookies.containsKey(id))
-			return def;
-		Object o = cookies.get(id);
-		if (o instanceof ArrayList) {
-			List<?> arr = (List<?>) o;
-			if (index >= arr.size())
-				return def;
-			return (String) arr.get(index);
-		}
-		return (String) o;
+		return getCookieParameters().get(id, index, def);
 	}
 
 	/**
@@ -365,28 +498,37 @@ public class HttpRequest {
 	 * @since v1.03
 	 */
 	public int getCookieCount(String id) {
-		if (!cookies.containsKey(id))
-			return 0;
-		Object o = cookies.get(id);
-		if (o instanceof ArrayList)
-			return ((ArrayList<?>) o).size();
-		return 1;
+		return getCookieParameters().getCount(id);
+	}
+
+	/**
+	 * Returns the cookies of the request. The <code>cookie</code> header
+	 * is only read when the cookies are first used.
+	 * 
+	 */
+	public HttpParameters getCookieParameters() {
+		if (!cookiesParsed) {
+			cookiesParsed = true;
+			cookies.reset(head == null ? null : head.getHeader("cookie"));
+		}
+		return cookies;
 	}
 
 	/**
 	 * this method retrieves a given header
 	 * 
 	 * @param key
-	 *            the name (case insensitive) of the header. (Inclusive the ':')
+	 *            the name (case insensitive) of the header. (The trailing ':'
+	 *            is optional)
 	 * @param def
 	 *            the default value to return if the header doesn't exist
 	 * @return the header value or def if the header doesn't exist.
 	 */
 	public String getHeader(String key, String def) {
-		key = key.toLowerCase();
-		if (!httpHeaders.containsKey(key))
-			return def;
-		return (String) httpHeaders.get(key);
+		if (key.endsWith(":"))
+			key = key.substring(0, key.length() - 1);
+		String value = head.getHeader(key);
+		return value == null ? def : value;
 	}
 
 	/**
@@ -396,7 +538,7 @@ public class HttpRequest {
 	 * @return the raw http request
 	 */
 	public String getRawHttpRequest() {
-		return rawRequest;
+		return head.getRequestLine();
 	}
 
 	/**
@@ -441,15 +583,61 @@ public class HttpRequest {
 	}
 
 	/**
-	 * this method returns the raw unparsed post string
+	 * this method returns the raw unparsed post string. A body that is not a
+	 * form is read completely on the first call, unless it was already read
+	 * through {@link #getBody()}.
 	 * 
 	 * @return the unpased post string. In the form
 	 *         postvar1=value1&postvar2=value2
 	 */
 	public String getRawPostString() {
+		parsePost();
+		if (rawPostString == null && body != null && !bodyStreamed && body.getRemaining() <= Integer.MAX_VALUE) {
+			try {
+				rawPostString = new String(readBody(body, (int) body.getRemaining()));
+			} catch (IOException e) {
+				rawPostString = "";
+			}
+		}
 		return rawPostString;
 	}
 
+	/**
+	 * Returns the body of the request as a stream. The body is not read by
+	 * the server in advance, the handler consumes it at its own pace and the
+	 * client is slowed down by the connection accordingly. A client that
+	 * waits for <code>100 Continue</code> is only asked to send the body
+	 * when the stream is first read. Once the stream is used, the post
+	 * variables of a form are no longer parsed from the body.
+	 * 
+	 * @return the body, an empty stream if the request has no body
+	 */
+	public InputStream getBody() {
+		if (body == null)
+			return new ByteArrayInputStream(new byte[0]);
+		bodyStreamed = true;
+		return body;
+	}
+
+	/**
+	 * Returns the body of the request as a channel.
+	 * 
+	 * @return the body, an empty channel if the request has no body
+	 * @see #getBody()
+	 */
+	public ReadableByteChannel getBodyChannel() {
+		return Channels.newChannel(getBody());
+	}
+
+	/**
+	 * Returns the length of the body announced by the client.
+	 * 
+	 * @return the length or -1 if the request has no body
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////////
 	// initialises the http request
 	// //////////////////////////////////////////////////////////////////////////////
@@ -474,41 +662,30 @@ public class HttpRequest {
 		if (quest >= 0) {
 			rawGetString = location.substring(quest + 1);
 			location = location.substring(0, quest);
-			HttpUtils.parseString(rawGetString, get, true);
 		} else
 			rawGetString = "";
+		get.reset(rawGetString);
 		return HttpResponse.HTTP_OK;
 	}
 
 	/**
-	 * this method parses the first line of the http request
+	 * this method checks the first line of the http request
 	 * 
-	 * @param line
-	 *            the line to parse
 	 * @return the HTTP result code HttpUtils.HTTP_OK on success
 	 */
-	private int parseRequest(String line) {
-		// copy the raw request
-		rawRequest = line;
-
-		// parse the line into components, check if there are enough components
-		String[] items = StringUtils.explode(" ", line);
-		if (items.length < 2)
-			return HttpResponse.HTTP_BAD_REQUEST;
-		items[0] = items[0].toUpperCase();
+	private int parseRequest() {
 
 		// select the correct method
-		if (items[0].equals("GET"))
+		if (head.isMethod("GET"))
 			method = HTTP_METHOD_GET;
-		else if (items[0].equals("POST"))
+		else if (head.isMethod("POST"))
 			method = HTTP_METHOD_POST;
-		else if (items[0].equals("HEAD"))
+		else if (head.isMethod("HEAD"))
 			method = HTTP_METHOD_HEAD;
 		else
 			return HttpResponse.HTTP_BAD_METHOD;
 
-		// the raw url is directly placed at position 1
-		rawurl = items[1];
+		rawurl = head.getURI();
 
 		// parse the get methods
 		parseUrl(rawurl);
@@ -519,12 +696,10 @@ public class HttpRequest {
 
 	/**
 	 * This method is used internally by the webserver to initialise a http
-	 * request.
+	 * request. The head is read into the input buffer of the connection and
+	 * parsed in place, the bytes following the request remain in the buffer
+	 * for the next request.
 	 * 
-	 * @param input
-	 *            the inputstream to parse.
-	 * @param socket
-	 *            the socket we are connected to
 	 * @param keepAliveRequest
 	 *            is it a keepalive request (which means a timeout of the first
 	 *            readline isn't a problem)
@@ -533,235 +708,533 @@ public class HttpRequest {
 	 * @throws IOException
 	 *             on a communnications error
 	 */
-	public int init(InputStream input, Socket socket, boolean keepAliveRequest)
-			throws IOException {
-		this.ipaddress = socket.getInetAddress();
+	int init(boolean keepAliveRequest) throws IOException {
+		this.ipaddress = connection.getRemoteAddress();
 
-		BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+		HttpInputBuffer in = connection.getInputBuffer();
 
-		// first read and parse the first line
-		String line = null;
+		// first read the head
+		int end;
 		try {
-			line = reader.readLine();
+			end = in.readHead();
 		} catch (IOException e) {
 			if (keepAliveRequest)
 				return 0;
 			throw e;
 		}
-		if (line == null && keepAliveRequest)
+		if (end == -1 && keepAliveRequest)
 			return 0;
+		if (end < 0)
+			return HttpResponse.HTTP_BAD_REQUEST;
+
+		head = connection.getRequestHead();
+
+		if (!head.parse(in.getBuffer(), 0, end))
+			return HttpResponse.HTTP_BAD_REQUEST;
 
-		int result = parseRequest(line);
+		in.consumeHead();
+
+		int result = parseRequest();
 		if (result != HttpResponse.HTTP_OK)
 			return result;
 
-		// read the header
-		line = reader.readLine();
-		while (line != null && !line.equals("")) {
-
-			int spacePos = line.indexOf(' ');
-			if (spacePos >= 0) {
-				String key = line.substring(0, spacePos).toLowerCase();
-				httpHeaders.put(key, line.substring(spacePos + 1));
-			}
-			line = reader.readLine();
-		}
+		// HTTP/1.1 connections are persistent unless the client asks
+		// otherwise, HTTP/1.0 connections only if the client asks for it
+		http11 = head.isHttp11();
+		if (http11)
+			keepAlive = !head.hasToken("connection", "close");
+		else
+			keepAlive = head.hasToken("connection", "keep-alive");
 
-		// if method is post, we need to get the post values
+		// if method is post, the body is read when the handler asks for it
 		if (method == HTTP_METHOD_POST) {
 
 			// File upload code from Herbert Poul
-			if (!httpHeaders.containsKey("content-length:")) {
+			long length = head.getLongHeader("content-length", -1);
+			if (length < 0) {
 				return HttpResponse.HTTP_LENGTH_REQUIRED;
 			}
-			int len = HttpUtils.parseInt((String) httpHeaders
-					.get("content-length:"), 10, 0);
-			boolean handledPost = false;
-
-			if (httpHeaders.containsKey("content-type:")) {
-				contentType = (String) httpHeaders.get("content-type:");
-
-				if (contentType.compareToIgnoreCase("multipart/form-data") == 0) {
-					String boundary = "--"
-							+ contentType.replaceAll(
-									"^.*boundary=\"?([^\";,]+)\"?.*$", "$1");
-					int blength = boundary.length();
-					boolean done = false;
-
-					if (blength > 80 || blength < 2) {
-						return HttpResponse.HTTP_BAD_REQUEST;
-					}
 
-					rawPostString = "";
-					if (boundary != null && !boundary.equals("")) {
-						line = reader.readLine();
-						while (!done && line != null) {
-							HashMap<String, String> header = new HashMap<String, String>();
-							if (line.equals(boundary))
-								line = reader.readLine();
-							// Header loop...
-							while (!line.equals("")) {
-								header.put(line.substring(0, line.indexOf(' '))
-										.toLowerCase(), line.substring(line
-										.indexOf(' ') + 1));
-								line = reader.readLine();
-							}
-
-							// Done reading header ... reading body
-							String disposition = (String) header
-									.get("content-disposition:");
-							String name = disposition.replaceAll(
-									"^.* name=\"?([^\";]*)\"?.*$", "$1");
-							String filename = disposition.replaceAll(
-									"^.* filename=\"?([^\";]*)\"?.*$", "$1");
-
-							if (filename != null
-									&& filename.equals(disposition))
-								filename = null;
-							// normal field
-							if (filename == null) // || filename.equals(""))
-							{
-								line = reader.readLine();
-								String value = new String("");
-								// shouldn't be used more than once.
-								while (line != null
-										&& !line.startsWith(boundary)) {
-									value += line;
-									line = reader.readLine();
-								}
-								if (line != null
-										&& line.equals(boundary + "--"))
-									done = true;
-
-								if (rawPostString.length() > 0)
-									rawPostString += "&";
-								try {
-									rawPostString += name
-											+ "="
-											+ java.net.URLEncoder.encode(value,
-													"UTF-8");
-								} catch (UnsupportedEncodingException e) {
-									e.printStackTrace();
-								}
-								HttpUtils.addToHashMap(post, name, value);
-							}
-							// file control
-							else {
-								int fileResult = HttpFileUpload.RESULT_NOFILE;
-								// should we create a temporary file ?
-								File tempfile = null;
-								FileOutputStream out = null;
-								if (!filename.equals("")) {
-									tempfile = File.createTempFile("httpd",
-											".file");
-									out = new FileOutputStream(tempfile);
-								}
-
-								// read the data until we much the content
-								// boundary
-								line = null;
-								char testa[] = new char[blength + 2];
-								char boundarya[] = ("\r\n" + boundary)
-										.toCharArray();
-								for (int i = 0; i < blength + 2; i++) {
-									int c = input.read();
-									if (c < 0) {
-										return HttpResponse.HTTP_BAD_REQUEST;
-									}
-									testa[i] = (char) c;
-								}
-								while (!Arrays.equals(testa, boundarya)) {
-									// While we don't reached the maximum we can
-									// write to the temp file
-									if (tempfile != null
-											&& tempfile.length() < httpServerThread.getServer()
-													.getMaxUploadSize()) {
-										out.write(testa[0]);
-									}
-
-									for (int i = 1; i < blength + 2; i++) {
-										testa[i - 1] = testa[i];
-									}
-									int c = input.read();
-									if (c < 0) {
-										return HttpResponse.HTTP_BAD_REQUEST;
-									}
-									testa[blength + 2 - 1] = (char) c;
-								}
-								// close tempfile
-								if (tempfile != null) {
-									out.close();
-
-									// read the data
-									if (tempfile != null
-											&& tempfile.length() > 0) {
-										fileResult = HttpFileUpload.RESULT_OK;
-									}
-									if (tempfile != null
-											&& tempfile.length() > httpServerThread.getServer()
-													.getMaxUploadSize()) {
-										fileResult = HttpFileUpload.RESULT_SIZE;
-									}
-								}
-
-								// read the newline and check the end
-								int c = input.read();
-								if (c != '\r') {
-									if (c == '-' && input.read() == '-')
-										done = true;
-								} else
-									c = input.read();
-								if (c == -1)
-									done = true;
-								line = reader.readLine();
-
-								this.postFiles.put(name, new HttpFileUpload(
-										filename, tempfile, fileResult));
-							}
-							// while(line != null && line.equals("")) line =
-							// input.readLine();
-						}
-
-						handledPost = true;
-					} // boundry != null
-				} else if (contentType.compareToIgnoreCase("application/x-www-form-urlencoded") == 0) { 
-					
-					rawPostString = reader.readLine();
-					
-					HttpUtils.parseString(rawPostString, post, true);
-					
-					handledPost = true;
+			contentLength = length;
+
+			// the client waits for a confirmation before sending the body
+			continueExpected = http11 && length > 0 && head.hasToken("expect", "100-continue")
+					&& in.getBuffered() == 0;
+
+			body = new RequestBody(in, length);
+
+			contentType = head.getHeader("content-type");
+
+			if (contentType != null && contentType.toLowerCase().startsWith("multipart/form-data")) {
+				String boundary = HttpMultipartParser.getBoundary(contentType);
+
+				if (boundary == null || boundary.length() > 70 || boundary.length() < 1) {
+					return HttpResponse.HTTP_BAD_REQUEST;
 				}
-				
-				if (!handledPost) {
-					
-					char[] buffer = new char[len];
-
-					reader.read(buffer);
-					
-					rawPostString = new String(buffer);
-					
+
+				// the upload limit applies to the whole body, so no part can
+				// exceed it, the request is refused before the client sends it
+				if (length > connection.getServer().getMaxUploadSize()) {
+					return HttpResponse.HTTP_ENTITY_TOO_LARGE;
 				}
-				
-			} // Headers contains content-type?
+			}
 
-			
 		} // POST?
 
-		// go and retrieves the cookies
-		if (httpHeaders.containsKey("cookie:")) {
-			HttpUtils.parseString((String) httpHeaders.get("cookie:"), cookies,
-					true, ";");
-		}
-
-		keepAlive = ( getHeader("connection:","").toLowerCase().startsWith("keep-alive") );
+		if (contentType == null)
+			contentType = "";
 		
 		// if post, we should retrieve the postdata
 		return HttpResponse.HTTP_OK;
 	}
 
+	/**
+	 * Asks the client to send the body if it waits for a confirmation. The
+	 * confirmation is only sent before the response, a handler that answers
+	 * without reading the body rejects it.
+	 * 
+	 * @throws IOException
+	 *             if the response was already started
+	 */
+	private void requestBody() throws IOException {
+		if (!continueExpected)
+			return;
+
+		continueExpected = false;
+
+		HttpResponse response = connection.getHttpResponse();
+
+		if (response != null && response.isHeadersSent())
+			throw new IOException("The body was not requested before the response");
+
+		OutputStream output = connection.getOutputStream();
+		output.write(CONTINUE_RESPONSE);
+		output.flush();
+	}
+
+	/**
+	 * this method parses the variables of a form body
+	 * (<code>application/x-www-form-urlencoded</code> or
+	 * <code>multipart/form-data</code>) when they are first needed.
+	 */
+	private void parsePost() {
+
+		if (postParsed)
+			return;
+
+		postParsed = true;
+
+		if (body == null || bodyStreamed || contentType == null)
+			return;
+
+		String type = contentType.toLowerCase();
+
+		try {
+
+			if (type.startsWith("multipart/form-data")) {
+
+				parseMultipart(new HttpMultipartParser(body, HttpMultipartParser.getBoundary(contentType)));
+
+			} else if (type.startsWith("application/x-www-form-urlencoded")
+					&& body.getRemaining() <= Integer.MAX_VALUE) {
+
+				rawPostString = new String(readBody(body, (int) body.getRemaining()), "ISO-8859-1");
+
+				if (post == null)
+					post = new HashMap<String, Object>();
+				HttpUtils.parseString(rawPostString, post, true);
+
+			}
+
+		} catch (IOException e) {
+			// the variables read so far are kept, the rest of the body
+			// cannot be skipped either, so the connection is closed
+		}
+
+	}
+
+	/**
+	 * this method reads the parts of a multipart/form-data body. Fields are
+	 * added to the post variables, files are spooled to memory or to temporary
+	 * files, or handed to the handlers registered for them.
+	 * 
+	 * @param parser
+	 *            the parser positioned before the first part
+	 * @throws IOException
+	 *             if the body is malformed or on a communications error
+	 */
+	private void parseMultipart(HttpMultipartParser parser) throws IOException {
+
+		StringBuilder raw = new StringBuilder();
+		byte[] buffer = new byte[8192];
+
+		while (parser.next()) {
+
+			String disposition = parser.getHeader("content-disposition");
+			String name = HttpMultipartParser.getParameter(disposition, "name");
+			String filename = HttpMultipartParser.getParameter(disposition, "filename");
+
+			if (name == null)
+				continue;
+
+			// normal field
+			if (filename == null) {
+
+				ByteArrayOutputStream value = new ByteArrayOutputStream();
+
+				int n;
+				while ((n = parser.read(buffer, 0, buffer.length)) >= 0)
+					value.write(buffer, 0, n);
+
+				String decoded = value.toString("UTF-8");
+
+				if (raw.length() > 0)
+					raw.append('&');
+				raw.append(name).append('=').append(URLEncoder.encode(decoded, "UTF-8"));
+
+				if (post == null)
+					post = new HashMap<String, Object>();
+				HttpUtils.addToHashMap(post, name, decoded);
+				continue;
+			}
+
+			// file control
+			String type = parser.getHeader("content-type");
+
+			if (filename.equals("")) {
+				addPostFile(name,
+						new HttpFileUpload(filename, (File) null, HttpFileUpload.RESULT_NOFILE, 0, type));
+				continue;
+			}
+
+			HttpPartHandler handler = partHandlers == null ? null : partHandlers.get(name);
+
+			if (handler != null) {
+				PartInputStream content = new PartInputStream(parser);
+				int fileResult = HttpFileUpload.RESULT_OK;
+				try {
+					handler.receive(name, filename, type, content);
+				} catch (IOException e) {
+					fileResult = HttpFileUpload.RESULT_PARTIAL;
+					throw e;
+				} finally {
+					addPostFile(name,
+							new HttpFileUpload(filename, (File) null, fileResult, content.count, type));
+				}
+				continue;
+			}
+
+			addPostFile(name, spool(parser, filename, type, connection.getUploadBuffers(), buffer));
+		}
+
+		rawPostString = raw.toString();
+	}
+
+	/**
+	 * this method stores the content of a file part, in a pooled memory
+	 * buffer while it is small and in a temporary file once it outgrows the
+	 * buffer. The size of the file is bounded by the length of the body,
+	 * which was checked against the upload limit.
+	 * 
+	 * @return the upload
+	 * @throws IOException
+	 *             if the body is malformed or on a communications error
+	 */
+	private static HttpFileUpload spool(HttpMultipartParser parser, String filename, String type,
+			BufferPool pool, byte[] buffer) throws IOException {
+
+		byte[] memory = pool == null ? null : pool.acquire();
+		int memorySize = memory == null ? 0 : memory.length;
+		File tempfile = null;
+		OutputStream out = null;
+		int fileResult = HttpFileUpload.RESULT_OK;
+		long size = 0;
+
+		try {
+
+			int n;
+			while ((n = parser.read(buffer, 0, buffer.length)) >= 0) {
+
+				if (out == null && size + n > memorySize) {
+					tempfile = HttpFileUpload.createTempFile();
+					out = new FileOutputStream(tempfile);
+					if (size > 0)
+						out.write(memory, 0, (int) size);
+				}
+
+				if (out != null)
+					out.write(buffer, 0, n);
+				else
+					System.arraycopy(buffer, 0, memory, (int) size, n);
+
+				size += n;
+			}
+
+		} catch (IOException e) {
+			if (pool != null)
+				pool.release(memory);
+			if (out != null) {
+				out.close();
+				out = null;
+				tempfile.delete();
+			}
+			throw e;
+		} finally {
+			if (out != null)
+				out.close();
+		}
+
+		if (size == 0)
+			fileResult = HttpFileUpload.RESULT_NOFILE;
+
+		if (out != null || memory == null) {
+			if (pool != null)
+				pool.release(memory);
+			return new HttpFileUpload(filename, tempfile, fileResult, size, type);
+		}
+
+		return new HttpFileUpload(filename, memory, pool, fileResult, size, type);
+	}
+
+	/**
+	 * The content of a file part that is handed to a {@link HttpPartHandler}.
+	 *
+	 */
+	private static class PartInputStream extends InputStream {
+
+		private HttpMultipartParser parser;
+
+		private long count = 0;
+
+		public PartInputStream(HttpMultipartParser parser) {
+			this.parser = parser;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n;
+			while ((n = read(b, 0, 1)) == 0);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n = parser.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+	}
+
+	/**
+	 * this method releases the uploaded files, called when the response is
+	 * finished.
+	 */
+	void release() {
+		if (postFiles == null)
+			return;
+		for (HttpFileUpload upload : postFiles.values())
+			upload.release();
+		postFiles.clear();
+	}
+
+	private void addPostFile(String name, HttpFileUpload upload) {
+		if (postFiles == null)
+			postFiles = new HashMap<String, HttpFileUpload>();
+		postFiles.put(name, upload);
+	}
+
+	/**
+	 * this method reads a request body completely.
+	 * 
+	 * @param in
+	 *            the body stream
+	 * @param length
+	 *            the announced length of the body
+	 * @return the bytes of the body
+	 * @throws IOException
+	 *             on a communications error
+	 */
+	private static byte[] readBody(InputStream in, int length) throws IOException {
+		byte[] body = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int n = in.read(body, offset, length - offset);
+			if (n < 0)
+				break;
+			offset += n;
+		}
+		return offset == length ? body : Arrays.copyOf(body, offset);
+	}
+
+	/**
+	 * Returns the value of a path parameter: the segment of the location that
+	 * was matched by a resource named <code>{name}</code>.
+	 * 
+	 * @param name
+	 *            the name of the parameter (without the braces)
+	 * @param def
+	 *            the value to return if there is no such parameter
+	 * @return the value of the parameter
+	 */
+	public String getPathParameter(String name, String def) {
+		String value = pathParameters == null ? null : pathParameters.get(name);
+		return value == null ? def : value;
+	}
+
+	HashMap<String, String> getPathParameters() {
+		if (pathParameters == null)
+			pathParameters = new HashMap<String, String>();
+		return pathParameters;
+	}
+
+	/**
+	 * Returns the byte ranges requested in the <code>range</code> header.
+	 * Ranges that start after the end of the resource are dropped, the other
+	 * ones are limited to the length of the resource.
+	 * 
+	 * @param length
+	 *            the length of the resource
+	 * @return the ranges as pairs of the first and the last byte (inclusive),
+	 *         an empty array if none of the ranges can be satisfied or
+	 *         <code>null</code> if the whole resource should be sent (there
+	 *         is no valid range header)
+	 */
+	public long[] getRanges(long length) {
+		String range = head.getHeader("range");
+		if (range == null)
+			return null;
+
+		range = range.trim();
+		if (!range.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		String[] items = range.substring(6).split(",");
+
+		if (items.length > MAX_RANGES)
+			return null;
+
+		long[] ranges = new long[items.length * 2];
+		int count = 0;
+
+		for (String item : items) {
+			item = item.trim();
+			int dash = item.indexOf('-');
+			if (dash < 0)
+				return null;
+
+			long first, last;
+
+			if (dash == 0) {
+				// the last bytes of the resource
+				long suffix = HttpUtils.parseLong(item.substring(1), 10, -1);
+				if (suffix < 0)
+					return null;
+				if (suffix == 0)
+					continue;
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = HttpUtils.parseLong(item.substring(0, dash), 10, -1);
+				last = dash == item.length() - 1 ? Long.MAX_VALUE
+						: HttpUtils.parseLong(item.substring(dash + 1), 10, -1);
+				if (first < 0 || last < first)
+					return null;
+				last = Math.min(last, length - 1);
+			}
+
+			if (first >= length)
+				continue;
+
+			ranges[count++] = first;
+			ranges[count++] = last;
+		}
+
+		return Arrays.copyOf(ranges, count);
+	}
+
+	/**
+	 * Checks if the client accepts a content encoding (such as
+	 * <code>gzip</code>), according to the <code>accept-encoding</code>
+	 * header. Encodings with a quality of zero are not accepted.
+	 * 
+	 * @param encoding
+	 *            the name of the encoding (case insensitive)
+	 * @return true if the response may use the encoding
+	 */
+	public boolean acceptsEncoding(String encoding) {
+		String accept = head.getHeader("accept-encoding");
+		if (accept == null)
+			return false;
+
+		boolean wildcard = false;
+
+		for (String item : accept.split(",")) {
+			String[] parts = item.split(";");
+			String name = parts[0].trim();
+
+			boolean refused = false;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						refused = Double.parseDouble(param.substring(2).trim()) <= 0;
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+
+			if (name.equalsIgnoreCase(encoding))
+				return !refused;
+			if (name.equals("*"))
+				wildcard = !refused;
+		}
+
+		return wildcard;
+	}
+
+	/**
+	 * this method skips the part of the request body that was not read, so
+	 * that the next request on the connection can be read.
+	 * 
+	 * @param limit
+	 *            the maximum number of bytes to skip
+	 * @return true if the body was skipped, false if it is longer than the
+	 *         limit and the connection can not be reused
+	 * @throws IOException
+	 *             on a communications error
+	 */
+	boolean discardBody(long limit) throws IOException {
+		if (body == null)
+			return true;
+		// the client did not send the body, it cannot be told apart from
+		// the next request
+		if (continueExpected)
+			return false;
+		if (body.getRemaining() > limit)
+			return false;
+		while (body.getRemaining() > 0) {
+			if (body.skip(body.getRemaining()) <= 0 && body.read() < 0)
+				return false;
+		}
+		return true;
+	}
+
 	public boolean isKeepAlive() {
 		return keepAlive;
 	}
+
+	/**
+	 * Checks if the request was sent using HTTP/1.1 (or newer), which means
+	 * that the client understands chunked responses.
+	 * 
+	 */
+	public boolean isHttp11() {
+		return http11;
+	}
 	
 }
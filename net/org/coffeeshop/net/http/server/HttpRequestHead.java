@@ -0,0 +1,325 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The parsed head of a request (the request line and the headers). The head
+ * is parsed in place, only the offsets of the elements are recorded and the
+ * bytes stay in the buffer of the connection. Header lookup compares the
+ * bytes of the names directly, a string is only created for a value that is
+ * actually requested. The object is reused for all the requests of a
+ * connection.
+ *
+ */
+class HttpRequestHead {
+
+	private byte[] buffer;
+
+	private int methodStart, methodEnd, uriStart, uriEnd, versionStart, versionEnd;
+
+	/**
+	 * for every header: name start, name end, value start, value end
+	 */
+	private int[] headers = new int[4 * 16];
+
+	private int count = 0;
+
+	/**
+	 * Finds the end of a request head.
+	 *
+	 * @return the position after the empty line that terminates the head or
+	 *         -1 if the head is not complete
+	 */
+	static int findEnd(byte[] b, int from, int to) {
+
+		for (int i = from; i < to; i++) {
+			if (b[i] != '\n')
+				continue;
+			if (i + 1 < to && b[i + 1] == '\n')
+				return i + 2;
+			if (i + 2 < to && b[i + 1] == '\r' && b[i + 2] == '\n')
+				return i + 3;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Parses the head.
+	 *
+	 * @param b
+	 *            the buffer that holds the head
+	 * @param from
+	 *            the first byte of the request line
+	 * @param to
+	 *            the position after the empty line that terminates the head
+	 * @return <code>true</code> if the request line is well formed
+	 */
+	boolean parse(byte[] b, int from, int to) {
+
+		buffer = b;
+		count = 0;
+
+		int lineEnd = lineEnd(from, to);
+
+		// request line: method SP uri [SP version]
+		methodStart = from;
+		methodEnd = indexOf(' ', from, lineEnd);
+
+		if (methodEnd <= methodStart)
+			return false;
+
+		uriStart = methodEnd + 1;
+		while (uriStart < lineEnd && b[uriStart] == ' ')
+			uriStart++;
+
+		uriEnd = indexOf(' ', uriStart, lineEnd);
+		if (uriEnd < 0)
+			uriEnd = trimEnd(uriStart, lineEnd);
+
+		if (uriEnd <= uriStart)
+			return false;
+
+		versionStart = uriEnd;
+		while (versionStart < lineEnd && b[versionStart] == ' ')
+			versionStart++;
+		versionEnd = trimEnd(versionStart, lineEnd);
+
+		int line = next(lineEnd, to);
+
+		while (line < to) {
+
+			lineEnd = lineEnd(line, to);
+
+			if (lineEnd == line)
+				break;
+
+			int colon = indexOf(':', line, lineEnd);
+
+			// folded lines and malformed headers are ignored
+			if (colon > line && b[line] != ' ' && b[line] != '\t') {
+
+				if (count * 4 == headers.length) {
+					int[] grown = new int[headers.length * 2];
+					System.arraycopy(headers, 0, grown, 0, headers.length);
+					headers = grown;
+				}
+
+				int valueStart = colon + 1;
+				while (valueStart < lineEnd && (b[valueStart] == ' ' || b[valueStart] == '\t'))
+					valueStart++;
+
+				headers[count * 4] = line;
+				headers[count * 4 + 1] = trimEnd(line, colon);
+				headers[count * 4 + 2] = valueStart;
+				headers[count * 4 + 3] = trimEnd(valueStart, lineEnd);
+				count++;
+			}
+
+			line = next(lineEnd, to);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if the method of the request equals the given one.
+	 *
+	 * @param name
+	 *            the method name in upper case
+	 */
+	boolean isMethod(String name) {
+		return equalsIgnoreCase(methodStart, methodEnd, name);
+	}
+
+	String getMethod() {
+		return string(methodStart, methodEnd);
+	}
+
+	String getURI() {
+		return string(uriStart, uriEnd);
+	}
+
+	String getVersion() {
+		return string(versionStart, versionEnd);
+	}
+
+	/**
+	 * Checks if the request was sent using HTTP/1.1 or a newer version.
+	 *
+	 */
+	boolean isHttp11() {
+		int length = versionEnd - versionStart;
+		if (length < 8 || !equalsIgnoreCase(versionStart, versionStart + 5, "HTTP/"))
+			return false;
+		int major = buffer[versionStart + 5] - '0';
+		int minor = buffer[versionStart + 7] - '0';
+		return major > 1 || (major == 1 && minor >= 1);
+	}
+
+	/**
+	 * Returns the request line.
+	 *
+	 */
+	String getRequestLine() {
+		return string(methodStart, Math.max(versionEnd, uriEnd));
+	}
+
+	int getHeaderCount() {
+		return count;
+	}
+
+	String getHeaderName(int index) {
+		return string(headers[index * 4], headers[index * 4 + 1]);
+	}
+
+	String getHeaderValue(int index) {
+		return string(headers[index * 4 + 2], headers[index * 4 + 3]);
+	}
+
+	/**
+	 * Finds a header.
+	 *
+	 * @param name
+	 *            the name of the header (case insensitive, without the colon)
+	 * @return the index of the first header with that name or -1
+	 */
+	int indexOf(String name) {
+		for (int i = 0; i < count; i++) {
+			if (equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the value of a header.
+	 *
+	 * @param name
+	 *            the name of the header (case insensitive, without the colon)
+	 * @return the value or <code>null</code> if the header is not present
+	 */
+	String getHeader(String name) {
+		int i = indexOf(name);
+		return i < 0 ? null : getHeaderValue(i);
+	}
+
+	/**
+	 * Returns the numeric value of a header.
+	 *
+	 * @param name
+	 *            the name of the header (case insensitive, without the colon)
+	 * @param def
+	 *            the value to return if the header is missing or malformed
+	 */
+	long getLongHeader(String name, long def) {
+		int i = indexOf(name);
+		if (i < 0)
+			return def;
+		int start = headers[i * 4 + 2], end = headers[i * 4 + 3];
+		if (start == end || end - start > 18)
+			return def;
+		long value = 0;
+		for (int j = start; j < end; j++) {
+			if (buffer[j] < '0' || buffer[j] > '9')
+				return def;
+			value = value * 10 + (buffer[j] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Checks if a comma separated header (such as <code>Connection</code>)
+	 * contains a token.
+	 *
+	 * @param name
+	 *            the name of the header (case insensitive, without the colon)
+	 * @param token
+	 *            the token (case insensitive)
+	 */
+	boolean hasToken(String name, String token) {
+		for (int i = 0; i < count; i++) {
+			if (!equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], name))
+				continue;
+			int start = headers[i * 4 + 2], end = headers[i * 4 + 3];
+			while (start < end) {
+				int comma = indexOf(',', start, end);
+				if (comma < 0)
+					comma = end;
+				int s = start;
+				while (s < comma && buffer[s] == ' ')
+					s++;
+				if (equalsIgnoreCase(s, trimEnd(s, comma), token))
+					return true;
+				start = comma + 1;
+			}
+		}
+		return false;
+	}
+
+	private boolean equalsIgnoreCase(int start, int end, String s) {
+		if (end - start != s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			int a = buffer[start + i], b = s.charAt(i);
+			if (a == b)
+				continue;
+			if (a >= 'A' && a <= 'Z')
+				a += 'a' - 'A';
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (a != b)
+				return false;
+		}
+		return true;
+	}
+
+	private String string(int start, int end) {
+		if (end <= start)
+			return "";
+		try {
+			return new String(buffer, start, end - start, "ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			return new String(buffer, start, end - start);
+		}
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the end of the line that starts at the given position, without
+	 * the line break.
+	 */
+	private int lineEnd(int from, int to) {
+		int i = indexOf('\n', from, to);
+		if (i < 0)
+			return to;
+		return (i > from && buffer[i - 1] == '\r') ? i - 1 : i;
+	}
+
+	/**
+	 * Returns the start of the line after the line that ends at the given
+	 * position.
+	 */
+	private int next(int lineEnd, int to) {
+		int i = lineEnd;
+		if (i < to && buffer[i] == '\r')
+			i++;
+		if (i < to && buffer[i] == '\n')
+			i++;
+		return i;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t'))
+			end--;
+		return end;
+	}
+
+}
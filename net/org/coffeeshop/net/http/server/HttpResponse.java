@@ -1,14 +1,15 @@
 package org.coffeeshop.net.http.server;
 
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.TimeZone;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.coffeeshop.net.html.SimpleHtmlDocument;
 import org.coffeeshop.net.html.Snippets;
@@ -27,15 +28,113 @@ public class HttpResponse {
 			if (!headersSend)
 				sendHeaders();
 			
-			out.write(b);
+			body.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			
+			if (!headersSend)
+				sendHeaders();
+			
+			body.write(b, off, len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			body.flush();
 		}
 		
 	}
 
+	/**
+	 * The stream to the connection. The head of the response is kept in its
+	 * encoder after it was assembled, the first writes of the body are
+	 * appended to it while they fit and the rest is sent together with the
+	 * head, so the head and the beginning of the body leave with one write.
+	 */
+	private class HeadOutputStream extends OutputStream {
+
+		private OutputStream out;
+
+		private HttpHeadEncoder pending = null;
+
+		public HeadOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (pending != null) {
+				if (pending.remaining() > 0) {
+					pending.append((char) (b & 0xff));
+					return;
+				}
+				commit();
+			}
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (pending != null) {
+				if (len <= pending.remaining()) {
+					pending.append(b, off, len);
+					return;
+				}
+				HttpHeadEncoder head = pending;
+				pending = null;
+				try {
+					connection.send(head.getBuffer(), head.getLength(), b, off, len);
+				} finally {
+					head.release();
+				}
+				return;
+			}
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			commit();
+			out.flush();
+		}
+
+		/**
+		 * Drops a head that was not sent (the response is abandoned).
+		 */
+		public void discard() {
+			if (pending != null) {
+				pending.release();
+				pending = null;
+			}
+		}
+
+		/**
+		 * Sends the head and the collected beginning of the body.
+		 */
+		public void commit() throws IOException {
+			if (pending == null)
+				return;
+			HttpHeadEncoder head = pending;
+			pending = null;
+			try {
+				connection.send(head.getBuffer(), head.getLength(), null, 0, 0);
+			} finally {
+				head.release();
+			}
+		}
+
+	}
+
 	/** Status-Code 200: OK. */
 	public final static int HTTP_OK = 200;
+	/** Status-Code 206: Partial Content */
+	public final static int HTTP_PARTIAL_CONTENT = 206;
 	/** Status-Code 301: Moved Permanently */
 	public final static int HTTP_MOVED_PERMANENTLY = 301;
+	/** Status-Code 304: Not Modified */
+	public final static int HTTP_NOT_MODIFIED = 304;
 	/** Status-Code 400: Bad Request. */
 	public final static int HTTP_BAD_REQUEST = 400;
 	/** Status-Code 404: Not Found. */
@@ -44,8 +143,14 @@ public class HttpResponse {
 	public final static int HTTP_BAD_METHOD = 405;
 	/** Status-Code 411: Length Required. */
 	public final static int HTTP_LENGTH_REQUIRED = 411;
+	/** Status-Code 413: Request Entity Too Large. */
+	public final static int HTTP_ENTITY_TOO_LARGE = 413;
+	/** Status-Code 416: Requested Range Not Satisfiable. */
+	public final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
 	/** Status-Code 500: Internal Server Error. */
 	public final static int HTTP_INTERNAL_ERROR = 500;
+	/** Status-Code 503: Service Unavailable. */
+	public final static int HTTP_SERVICE_UNAVAILABLE = 503;
 
 	/**
 	 * This method converts an error number to a name. When an invalid number is
@@ -62,6 +167,10 @@ public class HttpResponse {
 		switch (code) {
 		case HTTP_OK:
 			return "OK";
+		case HTTP_PARTIAL_CONTENT:
+			return "Partial Content";
+		case HTTP_NOT_MODIFIED:
+			return "Not Modified";
 		case HTTP_BAD_REQUEST:
 			return "Bad Request";
 		case HTTP_NOT_FOUND:
@@ -70,6 +179,12 @@ public class HttpResponse {
 			return "Method Not Allowed";
 		case HTTP_LENGTH_REQUIRED:
 			return "Length Required";
+		case HTTP_ENTITY_TOO_LARGE:
+			return "Request Entity Too Large";
+		case HTTP_RANGE_NOT_SATISFIABLE:
+			return "Requested Range Not Satisfiable";
+		case HTTP_SERVICE_UNAVAILABLE:
+			return "Service Unavailable";
 		default:
 		case HTTP_INTERNAL_ERROR:
 			return "Internal Server Error";
@@ -106,7 +221,28 @@ public class HttpResponse {
 		
 	}
 	
-	private OutputStream out;
+	/**
+	 * the stream to the connection
+	 */
+	private HeadOutputStream out;
+
+	/**
+	 * the stream the body is written to, either the output stream of the
+	 * connection or a chunked encoder on top of it
+	 */
+	private OutputStream body;
+
+	private WatchedOutputStream watched = null;
+
+	private HttpChunkedOutputStream chunked = null;
+
+	/**
+	 * the content encoding used to compress the body, null if the body is
+	 * sent as it is
+	 */
+	private String compression = null;
+
+	private DeflaterOutputStream compressor = null;
 
 	private String resultHeader;
 
@@ -116,6 +252,8 @@ public class HttpResponse {
 
 	private HttpServerInformation serverInfo;
 	
+	private HttpRequest request;
+	
 	
 	/**
 	 * the http-headers we need to send. The key contains the headername
@@ -126,15 +264,15 @@ public class HttpResponse {
 	/**
 	 * the http cookies we need to send. Cookies can result in multiple HTTP
 	 * headers with the same key. (The cannot be placed in the header hasmap)
-	 * key=cookieid, value=cookievalue
+	 * key=cookieid, value=cookievalue. Created with the first cookie.
 	 */
-	private HashMap<String, Cookie> cookies = new HashMap<String, Cookie>();
+	private HashMap<String, Cookie> cookies = null;
 
 	/**
-	 * The server thread for accessing the server settings
+	 * The connection for accessing the server settings
 	 * 
 	 */
-	private HttpServerThread serverThread;
+	private HttpConnection connection;
 
 	/**
 	 * Should the connection be kept alive
@@ -142,13 +280,6 @@ public class HttpResponse {
 	 */
 	private boolean keepAlive = true;
 
-	private static SimpleDateFormat dateFormatterGMT;
-
-	static {
-		dateFormatterGMT = new SimpleDateFormat("d MMM yyyy HH:mm:ss 'GMT'");
-		dateFormatterGMT.setTimeZone(TimeZone.getTimeZone("GMT"));
-	}
-
 	/**
 	 * the default constructor. This method initailises the default response.
 	 * The default headers send are:
@@ -163,28 +294,48 @@ public class HttpResponse {
 	 * pragma: no-cache
 	 * </pre>
 	 * 
-	 * @param thread
-	 *            the server thread
+	 * @param connection
+	 *            the client connection
 	 * @param writer
 	 *            the outputstream
 	 */
-	public HttpResponse(HttpServerThread thread, HttpRequest request, OutputStream out) {
-		this.out = out;
+	public HttpResponse(HttpConnection connection, HttpRequest request, OutputStream out) {
+		this.out = new HeadOutputStream(out);
+		this.connection = connection;
+		this.request = request;
+		this.serverInfo = connection.getServer();
+		
+		reset();
+	}
+
+	/**
+	 * this method returns the response to its initial state, so that the
+	 * connection can use it for its next request instead of creating a new
+	 * one. The request of the response must be reset before.
+	 */
+	void reset() {
+		out.discard();
+		body = out;
+		chunked = null;
+		compression = null;
+		compressor = null;
+		headersSend = false;
 		resultHeader = "HTTP/1.1 200 OK";
 		resultHeaderCode = 200;
-		headers.put("date:", dateFormatterGMT.format(new Date()));
-		headers.put("server:", thread.getServer().getName());
+		headers.clear();
+		headers.put("date:", HttpUtils.currentDate());
+		headers.put("server:", serverInfo.getName());
 		headers.put("connection:", "close");
 		headers.put("content-type:", "text/html; charset=iso-8859-1");
 		headers
 				.put("cache-control:",
 						"no-store, no-cache, must-revalidate, post-check=0, pre-check=0");
 		headers.put("pragma:", "no-cache");
-		this.serverThread = thread;
-		
-		this.keepAlive = request.isKeepAlive();
+		if (cookies != null)
+			cookies.clear();
 		
-		this.serverInfo = thread.getServer();
+		this.keepAlive = request.isKeepAlive()
+				&& connection.getRequestCount() < serverInfo.getMaxKeepAliveRequestPerConnection();
 	}
 
 	/**
@@ -199,6 +350,12 @@ public class HttpResponse {
 		case HTTP_OK:
 			message += "OK";
 			break;
+		case HTTP_PARTIAL_CONTENT:
+			message += "Partial Content";
+			break;
+		case HTTP_NOT_MODIFIED:
+			message += "Not Modified";
+			break;
 		case HTTP_BAD_REQUEST:
 			message += "Bad Request";
 			break;
@@ -211,6 +368,15 @@ public class HttpResponse {
 		case HTTP_LENGTH_REQUIRED:
 			message += "Length Required";
 			break;
+		case HTTP_ENTITY_TOO_LARGE:
+			message += "Request Entity Too Large";
+			break;
+		case HTTP_RANGE_NOT_SATISFIABLE:
+			message += "Requested Range Not Satisfiable";
+			break;
+		case HTTP_SERVICE_UNAVAILABLE:
+			message += "Service Unavailable";
+			break;
 		default:
 		case HTTP_INTERNAL_ERROR:
 			message += "Internal Server Error";
@@ -302,6 +468,8 @@ public class HttpResponse {
 			String domain, String path, boolean secure) {
 		// get or create the cookie
 		Cookie cookie = null;
+		if (cookies == null)
+			cookies = new HashMap<String, Cookie>();
 		if (cookies.containsKey(name))
 			cookie = (Cookie) cookies.get(name);
 		else {
@@ -341,13 +509,263 @@ public class HttpResponse {
 	}
 
 	public OutputStream getOutputStream() {
-		return new WatchedOutputStream();
+		if (watched == null)
+			watched = new WatchedOutputStream();
+		return watched;
+	}
+	
+	/**
+	 * this method enables the compression of the response body if the client
+	 * accepts it. The body written to the output stream is compressed with
+	 * <code>gzip</code> or <code>deflate</code> (the length of the compressed
+	 * body is not known in advance, so it is sent chunked). Must be called
+	 * before anything is written.
+	 * 
+	 * @return true if the body will be compressed
+	 */
+	public boolean enableCompression() {
+		if (headersSend)
+			throw new java.lang.UnsupportedOperationException(
+					"Headers already sent");
+		
+		if (headers.containsKey("content-encoding:"))
+			return false;
+		
+		if (request.acceptsEncoding("gzip"))
+			compression = "gzip";
+		else if (request.acceptsEncoding("deflate"))
+			compression = "deflate";
+		else
+			compression = null;
+		
+		String vary = headers.get("vary:");
+		if (vary == null)
+			headers.put("vary:", "accept-encoding");
+		else if (vary.toLowerCase().indexOf("accept-encoding") < 0)
+			headers.put("vary:", vary + ", accept-encoding");
+		
+		return compression != null;
+	}
+	
+	/**
+	 * this method answers a conditional request with
+	 * <code>304 Not Modified</code>: the client already holds the current
+	 * version of the resource, so the response has no body. The validators
+	 * (<code>etag</code>, <code>last-modified</code>) should be set before.
+	 * 
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public void sendNotModified() throws IOException {
+		if (headersSend)
+			throw new java.lang.UnsupportedOperationException(
+					"Headers already sent");
+		
+		setHttpResult(HTTP_NOT_MODIFIED);
+		
+		compression = null;
+		
+		headers.remove("content-type:");
+		headers.remove("content-length:");
+		headers.remove("content-encoding:");
+		
+		sendHeaders();
+	}
+	
+	/**
+	 * this method sends the given bytes as the body of the response. The
+	 * length of the body is sent in the <code>content-length</code> header.
+	 * Nothing may be written to the response before.
+	 * 
+	 * @param content
+	 *            the body of the response
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public void sendContent(byte[] content) throws IOException {
+		if (headersSend)
+			throw new java.lang.UnsupportedOperationException(
+					"Headers already sent");
+		
+		compression = null;
+		
+		headers.put("content-length:", String.valueOf(content.length));
+		
+		sendHeaders();
+		
+		if (request.getHttpMethod() == HttpRequest.HTTP_METHOD_HEAD)
+			return;
+		
+		out.write(content);
+	}
+	
+	/**
+	 * this method sends the content of a file as the body of the response.
+	 * The length of the file is sent in the <code>content-length</code>
+	 * header and the bytes are moved directly from the file to the socket
+	 * where the connection allows it. Nothing may be written to the response
+	 * before.
+	 * 
+	 * @param file
+	 *            the file to send
+	 * @throws IOException
+	 *             if the file cannot be read or on a communication error
+	 */
+	public void sendFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		
+		try {
+			FileChannel channel = in.getChannel();
+			sendFile(channel, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * this method sends a part of a file as the body of the response.
+	 * 
+	 * @param channel
+	 *            the channel of the file
+	 * @param position
+	 *            the position of the first byte to send
+	 * @param length
+	 *            the number of bytes to send
+	 * @throws IOException
+	 *             on a communication error
+	 * @see #sendFile(File)
+	 */
+	public void sendFile(FileChannel channel, long position, long length) throws IOException {
+		if (headersSend)
+			throw new java.lang.UnsupportedOperationException(
+					"Headers already sent");
+		
+		compression = null;
+		
+		headers.put("content-length:", String.valueOf(length));
+		
+		sendHeaders();
+		
+		if (request.getHttpMethod() == HttpRequest.HTTP_METHOD_HEAD)
+			return;
+		
+		// the file is sent past the stream, the head has to go first
+		out.commit();
+		
+		connection.send(channel, position, length);
+	}
+	
+	/**
+	 * this method answers a range request with parts of a file. A single
+	 * range is sent as the body of a <code>206 Partial Content</code>
+	 * response, several ranges are sent as a
+	 * <code>multipart/byteranges</code> body. An empty list of ranges is
+	 * answered with <code>416 Requested Range Not Satisfiable</code>. The
+	 * parts are read from the file at their position, the bytes before them
+	 * are never read.
+	 * 
+	 * @param channel
+	 *            the channel of the file
+	 * @param length
+	 *            the length of the file
+	 * @param ranges
+	 *            the ranges as pairs of the first and the last byte
+	 *            (inclusive), as returned by {@link HttpRequest#getRanges(long)}
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public void sendFileRanges(FileChannel channel, long length, long[] ranges) throws IOException {
+		if (headersSend)
+			throw new java.lang.UnsupportedOperationException(
+					"Headers already sent");
+		
+		compression = null;
+		
+		if (ranges.length == 0) {
+			setHttpResult(HTTP_RANGE_NOT_SATISFIABLE);
+			headers.put("content-range:", "bytes */" + length);
+			headers.put("content-length:", "0");
+			sendHeaders();
+			return;
+		}
+		
+		setHttpResult(HTTP_PARTIAL_CONTENT);
+		
+		if (ranges.length == 2) {
+			headers.put("content-range:", "bytes " + ranges[0] + "-" + ranges[1] + "/" + length);
+			sendFile(channel, ranges[0], ranges[1] - ranges[0] + 1);
+			return;
+		}
+		
+		String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+		String type = headers.get("content-type:");
+		
+		// the part headers are prepared in advance to compute the length
+		byte[][] parts = new byte[ranges.length / 2][];
+		long total = 0;
+		
+		for (int i = 0; i < parts.length; i++) {
+			long first = ranges[i * 2], last = ranges[i * 2 + 1];
+			StringBuilder part = new StringBuilder();
+			part.append("\r\n--").append(boundary).append("\r\n");
+			if (type != null)
+				part.append("content-type: ").append(type).append("\r\n");
+			part.append("content-range: bytes ").append(first).append('-').append(last)
+				.append('/').append(length).append("\r\n\r\n");
+			parts[i] = part.toString().getBytes("ISO-8859-1");
+			total += parts[i].length + (last - first + 1);
+		}
+		
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+		total += end.length;
+		
+		headers.put("content-type:", "multipart/byteranges; boundary=" + boundary);
+		headers.put("content-length:", String.valueOf(total));
+		
+		sendHeaders();
+		
+		if (request.getHttpMethod() == HttpRequest.HTTP_METHOD_HEAD)
+			return;
+		
+		for (int i = 0; i < parts.length; i++) {
+			out.write(parts[i]);
+			out.commit();
+			connection.send(channel, ranges[i * 2], ranges[i * 2 + 1] - ranges[i * 2] + 1);
+		}
+		
+		out.write(end);
 	}
 	
 	public boolean isKeepAlive() {
 		return keepAlive;
 	}
 	
+	/**
+	 * this method closes the connection after the response. Can only be
+	 * called before the headers are sent.
+	 */
+	void disableKeepAlive() {
+		keepAlive = false;
+	}
+	
+	/**
+	 * this method completes the response: the headers are sent if nothing
+	 * was written and a chunked body is terminated. Called by the server
+	 * after the resource has written the response.
+	 * 
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	void finish() throws IOException {
+		if (!headersSend)
+			sendHeaders();
+		if (compressor != null)
+			compressor.finish();
+		if (chunked != null)
+			chunked.finish();
+		out.flush();
+	}
+	
 	public boolean isHeadersSent() {
 		return headersSend;
 	}
@@ -359,68 +777,100 @@ public class HttpResponse {
 		// send the headers
 		if (!headersSend) {
 
-			DataOutputStream writer = new DataOutputStream(out);
+			// the length of a compressed body is not known
+			if (compression != null) {
+				headers.remove("content-length:");
+				headers.put("content-encoding:", compression);
+			}
 			
-			// if there is not content length we cannot keep the connection open
-			if (this.resultHeaderCode == HTTP_OK && !headers.containsKey("content-length:"))
-				keepAlive = false;
+			// if there is no content length the end of the body has to be
+			// marked with chunked encoding (HTTP/1.1) or by closing the
+			// connection
+			if (keepAlive && resultHeaderCode != HTTP_NOT_MODIFIED
+					&& !headers.containsKey("content-length:")
+					&& !headers.containsKey("transfer-encoding:")) {
+				if (request.isHttp11() && request.getHttpMethod() != HttpRequest.HTTP_METHOD_HEAD) {
+					headers.put("transfer-encoding:", "chunked");
+					chunked = new HttpChunkedOutputStream(out);
+					body = chunked;
+				} else
+					keepAlive = false;
+			}
 			
-			headers.put("keep-alive:", "timeout="
-					+ this.serverThread.getServer().getKeepAliveConnectionTimeout() + ",max="
-					+ this.serverThread.getServer().getMaxKeepAliveRequestPerConnection());
 			if (keepAlive) {
+				headers.put("keep-alive:", "timeout="
+						+ (this.connection.getServer().getKeepAliveConnectionTimeout() / 1000) + ", max="
+						+ this.connection.getServer().getMaxKeepAliveRequestPerConnection());
 				headers.put("connection:", "keep-alive");
 			} else {
+				headers.remove("keep-alive:");
 				headers.put("connection:", "close");
 			}
 
-			// now write the headers
+			// now assemble the headers, they are sent with the beginning of
+			// the body
 			headersSend = true;
-			writer.writeBytes(resultHeader);
-			writer.writeBytes("\r\n");
-
-			Iterator<String> it = this.headers.keySet().iterator();
-			while (it.hasNext()) {
-				String key = (String) it.next();
-				writer.writeBytes(key);
-				writer.writeBytes((String) headers.get(key));
-				writer.writeBytes("\r\n");
-			}
+
+			HttpHeadEncoder head = new HttpHeadEncoder();
+
+			head.status(resultHeader);
+
+			for (Map.Entry<String, String> header : headers.entrySet())
+				head.header(header.getKey(), header.getValue());
 
 			// send all cookies
-			it = this.cookies.keySet().iterator();
-			while (it.hasNext()) {
-				String key = (String) it.next();
-				writer.writeBytes("set-cookie: ");
-				writer.writeBytes(key);
-				writer.write('=');
-				Cookie cookie = (Cookie) cookies.get(key);
-				writer.writeBytes(java.net.URLEncoder.encode(cookie.value, "UTF-8"));
-				if (cookie.expires != 0) {
-					writer.writeBytes("; expires=");
-
-					Date d = new Date(cookie.expires);
-					SimpleDateFormat sf = new SimpleDateFormat(
-							"EEE, dd MMM yyyy HH:mm:ss Z");
-					writer.writeBytes(sf.format(d));
-				}
-				if (!cookie.path.equals("")) {
-					writer.writeBytes("; path=");
-					writer.writeBytes(cookie.path);
-				}
-				if (!cookie.domain.equals("")) {
-					writer.writeBytes("; domain=");
-					writer.writeBytes(cookie.domain);
+			if (cookies != null) {
+				for (Map.Entry<String, Cookie> entry : cookies.entrySet()) {
+					Cookie cookie = entry.getValue();
+					head.name("set-cookie: ");
+					head.append(entry.getKey());
+					head.append('=');
+					head.append(HttpUtils.encodeCookieValue(cookie.value));
+					if (cookie.expires != 0) {
+						head.append("; expires=");
+						head.append(HttpUtils.formatDate(cookie.expires));
+					}
+					if (!cookie.path.equals("")) {
+						head.append("; path=");
+						head.append(cookie.path);
+					}
+					if (!cookie.domain.equals("")) {
+						head.append("; domain=");
+						head.append(cookie.domain);
+					}
+					if (cookie.secure) {
+						head.append("; secure");
+					}
+					head.end();
 				}
-				if (cookie.secure) {
-					writer.writeBytes("; secure");
-				}
-				writer.writeBytes("\r\n");
 			}
 
-			writer.writeBytes("\r\n"); // empty line means END OF HEADERS
-						
-			writer.flush();
+			head.end(); // empty line means END OF HEADERS
+
+			out.pending = head;
+			
+			// the deflaters hold native memory, release it as soon as the
+			// body is complete instead of waiting for the garbage collector
+			if (compression != null) {
+				if (compression.equals("gzip")) {
+					compressor = new GZIPOutputStream(body, 8192, true) {
+						@Override
+						public void finish() throws IOException {
+							super.finish();
+							def.end();
+						}
+					};
+				} else {
+					compressor = new DeflaterOutputStream(body, new Deflater(), 8192, true) {
+						@Override
+						public void finish() throws IOException {
+							super.finish();
+							def.end();
+						}
+					};
+				}
+				body = compressor;
+			}
 		}
 	}
 
@@ -0,0 +1,741 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A connection that is driven by a selector loop of the
+ * {@link HttpSelectorEngine}. The loop reads the bytes of the client into a
+ * per-connection buffer without blocking and dispatches the connection to a
+ * worker once the request is complete. The worker sees the request through a
+ * stream that ends with the request, the response is queued and written by
+ * the loop as the client accepts it.
+ *
+ */
+class HttpSelectorConnection extends HttpConnection implements Runnable {
+
+	private static final int STATE_READING = 0, STATE_DISPATCHED = 1,
+			STATE_CLOSING = 2, STATE_CLOSED = 3;
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	private static final int WRITE_CHUNK_SIZE = 16384;
+
+	/**
+	 * the number of queued response bytes at which the worker is stopped
+	 * until the client catches up
+	 */
+	private static final int WRITE_HIGH_WATERMARK = 262144;
+
+	/**
+	 * The view of the current request for the worker. Returns the end of
+	 * stream once all the bytes of the request are consumed.
+	 *
+	 */
+	private class RequestInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0)
+				return 0;
+
+			synchronized (HttpSelectorConnection.this) {
+
+				if (remaining <= 0)
+					return -1;
+
+				long timeout = getServer().getKeepAliveConnectionTimeout();
+
+				while (start == end) {
+
+					if (eof || state == STATE_CLOSED)
+						return -1;
+
+					if (readSuspended) {
+						readSuspended = false;
+						interest(SelectionKey.OP_READ, true);
+					}
+
+					try {
+						long begin = System.currentTimeMillis();
+						HttpSelectorConnection.this.wait(timeout);
+						if (start == end && System.currentTimeMillis() - begin >= timeout)
+							throw new SocketTimeoutException("Read timed out");
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					}
+				}
+
+				int n = (int) Math.min(Math.min(len, end - start), remaining);
+
+				System.arraycopy(buffer, start, b, off, n);
+
+				start += n;
+				remaining -= n;
+
+				if (readSuspended) {
+					readSuspended = false;
+					interest(SelectionKey.OP_READ, true);
+				}
+
+				return n;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized (HttpSelectorConnection.this) {
+				return (int) Math.min(end - start, remaining);
+			}
+		}
+
+	}
+
+	/**
+	 * The response stream of the worker. Collects the bytes into chunks that
+	 * are written directly if the channel accepts them or queued for the
+	 * loop otherwise.
+	 *
+	 */
+	private class ResponseOutputStream extends OutputStream {
+
+		private ByteBuffer current = null;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (current == null)
+				current = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+
+			current.put((byte) b);
+
+			if (!current.hasRemaining())
+				flush();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			while (len > 0) {
+				if (current == null)
+					current = ByteBuffer.allocate(Math.max(WRITE_CHUNK_SIZE, len));
+
+				int n = Math.min(len, current.remaining());
+
+				current.put(b, off, n);
+				off += n;
+				len -= n;
+
+				if (!current.hasRemaining())
+					flush();
+			}
+
+		}
+
+		@Override
+		public void flush() throws IOException {
+
+			if (current == null || current.position() == 0)
+				return;
+
+			ByteBuffer b = current;
+			current = null;
+			b.flip();
+
+			enqueue(b);
+		}
+
+	}
+
+	/**
+	 * A part of a file that waits to be sent to the client.
+	 *
+	 */
+	private static class FileRegion {
+
+		private FileChannel source;
+
+		private long position, count;
+
+		public FileRegion(FileChannel source, long position, long count) {
+			this.source = source;
+			this.position = position;
+			this.count = count;
+		}
+
+		/**
+		 * Moves as many bytes as the channel accepts.
+		 *
+		 * @return the number of bytes transferred
+		 */
+		public long transferTo(SocketChannel channel) throws IOException {
+
+			long n = source.transferTo(position, count, channel);
+
+			if (n <= 0 && position >= source.size())
+				throw new EOFException("Unexpected end of file");
+
+			position += n;
+			count -= n;
+
+			return n;
+		}
+
+	}
+
+	private HttpSelectorEngine engine;
+
+	private HttpSelectorEngine.SelectorLoop loop;
+
+	private SocketChannel channel;
+
+	private SelectionKey key;
+
+	private InetAddress address;
+
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+	/**
+	 * the buffered bytes of the client are between start (inclusive) and end
+	 * (exclusive)
+	 */
+	private int start = 0, end = 0;
+
+	/**
+	 * the number of bytes of the current request that were not yet consumed
+	 */
+	private long remaining = 0;
+
+	/**
+	 * used on the loop thread to find the length of a buffered request
+	 */
+	private HttpRequestHead scanner = new HttpRequestHead();
+
+	private boolean eof = false, readSuspended = false, writeRequested = false;
+
+	private int state = STATE_READING;
+
+	private long lastActivity = System.currentTimeMillis();
+
+	/**
+	 * the last time the client accepted some of the queued response bytes
+	 * (or the time the queue was started)
+	 */
+	private long lastWrite = 0;
+
+	/**
+	 * the queued parts of the response, either byte buffers or file regions
+	 */
+	private ArrayDeque<Object> pending = new ArrayDeque<Object>();
+
+	private long pendingBytes = 0;
+
+	private RequestInputStream input = new RequestInputStream();
+
+	private ResponseOutputStream output = new ResponseOutputStream();
+
+	public HttpSelectorConnection(HttpSelectorEngine engine,
+			HttpSelectorEngine.SelectorLoop loop, SocketChannel channel) {
+		super(engine.getServer());
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+		this.address = remoteAddress(channel);
+	}
+
+	@Override
+	public InetAddress getRemoteAddress() {
+		return address;
+	}
+
+	/**
+	 * Returns the address of the client, the loopback address for the
+	 * clients of a Unix domain socket, which are on this host.
+	 */
+	private static InetAddress remoteAddress(SocketChannel channel) {
+		try {
+			SocketAddress remote = channel.getRemoteAddress();
+			if (remote instanceof InetSocketAddress)
+				return ((InetSocketAddress) remote).getAddress();
+		} catch (IOException e) {
+		}
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	@Override
+	public synchronized void close() {
+
+		if (state == STATE_CLOSED)
+			return;
+
+		state = STATE_CLOSED;
+
+		// only the registered connections were counted as open
+		if (key != null) {
+			key.cancel();
+			engine.getServer().getMetrics().connectionClosed();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+
+		pending.clear();
+		pendingBytes = 0;
+
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void reject() {
+		try {
+			output.write(REJECT_RESPONSE);
+			output.flush();
+		} catch (IOException e) {
+			close();
+			return;
+		}
+
+		state = STATE_CLOSING;
+
+		if (pending.isEmpty())
+			close();
+	}
+
+	/**
+	 * Sends the file directly from the file channel to the socket channel.
+	 * The bytes that the socket does not accept immediately are sent by the
+	 * loop when the client is ready, the worker waits until the whole region
+	 * is sent, so that the file may be closed afterwards.
+	 */
+	@Override
+	public long transfer(FileChannel source, long position, long count)
+			throws IOException {
+
+		output.flush();
+
+		synchronized (this) {
+
+			if (state == STATE_CLOSED)
+				throw new IOException("Connection closed");
+
+			FileRegion region = new FileRegion(source, position, count);
+
+			if (pending.isEmpty()) {
+				try {
+					region.transferTo(channel);
+				} catch (IOException e) {
+					close();
+					throw e;
+				}
+			}
+
+			if (region.count == 0)
+				return count;
+
+			queue(region, region.count);
+
+			while (region.count > 0)
+				awaitWrite();
+
+			return count;
+		}
+	}
+
+	/**
+	 * Registers the connection with its loop. Called on the loop thread.
+	 *
+	 */
+	synchronized void register() {
+		try {
+			key = loop.register(channel, SelectionKey.OP_READ, this);
+			engine.getServer().getMetrics().connectionOpened();
+			lastActivity = System.currentTimeMillis();
+		} catch (ClosedChannelException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Reads the available bytes of the client. Called on the loop thread.
+	 *
+	 */
+	synchronized void onReadable() throws IOException {
+
+		if (state == STATE_CLOSED)
+			return;
+
+		if (!makeRoom()) {
+			readSuspended = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+
+		int n = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+
+		if (n < 0) {
+			eof = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			notifyAll();
+			if (state == STATE_READING)
+				close();
+			return;
+		}
+
+		end += n;
+		lastActivity = System.currentTimeMillis();
+
+		if (state == STATE_DISPATCHED)
+			notifyAll();
+		else if (state == STATE_READING)
+			dispatch();
+	}
+
+	/**
+	 * Writes the queued response bytes. Called on the loop thread.
+	 *
+	 */
+	synchronized void onWritable() throws IOException {
+
+		if (state == STATE_CLOSED)
+			return;
+
+		long written = 0;
+
+		while (!pending.isEmpty()) {
+			Object item = pending.peek();
+			if (item instanceof FileRegion) {
+				FileRegion region = (FileRegion) item;
+				written += region.transferTo(channel);
+				if (region.count > 0)
+					break;
+			} else {
+				ByteBuffer b = (ByteBuffer) item;
+				written += channel.write(b);
+				if (b.hasRemaining())
+					break;
+			}
+			pending.poll();
+		}
+
+		pendingBytes -= written;
+
+		lastActivity = System.currentTimeMillis();
+
+		if (written > 0)
+			lastWrite = lastActivity;
+
+		notifyAll();
+
+		if (pending.isEmpty()) {
+			writeRequested = false;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (state == STATE_CLOSING)
+				close();
+		}
+	}
+
+	/**
+	 * Closes the connection if it was idle for too long or if the client
+	 * has not accepted any byte of the response within the write timeout.
+	 * Called on the loop thread.
+	 *
+	 */
+	synchronized void expire(long now) {
+
+		if (state == STATE_DISPATCHED) {
+			long timeout = engine.getServer().getWriteTimeout();
+			// the waiting worker is woken up by the close
+			if (timeout > 0 && !pending.isEmpty() && now - lastWrite > timeout)
+				close();
+			return;
+		}
+
+		if (state != STATE_READING && state != STATE_CLOSING)
+			return;
+
+		if (now - lastActivity > getServer().getKeepAliveConnectionTimeout())
+			close();
+	}
+
+	/**
+	 * Serves the dispatched request. Called by a worker.
+	 *
+	 */
+	public void run() {
+		proceed(false);
+	}
+
+	@Override
+	protected Runnable continuation() {
+		return new Runnable() {
+			public void run() {
+				proceed(true);
+			}
+		};
+	}
+
+	/**
+	 * Serves the dispatched request or finishes a suspended one and hands
+	 * the connection back to the loop.
+	 *
+	 * @param resumed
+	 *            <code>true</code> if a suspended request was completed
+	 */
+	private void proceed(boolean resumed) {
+
+		boolean keepAlive = false;
+
+		try {
+			int result = resumed ? resume() : serve();
+
+			// the connection stays dispatched until the request is completed
+			if (result == SUSPENDED)
+				return;
+
+			keepAlive = result == KEEP_ALIVE;
+
+			// skip the part of the request that the resource did not read,
+			// a connection that is closed does not wait for it
+			if (keepAlive) {
+				byte[] skip = new byte[1024];
+				while (input.read(skip, 0, skip.length) > 0);
+			}
+
+			output.flush();
+		} catch (Exception e) {
+			keepAlive = false;
+		}
+
+		synchronized (this) {
+
+			remaining = 0;
+
+			if (state == STATE_CLOSED)
+				return;
+
+			if (!keepAlive || eof
+					|| getRequestCount() >= getServer().getMaxKeepAliveRequestPerConnection()) {
+				state = STATE_CLOSING;
+				if (pending.isEmpty())
+					close();
+				return;
+			}
+
+			state = STATE_READING;
+			lastActivity = System.currentTimeMillis();
+		}
+
+		loop.execute(new Runnable() {
+			public void run() {
+				synchronized (HttpSelectorConnection.this) {
+					if (state != STATE_READING)
+						return;
+					readSuspended = false;
+					if (key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					// a pipelined request may already be buffered
+					dispatch();
+				}
+			}
+		});
+
+	}
+
+	/**
+	 * Checks if a complete request is buffered and hands it to a worker.
+	 * Requests that are too large to be buffered are handed over as soon as
+	 * their head is complete and their body is streamed to the worker.
+	 *
+	 */
+	private void dispatch() {
+
+		// skip the empty lines between requests
+		while (start < end && (buffer[start] == '\r' || buffer[start] == '\n'))
+			start++;
+
+		int head = HttpRequestHead.findEnd(buffer, start, end);
+
+		if (head < 0) {
+			// request head does not fit the buffer
+			if (end - start >= engine.getBufferSize())
+				close();
+			return;
+		}
+
+		long length = head - start;
+		boolean expect = false;
+
+		if (scanner.parse(buffer, start, head)) {
+			length += Math.max(0, scanner.getLongHeader("content-length", 0));
+			// the client waits for the worker to confirm before sending the body
+			expect = scanner.hasToken("expect", "100-continue");
+		}
+
+		if (end - start < length && length <= engine.getBufferSize() && !expect)
+			return;
+
+		state = STATE_DISPATCHED;
+		remaining = length;
+
+		HttpExecutor executor = engine.getServer().getExecutor();
+
+		// the executor is gone if the server is being stopped
+		if (executor == null || !executor.execute(this))
+			reject();
+	}
+
+	/**
+	 * Makes room for new bytes in the buffer by compacting it or growing it
+	 * up to the configured limit.
+	 *
+	 * @return <code>true</code> if there is room for new bytes
+	 */
+	private boolean makeRoom() {
+
+		if (end < buffer.length)
+			return true;
+
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+			return true;
+		}
+
+		if (buffer.length < engine.getBufferSize()) {
+			byte[] grown = new byte[Math.min(buffer.length * 2, engine.getBufferSize())];
+			System.arraycopy(buffer, 0, grown, 0, end);
+			buffer = grown;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void enqueue(ByteBuffer b) throws IOException {
+
+		synchronized (this) {
+
+			if (state == STATE_CLOSED)
+				throw new IOException("Connection closed");
+
+			if (pending.isEmpty()) {
+				try {
+					channel.write(b);
+				} catch (IOException e) {
+					close();
+					throw e;
+				}
+			}
+
+			if (!b.hasRemaining())
+				return;
+
+			queue(b, b.remaining());
+
+			while (pendingBytes > WRITE_HIGH_WATERMARK)
+				awaitWrite();
+		}
+
+	}
+
+	/**
+	 * Queues a part of the response for the loop.
+	 */
+	private void queue(Object item, long length) {
+
+		if (pending.isEmpty())
+			lastWrite = System.currentTimeMillis();
+
+		pending.add(item);
+		pendingBytes += length;
+
+		if (!writeRequested) {
+			writeRequested = true;
+			interest(SelectionKey.OP_WRITE, true);
+		}
+	}
+
+	/**
+	 * Waits until the loop writes some of the queued bytes. If the client
+	 * does not accept any byte within the write timeout, the connection is
+	 * closed and the write fails.
+	 */
+	private void awaitWrite() throws IOException {
+
+		if (state == STATE_CLOSED)
+			throw new IOException("Connection closed");
+
+		long timeout = engine.getServer().getWriteTimeout();
+
+		try {
+			if (timeout == 0) {
+				wait();
+				return;
+			}
+
+			long left = lastWrite + timeout - System.currentTimeMillis();
+
+			if (left <= 0) {
+				close();
+				throw new SocketTimeoutException("Write timed out");
+			}
+
+			wait(left);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+	}
+
+	private void interest(final int ops, final boolean enable) {
+
+		Runnable task = new Runnable() {
+			public void run() {
+				synchronized (HttpSelectorConnection.this) {
+					if (key == null || !key.isValid())
+						return;
+					if (enable)
+						key.interestOps(key.interestOps() | ops);
+					else
+						key.interestOps(key.interestOps() & ~ops);
+				}
+			}
+		};
+
+		if (Thread.currentThread() == loop)
+			task.run();
+		else
+			loop.execute(task);
+	}
+
+}
@@ -0,0 +1,359 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A connection engine that multiplexes all the client connections on one or
+ * a few selector loops. The loops only move bytes, a connection is handed to
+ * the executor of the server once a complete request has been received and
+ * is returned to its loop when the response has been written.
+ *
+ * The engine is configured using the following keys:
+ * <ul>
+ * <li><code>httpd.selector.count</code> - number of selector loops (default 1),
+ * if the port can be shared every loop accepts the connections of its own
+ * listening socket, otherwise the first loop accepts all of them</li>
+ * <li><code>httpd.selector.buffersize</code> - maximum number of request bytes
+ * that are buffered per connection (default 65536)</li>
+ * </ul>
+ * The options of the sockets are described in {@link HttpSocketOptions}.
+ * The engine also accepts the connections of the Unix domain socket of the
+ * server (see {@link HttpServer#getUnixPath()}), the blocking engine uses a
+ * selector engine without TCP listeners for them.
+ *
+ */
+class HttpSelectorEngine {
+
+	/**
+	 * the time the listening sockets are not accepted after an accept has
+	 * failed (usually out of file descriptors), in milliseconds, also used by
+	 * the acceptors of the blocking engine
+	 */
+	static final int ACCEPT_BACKOFF = 100;
+
+	/**
+	 * A single selector loop. The loop owns all the keys registered with its
+	 * selector, other threads communicate with it by submitting tasks.
+	 *
+	 */
+	class SelectorLoop extends Thread {
+
+		private Selector selector;
+
+		private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private long lastExpiry = System.currentTimeMillis();
+
+		/**
+		 * the listening sockets that are not accepted until resumeAccept
+		 */
+		private ArrayList<SelectionKey> pausedAccept = new ArrayList<SelectionKey>();
+
+		private long resumeAccept = 0;
+
+		public SelectorLoop(ThreadGroup group, String name) throws IOException {
+			super(group, name);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs the task on the loop thread.
+		 *
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public SelectionKey register(SocketChannel channel, int ops, Object attachment)
+				throws ClosedChannelException {
+			return channel.register(selector, ops, attachment);
+		}
+
+		/**
+		 * Stops accepting a listening socket for a moment, so that a failing
+		 * accept does not spin the loop.
+		 */
+		void pauseAccept(SelectionKey key) {
+			if (key.isValid())
+				key.interestOps(0);
+			pausedAccept.add(key);
+			resumeAccept = System.currentTimeMillis() + ACCEPT_BACKOFF;
+		}
+
+		public void run() {
+			try {
+				while (!interrupted()) {
+
+					selector.select(pausedAccept.isEmpty() ? 1000 : ACCEPT_BACKOFF);
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						if (!key.isValid())
+							continue;
+
+						if (key.isAcceptable()) {
+							accept(key, this);
+							continue;
+						}
+
+						HttpSelectorConnection connection = (HttpSelectorConnection) key.attachment();
+
+						try {
+							if (key.isReadable())
+								connection.onReadable();
+							if (key.isValid() && key.isWritable())
+								connection.onWritable();
+						} catch (IOException e) {
+							connection.close();
+						} catch (CancelledKeyException e) {
+							// closed by a worker in the meantime
+							connection.close();
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+							connection.close();
+						}
+					}
+
+					long now = System.currentTimeMillis();
+
+					if (!pausedAccept.isEmpty() && now >= resumeAccept) {
+						for (SelectionKey key : pausedAccept) {
+							if (key.isValid())
+								key.interestOps(SelectionKey.OP_ACCEPT);
+						}
+						pausedAccept.clear();
+					}
+
+					if (now - lastExpiry > 1000) {
+						lastExpiry = now;
+						for (SelectionKey key : selector.keys()) {
+							if (!(key.attachment() instanceof HttpSelectorConnection))
+								continue;
+							try {
+								((HttpSelectorConnection) key.attachment()).expire(now);
+							} catch (RuntimeException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+	}
+
+	private HttpServer server;
+
+	private ServerSocketChannel[] channels;
+
+	/**
+	 * the listening Unix domain socket, also in channels
+	 */
+	private ServerSocketChannel local;
+
+	private SelectorLoop[] loops;
+
+	/**
+	 * true if every loop has a listening socket of its own
+	 */
+	private volatile boolean ownListeners = false;
+
+	private int nextLoop = 0;
+
+	private int bufferSize;
+
+	public HttpSelectorEngine(HttpServer server) {
+		this.server = server;
+
+		bufferSize = Math.max(4096, server.getConfiguration().getInt("httpd.selector.buffersize", 65536));
+	}
+
+	/**
+	 * Binds the listening sockets and starts the loops.
+	 *
+	 * @param tcp
+	 *            listen on the TCP port of the server, otherwise only on its
+	 *            Unix domain socket with a single loop
+	 */
+	public synchronized void start(boolean tcp) throws IOException {
+
+		if (channels != null)
+			return;
+
+		int count = tcp ? Math.max(1, server.getConfiguration().getInt("httpd.selector.count", 1)) : 1;
+		ThreadGroup group = server.getThreadGroup();
+
+		ServerSocketChannel[] listeners = tcp ? server.getSocketOptions().listen(
+				server.getListenAddress(), server.getMaxQueue(), count) : new ServerSocketChannel[0];
+
+		ownListeners = listeners.length > 1;
+
+		if (server.getUnixPath() != null) {
+			try {
+				local = HttpUnixSockets.listen(server.getUnixPath(), server.getMaxQueue());
+			} catch (IOException e) {
+				for (ServerSocketChannel listener : listeners)
+					listener.close();
+				throw e;
+			}
+			listeners = Arrays.copyOf(listeners, listeners.length + 1);
+			listeners[listeners.length - 1] = local;
+		}
+
+		channels = listeners;
+
+		loops = new SelectorLoop[count];
+
+		for (int i = 0; i < count; i++) {
+			loops[i] = new SelectorLoop(group, (tcp ? "selector" : "local") + i);
+		}
+
+		// the Unix domain socket is accepted by the first loop
+		for (int i = 0; i < channels.length; i++) {
+			channels[i].configureBlocking(false);
+			channels[i].register(loops[channels[i] == local ? 0 : i].selector, SelectionKey.OP_ACCEPT);
+		}
+
+		for (SelectorLoop loop : loops)
+			loop.start();
+
+	}
+
+	public synchronized void stop() {
+
+		if (channels == null)
+			return;
+
+		for (ServerSocketChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		for (SelectorLoop loop : loops)
+			loop.interrupt();
+
+		// the file of a Unix domain socket stays after the socket is closed
+		if (local != null)
+			new File(server.getUnixPath()).delete();
+
+		channels = null;
+		local = null;
+		loops = null;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	HttpServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Accepts the pending connections of a listening socket. A failure
+	 * affects only the client that was being accepted, the loop goes on.
+	 */
+	private void accept(SelectionKey key, SelectorLoop current) {
+
+		ServerSocketChannel server = (ServerSocketChannel) key.channel();
+
+		while (true) {
+
+			SocketChannel client;
+
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				// closed by stop() or out of resources, try again later
+				if (server.isOpen()) {
+					e.printStackTrace();
+					current.pauseAccept(key);
+				}
+				return;
+			}
+
+			if (client == null)
+				return;
+
+			try {
+				client.configureBlocking(false);
+
+				// the options only apply to TCP sockets
+				if (server != local)
+					this.server.getSocketOptions().configure(client.socket());
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					client.close();
+				} catch (IOException ex) {
+				}
+				continue;
+			}
+
+			// a loop with a listening socket of its own keeps its connections
+			final SelectorLoop loop;
+
+			if (ownListeners && server != local) {
+				loop = current;
+			} else {
+				loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+			}
+
+			final HttpSelectorConnection connection = new HttpSelectorConnection(this, loop, client);
+
+			if (loop == Thread.currentThread()) {
+				connection.register();
+			} else {
+				loop.execute(new Runnable() {
+					public void run() {
+						connection.register();
+					}
+				});
+			}
+		}
+
+	}
+
+}
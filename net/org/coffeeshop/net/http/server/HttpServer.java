@@ -1,46 +1,66 @@
 package org.coffeeshop.net.http.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 
+import org.coffeeshop.application.Application;
+import org.coffeeshop.io.BufferPool;
 import org.coffeeshop.net.http.server.resource.Folder;
 import org.coffeeshop.settings.ReadableSettings;
 
 public class HttpServer implements HttpServerInformation {
 
+	/**
+	 * A thread that accepts the connections of a listening socket. Several
+	 * acceptors either share one socket or each has its own socket bound to
+	 * the same port (see {@link HttpSocketOptions}).
+	 *
+	 */
 	private class HttpServerAcceptorThread extends Thread {
 
+		private ServerSocketChannel channel;
+
+		public HttpServerAcceptorThread(ServerSocketChannel channel, String name) {
+			super(threadGroup, name);
+			this.channel = channel;
+		}
+
 		public void run() {
-			try {
+			// the socket is created by a channel so that files can be
+			// sent directly, the channel is closed to stop the acceptor
+			ServerSocket ssocket = channel.socket();
+			while (!interrupted()) {
+				Socket socket;
 				try {
-					// create the server socket
-					ServerSocket ssocket = new ServerSocket(port, maxqueue);
-					ssocket.setSoTimeout(5000); // 5 seconds
+					socket = ssocket.accept();
+				} catch (IOException e) {
+					// closed by stop() or out of resources, try again later,
+					// the socket is shared with the other acceptors
+					if (ssocket.isClosed())
+						return;
+					e.printStackTrace();
 					try {
-						while (!interrupted()) {
-							// read from the socket
-							try {
-								Socket socket = ssocket.accept();
-								handleClient(socket);
-							} catch (SocketTimeoutException e) {
-								
-							}
-						}
-					} finally {
-						ssocket.close();
-						ssocket = null;
+						sleep(HttpSelectorEngine.ACCEPT_BACKOFF);
+					} catch (InterruptedException ex) {
+						return;
 					}
-				} catch (Exception e) {
+					continue;
+				}
+				try {
+					handleClient(socket);
+				} catch (RuntimeException e) {
 					e.printStackTrace();
+					try {
+						socket.close();
+					} catch (IOException ex) {
+					}
 				}
-			} finally {
-				// interrupt ALL threads
-				threadGroup.interrupt();
 			}
-			
-			acceptor = null;
 		}
 	}
 	
@@ -50,17 +70,56 @@ public class HttpServer implements HttpServerInformation {
 
 	private InetAddress address;
 
+	/**
+	 * the address that the listening sockets are bound to, null for all the
+	 * addresses of the host
+	 */
+	private InetAddress bindAddress;
+
 	private String threadGroupName;
 	
 	private ThreadGroup threadGroup;
 
-	private int threadCounter = 0;
+	private volatile HttpExecutor executor = null;
+
+	/**
+	 * the executor was created by the server and is shut down when the
+	 * server stops, an executor given with setExecutor belongs to the caller
+	 */
+	private boolean ownExecutor = false;
+
+	private HttpServerAcceptorThread[] acceptors = null;
+
+	private ServerSocketChannel[] listeners = null;
 
-	private HttpServerAcceptorThread acceptor = null;
+	private int acceptorCount;
+
+	private HttpSocketOptions socketOptions;
+	
+	private HttpSelectorEngine selector = null;
+
+	/**
+	 * serves the Unix domain socket next to the blocking engine
+	 */
+	private HttpSelectorEngine local = null;
+
+	private String unixPath;
+	
+	private String engine;
 	
 	private int keepAliveConnectionTimeout, maxKeepAliveRequestPerConnection;
 	
+	private int writeTimeout;
+	
 	private int maxUploadSize;
+
+	private int uploadMemorySize;
+
+	/**
+	 * the memory buffers of the uploads, null if all uploads are spooled to
+	 * files
+	 */
+	private BufferPool uploadBuffers;
 	
 	private int sessionTimeout;
 	
@@ -76,6 +135,18 @@ public class HttpServer implements HttpServerInformation {
 	
 	private HttpSessionManager sessionManager;
 	
+	/**
+	 * the session log opened from <code>httpd.session.store</code>, it is
+	 * closed when the server stops and opened again when it starts
+	 */
+	private HttpSessionLog sessionLog = null;
+	
+	private File sessionLogFile = null;
+	
+	private HttpServerMetrics metrics = new HttpServerMetrics();
+	
+	private HttpAdmissionController admission = null;
+	
 	/**
 	 * the default constructor for the webserver
 	 * 
@@ -85,8 +156,8 @@ public class HttpServer implements HttpServerInformation {
 	 *            port. Preferably a port that can be changed in a settings
 	 *            file.
 	 * @param bindAddress
-	 *            the addres to bind to (use null for localhost) Use this for
-	 *            pc's with multiple ip's
+	 *            the addres to bind to (use null for all the addresses of
+	 *            the host) Use this for pc's with multiple ip's
 	 */
 	public HttpServer(int port, InetAddress bindAddress, ReadableSettings configuration) throws IllegalArgumentException {
 		super();
@@ -95,6 +166,8 @@ public class HttpServer implements HttpServerInformation {
 		
 		this.maxqueue = configuration.getInt("httpd.connection.maxqueue", 30);
 		
+		this.bindAddress = bindAddress;
+
 		if (bindAddress != null) {
 			this.address = bindAddress;
 		} else {
@@ -111,49 +184,254 @@ public class HttpServer implements HttpServerInformation {
 		this.configuration = configuration;
 		
 		this.name = configuration.getString("httpd.name", "Embedded webserver");
+		this.engine = configuration.getString("httpd.engine", "blocking");
+		this.acceptorCount = Math.max(1, configuration.getInt("httpd.acceptor.count", 1));
+		this.socketOptions = new HttpSocketOptions(configuration);
+		this.unixPath = configuration.getString("httpd.unix.path", null);
 		this.keepAliveConnectionTimeout = configuration.getInt("httpd.connection.keepalivetimeout", 2000);
-		this.maxKeepAliveRequestPerConnection = configuration.getInt("httpd.connection.keepalivecount", 10);
+		this.maxKeepAliveRequestPerConnection = configuration.getInt("httpd.connection.keepalivecount", 1000);
+		this.writeTimeout = Math.max(0, configuration.getInt("httpd.connection.writetimeout", 30000));
 		this.maxUploadSize = configuration.getInt("httpd.uploadsize", 1024 * 1024);
+		this.uploadMemorySize = Math.max(0, configuration.getInt("httpd.upload.memory", 16 * 1024));
+		this.uploadBuffers = uploadMemorySize > 0 ? new BufferPool(uploadMemorySize, 64) : null;
 		this.sessionTimeout = configuration.getInt("httpd.session.timeout", 100000);
 		this.sessionKeyName = configuration.getString("httpd.session.name", this.address.toString());
 		this.sessionAutoStart = configuration.getBoolean("httpd.session.auto", false);
 		
+		if (configuration.getBoolean("httpd.admission", false)) {
+			admission = new HttpAdmissionController(
+					configuration.getInt("httpd.admission.limit", 32),
+					configuration.getInt("httpd.admission.limit.min", 4),
+					configuration.getInt("httpd.admission.limit.max", 1000),
+					configuration.getInt("httpd.admission.latency", 0),
+					configuration.getInt("httpd.admission.retryafter", 1));
+		}
+		
 		sessionManager = new HttpSessionManager(this);
+		
+		String store = configuration.getString("httpd.session.store", null);
+		
+		if (store != null) {
+			sessionLogFile = new File(store);
+			try {
+				openSessionLog();
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
 	}
 
+	/**
+	 * Sets the executor that runs the tasks serving the connections. Must be
+	 * called before the server is started, if no executor is set, one is
+	 * created according to the configuration. The server does not shut down
+	 * an executor that was set with this method.
+	 * 
+	 * @param executor the executor
+	 * @see #createExecutor()
+	 */
+	public void setExecutor(HttpExecutor executor) {
+		if (acceptors != null || selector != null)
+			throw new IllegalStateException("Server already running");
+		
+		this.executor = executor;
+		this.ownExecutor = false;
+	}
+	
+	/**
+	 * Creates the executor described by the configuration. The type is
+	 * chosen with the <code>httpd.executor</code> key, <code>pool</code>
+	 * (default) creates a bounded pool of <code>httpd.executor.threads</code>
+	 * threads with a queue of <code>httpd.executor.queue</code> waiting tasks,
+	 * <code>virtual</code> runs each task on a virtual thread (if supported
+	 * by the JVM, otherwise a pool is created) and at most
+	 * <code>httpd.executor.threads</code> tasks at once.
+	 * 
+	 * @return new executor
+	 */
+	protected HttpExecutor createExecutor() {
+		
+		String type = configuration.getString("httpd.executor", "pool");
+		int threads = configuration.getInt("httpd.executor.threads", 64);
+		int queue = configuration.getInt("httpd.executor.queue", 128);
+		
+		if ("virtual".equalsIgnoreCase(type)) {
+			if (HttpVirtualThreadExecutor.isSupported())
+				return new HttpVirtualThreadExecutor(threads);
+			
+			Application.getApplicationLogger().report("Virtual threads not supported, using thread pool");
+		}
+		
+		return new HttpPoolExecutor(threadGroup, threads, queue, 
+				configuration.getInt("httpd.executor.idletimeout", 60000));
+		
+	}
+	
+	/**
+	 * Starts the server. The connection engine is selected with the
+	 * <code>httpd.engine</code> key of the configuration. The default
+	 * <code>blocking</code> engine serves each connection with its own thread,
+	 * the <code>selector</code> engine multiplexes the connections on a few
+	 * selector loops and only uses worker threads for complete requests.
+	 * The blocking engine accepts the connections with
+	 * <code>httpd.acceptor.count</code> threads (default 1), if the port can
+	 * be shared each of them listens on a socket of its own.
+	 * 
+	 * If <code>httpd.unix.path</code> is set, the server also listens on a
+	 * Unix domain socket at the given path (requires Java 16), local clients
+	 * can then use {@link HttpUnixClient} instead of the loopback interface.
+	 * 
+	 * @throws IllegalStateException if the engine cannot be started
+	 */
 	public void start() {
 		
-		if (acceptor != null)
+		if (acceptors != null || selector != null)
+			return;
+		
+		if (sessionLogFile != null && sessionLog == null) {
+			try {
+				openSessionLog();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		if (executor == null) {
+			executor = createExecutor();
+			ownExecutor = true;
+		}
+		
+		if ("selector".equalsIgnoreCase(engine)) {
+			
+			selector = new HttpSelectorEngine(this);
+			
+			try {
+				selector.start(true);
+			} catch (IOException e) {
+				selector = null;
+				throw new IllegalStateException(e);
+			}
+			
 			return;
+		}
+		
+		if (unixPath != null) {
+			
+			local = new HttpSelectorEngine(this);
+			
+			try {
+				local.start(false);
+			} catch (IOException e) {
+				local = null;
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		try {
+			listeners = socketOptions.listen(getListenAddress(), maxqueue, acceptorCount);
+		} catch (IOException e) {
+			if (local != null) {
+				local.stop();
+				local = null;
+			}
+			throw new IllegalStateException(e);
+		}
 		
-		acceptor = new HttpServerAcceptorThread();
+		acceptors = new HttpServerAcceptorThread[acceptorCount];
 		
-		acceptor.start();
+		for (int i = 0; i < acceptorCount; i++) {
+			acceptors[i] = new HttpServerAcceptorThread(listeners[i % listeners.length],
+					"acceptor" + i);
+		}
+		
+		for (HttpServerAcceptorThread acceptor : acceptors)
+			acceptor.start();
 	}
 
 	public void stop() {
 		
-		if (acceptor != null) {
-			acceptor.interrupt();
-			acceptor = null;
+		if (acceptors != null) {
+			// closing the sockets wakes up the acceptors
+			for (ServerSocketChannel listener : listeners) {
+				try {
+					listener.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for (HttpServerAcceptorThread acceptor : acceptors)
+				acceptor.interrupt();
+			acceptors = null;
+			listeners = null;
+			
+			// interrupt ALL threads
+			threadGroup.interrupt();
+		}
+		
+		if (local != null) {
+			local.stop();
+			local = null;
+		}
+		
+		if (selector != null) {
+			selector.stop();
+			selector = null;
+		}
+		
+		// a stopped server creates a new executor when it is started again
+		if (ownExecutor && executor != null) {
+			executor.shutdown();
+			executor = null;
+			ownExecutor = false;
+		}
+		
+		// write the changed sessions so they survive a restart
+		sessionManager.flush();
+		
+		if (sessionLog != null) {
+			if (sessionManager.getSessionStore() == sessionLog)
+				sessionManager.setSessionStore(null);
+			try {
+				sessionLog.close();
+			} catch (IOException e) {
+				Application.getApplicationLogger().report(e);
+			}
+			sessionLog = null;
 		}
 		
 	}
 	
+	private void openSessionLog() throws IOException {
+		sessionLog = new HttpSessionLog(sessionLogFile);
+		sessionManager.setSessionStore(sessionLog);
+	}
+	
 	public ReadableSettings getConfiguration() {
 		return configuration;
 	}
 	
 	/**
-	 * this method handles a single HTTP request.
+	 * this method hands a new client connection to the executor. If the
+	 * executor is saturated the client gets an immediate
+	 * <code>503 Service Unavailable</code> response.
 	 * 
 	 * @param socket
 	 *            the socket that represents the client.
 	 */
 	private void handleClient(Socket socket) {
-		HttpServerThread thread = new HttpServerThread(threadGroup, "thread"
-				+ (threadCounter++), this, socket);
-		thread.start();
+		try {
+			socketOptions.configure(socket);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		HttpSocketConnection connection = new HttpSocketConnection(this, socket);
+		
+		HttpExecutor executor = this.executor;
+		
+		// the executor is gone if the server is being stopped
+		if (executor == null || !executor.execute(new HttpServerThread(this, connection)))
+			connection.reject();
 	}
 
 	/* (non-Javadoc)
@@ -170,6 +448,17 @@ public class HttpServer implements HttpServerInformation {
 		return maxKeepAliveRequestPerConnection;
 	}
 
+	/**
+	 * Returns the write timeout (<code>httpd.connection.writetimeout</code>)
+	 * in milliseconds. A client that does not accept any byte of a response
+	 * for this long is disconnected, so that it does not hold a worker. 0
+	 * disables the timeout.
+	 * 
+	 */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.vicos.http.HttpServerInformation#getName()
 	 */
@@ -177,13 +466,31 @@ public class HttpServer implements HttpServerInformation {
 		return name;
 	}
 
-	/* (non-Javadoc)
-	 * @see com.vicos.http.HttpServerInformation#getMaxUploadSize()
+	/**
+	 * Returns the upload limit (<code>httpd.uploadsize</code>), the largest
+	 * <code>multipart/form-data</code> body that is accepted. Larger
+	 * requests are refused with <code>413 Request Entity Too Large</code>.
+	 * 
+	 * @see HttpServerInformation#getMaxUploadSize()
 	 */
 	public int getMaxUploadSize() {
 		return maxUploadSize;
 	}
 
+	/**
+	 * Returns the size of the memory buffer of an upload
+	 * (<code>httpd.upload.memory</code>), larger files are spooled to
+	 * temporary files.
+	 * 
+	 */
+	public int getUploadMemorySize() {
+		return uploadMemorySize;
+	}
+
+	BufferPool getUploadBuffers() {
+		return uploadBuffers;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.vicos.http.HttpServerInformation#getSessionTimeout()
 	 */
@@ -213,6 +520,32 @@ public class HttpServer implements HttpServerInformation {
 		return sessionManager;
 	}
 
+	/**
+	 * Returns the counters of the connections and requests of the server.
+	 * 
+	 */
+	public HttpServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the controller that sheds the requests when the server is
+	 * overloaded. The controller is enabled with the
+	 * <code>httpd.admission</code> key, <code>httpd.admission.limit</code>
+	 * sets the initial number of concurrent requests,
+	 * <code>httpd.admission.limit.min</code> and
+	 * <code>httpd.admission.limit.max</code> its bounds,
+	 * <code>httpd.admission.latency</code> the target latency in milliseconds
+	 * (adaptive if 0) and <code>httpd.admission.retryafter</code> the delay
+	 * suggested to the refused clients in seconds.
+	 * 
+	 * @return the controller or <code>null</code> if all the requests are
+	 *         admitted
+	 */
+	public HttpAdmissionController getAdmissionController() {
+		return admission;
+	}
+
 	public int getPort() {
 		return port;
 	}
@@ -221,4 +554,39 @@ public class HttpServer implements HttpServerInformation {
 		return address;
 	}
 	
+	/**
+	 * Returns the path of the Unix domain socket of the server.
+	 * 
+	 * @return the path or <code>null</code> if the server only listens on
+	 *         its TCP port
+	 */
+	public String getUnixPath() {
+		return unixPath;
+	}
+	
+	/**
+	 * Returns the socket address that the server listens on, the wildcard
+	 * address if no bind address was given.
+	 * 
+	 */
+	InetSocketAddress getListenAddress() {
+		return new InetSocketAddress(bindAddress, port);
+	}
+	
+	HttpSocketOptions getSocketOptions() {
+		return socketOptions;
+	}
+	
+	int getMaxQueue() {
+		return maxqueue;
+	}
+	
+	ThreadGroup getThreadGroup() {
+		return threadGroup;
+	}
+	
+	HttpExecutor getExecutor() {
+		return executor;
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,265 @@
+package org.coffeeshop.net.http.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters of a server: the open connections, the requests that are
+ * being served, the transferred bytes, the status codes of the responses and
+ * the latency of every route. The counters are updated by the connections
+ * without locking and can be read at any time, for instance by a
+ * {@link org.coffeeshop.net.http.server.resource.MetricsResource}.
+ *
+ */
+public class HttpServerMetrics {
+
+	/**
+	 * the route of the requests that no resource matched
+	 */
+	public static final String NO_ROUTE = "*";
+
+	/**
+	 * the number of seconds of the sliding window of the request rate
+	 */
+	private static final int RATE_WINDOW = 10;
+
+	/**
+	 * the slots of the request rate, one per second
+	 */
+	private static final int RATE_SLOTS = 16;
+
+	private final long started = System.currentTimeMillis();
+
+	private AtomicLong connections = new AtomicLong();
+
+	private AtomicLong connectionsTotal = new AtomicLong();
+
+	private AtomicLong active = new AtomicLong();
+
+	private AtomicLong requests = new AtomicLong();
+
+	private AtomicLong bytesReceived = new AtomicLong();
+
+	private AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * the responses by status code, from 100 to 599
+	 */
+	private AtomicLongArray statuses = new AtomicLongArray(500);
+
+	private AtomicLongArray rateCounts = new AtomicLongArray(RATE_SLOTS);
+
+	private AtomicLongArray rateSeconds = new AtomicLongArray(RATE_SLOTS);
+
+	private ConcurrentHashMap<String, HttpLatencyHistogram> routes = new ConcurrentHashMap<String, HttpLatencyHistogram>();
+
+	/**
+	 * Called when a connection of a client is opened.
+	 *
+	 */
+	void connectionOpened() {
+		connections.incrementAndGet();
+		connectionsTotal.incrementAndGet();
+	}
+
+	/**
+	 * Called when a connection of a client is closed.
+	 *
+	 */
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Called when a request was read and is being served.
+	 *
+	 */
+	void requestStarted() {
+		active.incrementAndGet();
+	}
+
+	/**
+	 * Called when the response to a request was sent.
+	 *
+	 * @param route
+	 *            the full name of the resource that served the request or
+	 *            {@link #NO_ROUTE}
+	 * @param status
+	 *            the status code of the response
+	 * @param nanos
+	 *            the time it took to serve the request
+	 * @param received
+	 *            the number of bytes read from the client
+	 * @param sent
+	 *            the number of bytes sent to the client
+	 */
+	void requestFinished(String route, int status, long nanos, long received, long sent) {
+
+		active.decrementAndGet();
+
+		record(status, received, sent);
+
+		// the full name of the root folder is empty
+		if (route.length() == 0)
+			route = "/";
+
+		HttpLatencyHistogram histogram = routes.get(route);
+
+		if (histogram == null) {
+			histogram = new HttpLatencyHistogram();
+			HttpLatencyHistogram previous = routes.putIfAbsent(route, histogram);
+			if (previous != null)
+				histogram = previous;
+		}
+
+		histogram.record(nanos / 1000);
+	}
+
+	/**
+	 * Called for a request that was refused before it was served.
+	 *
+	 * @param status
+	 *            the status code of the response
+	 * @param received
+	 *            the number of bytes read from the client
+	 * @param sent
+	 *            the number of bytes sent to the client
+	 */
+	void requestRefused(int status, long received, long sent) {
+		record(status, received, sent);
+	}
+
+	private void record(int status, long received, long sent) {
+
+		requests.incrementAndGet();
+
+		if (status >= 100 && status < 600)
+			statuses.incrementAndGet(status - 100);
+
+		if (received > 0)
+			bytesReceived.addAndGet(received);
+
+		if (sent > 0)
+			bytesSent.addAndGet(sent);
+
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int) (second % RATE_SLOTS);
+
+		long stamp = rateSeconds.get(slot);
+
+		// the first request of a second resets the slot, a few requests may be
+		// lost in the race, which does not matter for a rate
+		if (stamp != second && rateSeconds.compareAndSet(slot, stamp, second))
+			rateCounts.set(slot, 0);
+
+		rateCounts.incrementAndGet(slot);
+	}
+
+	/**
+	 * Returns the time the server was started.
+	 *
+	 */
+	public long getStartTime() {
+		return started;
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 *
+	 */
+	public long getOpenConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Returns the number of connections that are open but are not serving a
+	 * request (waiting for the next request of a persistent connection).
+	 *
+	 */
+	public long getIdleConnections() {
+		return Math.max(0, connections.get() - active.get());
+	}
+
+	/**
+	 * Returns the number of connections that were opened since the start.
+	 *
+	 */
+	public long getTotalConnections() {
+		return connectionsTotal.get();
+	}
+
+	/**
+	 * Returns the number of requests that are being served.
+	 *
+	 */
+	public long getActiveRequests() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of requests that were answered since the start.
+	 *
+	 */
+	public long getTotalRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the average number of requests per second over the last ten
+	 * seconds.
+	 *
+	 */
+	public double getRequestRate() {
+
+		long now = System.currentTimeMillis() / 1000;
+		long sum = 0;
+
+		// the current second is not complete yet
+		for (long second = now - RATE_WINDOW; second < now; second++) {
+			int slot = (int) (second % RATE_SLOTS);
+			if (rateSeconds.get(slot) == second)
+				sum += rateCounts.get(slot);
+		}
+
+		return (double) sum / RATE_WINDOW;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Returns the number of responses with every status code that occurred.
+	 *
+	 * @return the counts by status code in ascending order
+	 */
+	public Map<Integer, Long> getStatusCounts() {
+
+		TreeMap<Integer, Long> result = new TreeMap<Integer, Long>();
+
+		for (int i = 0; i < statuses.length(); i++) {
+			long n = statuses.get(i);
+			if (n > 0)
+				result.put(i + 100, n);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the latency histograms of the routes.
+	 *
+	 * @return the histograms by the full name of the resource, sorted by name
+	 */
+	public Map<String, HttpLatencyHistogram> getRouteLatencies() {
+		return new TreeMap<String, HttpLatencyHistogram>(routes);
+	}
+
+}
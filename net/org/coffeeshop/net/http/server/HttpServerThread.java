@@ -1,83 +1,69 @@
 package org.coffeeshop.net.http.server;
 
-import java.io.*;
-import java.net.*;
+/**
+ * The task that serves all the requests of a blocking connection. It is run
+ * by the {@link HttpExecutor} of the server.
+ *
+ */
+class HttpServerThread implements Runnable {
 
-import org.coffeeshop.application.Application;
-import org.coffeeshop.net.http.server.resource.Resource;
-
-class HttpServerThread extends Thread {
-
-	private static final int MAX_KEEPALIVE_REQUESTS = 3;
-	
-	private Socket socket;
+	private HttpSocketConnection connection;
 
 	private HttpServer server;
 
-	private HttpRequest request = null;
-
-	private HttpResponse response = null;
-
-	private HttpSession session = null;
+	/**
+	 * the task continues a connection after a suspended request
+	 */
+	private boolean resumed;
 
 	/**
 	 * The default constructor.
-	 * 
-	 * @param group
-	 *            the thread group this thread belongs to
-	 * @param name
-	 *            the name of the thread
+	 *
+	 * @param server
+	 *            a reference to the server
+	 * @param connection
+	 *            the connection of the client
+	 */
+	public HttpServerThread(HttpServer server, HttpSocketConnection connection) {
+		this(server, connection, false);
+	}
+
+	/**
+	 * Creates a task for a connection.
+	 *
 	 * @param server
 	 *            a reference to the server
-	 * @param socket
-	 *            the socket of the client
+	 * @param connection
+	 *            the connection of the client
+	 * @param resumed
+	 *            <code>true</code> if the task continues the connection after
+	 *            a suspended request was completed
 	 */
-	public HttpServerThread(ThreadGroup group, String name, HttpServer server,
-			Socket socket) {
-		super(group, name);
+	HttpServerThread(HttpServer server, HttpSocketConnection connection, boolean resumed) {
 		this.server = server;
-		this.socket = socket;
+		this.connection = connection;
+		this.resumed = resumed;
 	}
 
 	// //////////////////////////////////////////////////////////////////////////////
 	// public functions
 	// //////////////////////////////////////////////////////////////////////////////
 
-	/**
-	 * this method returns the HttpSession object
-	 * 
-	 */
-	public HttpSession getHttpSession() {
-		return session;
-	}
-
 	/**
 	 * this method returns the http server object. Required for accessing
 	 * settings and other options
-	 * 
+	 *
 	 */
 	public HttpServerInformation getServer() {
 		return this.server;
 	}
 
 	/**
-	 * Returns the current httprequest. Warning: you can only use this after the
-	 * request has been succesfully parsed
-	 * 
+	 * Returns the connection that is handled by this task.
+	 *
 	 */
-
-	public HttpRequest getHttpRequest() {
-		return this.request;
-	}
-
-	/**
-	 * Returns the current response. Warning: you can only use this after the
-	 * request has been succesfully parsed
-	 * 
-	 */
-
-	public HttpResponse getHttpResponse() {
-		return this.response;
+	public HttpConnection getConnection() {
+		return connection;
 	}
 
 	/**
@@ -85,97 +71,43 @@ class HttpServerThread extends Thread {
 	 * called by the webserver. You never should call it manually.
 	 */
 	public void run() {
+		if (!resumed)
+			server.getMetrics().connectionOpened();
+
+		// the connection is handed to another task while a request is suspended
+		boolean suspended = false;
+
 		try {
 			try {
 
-				// set the timeout settings
-				if (MAX_KEEPALIVE_REQUESTS > 0)
-					socket.setSoTimeout(server.getKeepAliveConnectionTimeout() * 1000);
-
-				// retrieve the data input stream
-				InputStream input = socket.getInputStream();
-				OutputStream output = socket.getOutputStream();
-
-				int requestCounter = 0;
-
-				do {
-					requestCounter++;
-
-					// create the request and response
-					request = new HttpRequest(this);
-					
-					// init the request object
-					int result = request
-							.init(input, socket, requestCounter > 0);
-					
-					response = new HttpResponse(this, request, output);
-
-
-					if (result != HttpResponse.HTTP_OK) {
-						if (result != 0) {
-							HttpResponse.sendErrorMessage(response, result);
-						}
-						break;
-					}
-
-					//session = server.getSessionManager().loadSessionVars(request, response);
-
-					String location = request.getLocation();
-					
-					if (location.charAt(0) == '/')
-						location = location.substring(1);
-					
-					Resource r = server.getRoot().get(location);
-
-					if (r == null) {
-						
-						HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_NOT_FOUND);
-						break;
-						
-					} else {
-						
-						try {
-							
-							r.execute(request, response);
-							
-							if (!response.isHeadersSent()) {
-								
-								if (response.getResultCode() == HttpResponse.HTTP_OK) {
-									HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_INTERNAL_ERROR);
-								} else {
-									HttpResponse.sendErrorMessage(response, response.getResultCode());
-								}
-								
-								break;
-								
-							}
-							
-						} catch (Exception e) {
-	
-							Application.getApplicationLogger().report(e);
-							HttpResponse.sendErrorMessage(response, HttpResponse.HTTP_INTERNAL_ERROR);
-							
-						}
-						
-						
-					}
-
-					output.flush();
-					
-				} while (response.isKeepAlive()
-						&& requestCounter < MAX_KEEPALIVE_REQUESTS);
+				int result;
+
+				if (resumed) {
+					result = connection.resume();
+				} else {
+					// set the timeout settings (in milliseconds)
+					connection.getSocket().setSoTimeout(server.getKeepAliveConnectionTimeout());
+
+					result = connection.serve();
+				}
+
+				// the number of requests is limited by the response, which
+				// closes the connection after the last allowed request
+				while (result == HttpConnection.KEEP_ALIVE)
+					result = connection.serve();
+
+				suspended = result == HttpConnection.SUSPENDED;
 
 				// done ?
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		} finally {
-			// always close the socket
-			try {
-				socket.close();
-			} catch (Exception e) {
-				e.printStackTrace();
+			if (!suspended) {
+				// always close the socket
+				connection.close();
+				server.getMetrics().connectionClosed();
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -15,11 +15,23 @@ public class HttpSession
 // the data member
 ////////////////////////////////////////////////////////////////////////////////
 
+    /** the session id, null if the session is not managed */
+    private String id;
+
+    /** the manager that stores the changed session, null if not managed */
+    HttpSessionManager manager = null;
+
+    /** the session variables changed since the session was stored */
+    volatile boolean dirty = false;
+
+    /** the last access time at the time the session was stored */
+    long savedAccessTime = 0;
+
     /** the last access time (System.currentTimeMillis()*/
-    long lastAccessTime=0;
+    volatile long lastAccessTime=0;
 
-    /** all session variables */
-    HashMap<String, Object> sessionVars = new HashMap<String, Object>();
+    /** all session variables, requests of the same client may run concurrently */
+    Map<String, Object> sessionVars = Collections.synchronizedMap(new HashMap<String, Object>());
 
 	/** the number of session hits
 	 * @since V1.03
@@ -36,10 +48,29 @@ public class HttpSession
      */
     public HttpSession()
     {
+        this(null);
+    }
+
+    /**
+     * construction of a session object with the given id.
+     * @param id the session id
+     */
+    HttpSession( String id )
+    {
+        this.id = id;
         lastAccessTime = System.currentTimeMillis();
         hits = 1;
     }
 
+    /**
+     * this method returns the session id
+     * @return the id or null if the session is not managed by a session manager
+     */
+    public String getId()
+    {
+        return id;
+    }
+
 ////////////////////////////////////////////////////////////////////////////////
 // session option
 ////////////////////////////////////////////////////////////////////////////////
@@ -82,7 +113,7 @@ public class HttpSession
      */
     public boolean isExpired(HttpServerInformation server) {
     	
-        return (getLastAccessTime() + server.getSessionTimeout()*1000) < System.currentTimeMillis();
+        return (getLastAccessTime() + server.getSessionTimeout()*1000L) < System.currentTimeMillis();
     }
 
 
@@ -111,6 +142,30 @@ public class HttpSession
     public void setValue( String key, Object value )
     {
         sessionVars.put(key, value);
+        markDirty();
+    }
+
+    /**
+     * this method removes a session variable
+     * @param key the name of the session variable
+     */
+    public void removeValue( String key )
+    {
+        sessionVars.remove(key);
+        markDirty();
+    }
+
+    /**
+     * call this method when a mutable session variable was changed in place,
+     * so that the change is stored.
+     */
+    public void markDirty()
+    {
+        if( !dirty && manager != null )
+        {
+            dirty = true;
+            manager.markDirty(this);
+        }
     }
 
 	/**
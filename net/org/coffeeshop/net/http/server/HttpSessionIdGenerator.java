@@ -0,0 +1,81 @@
+package org.coffeeshop.net.http.server;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates session ids. An id consists of 128 random bits from a
+ * cryptographically strong generator, encoded as 32 hexadecimal characters.
+ * Every thread has its own generator and buffers: the generators are safe
+ * for concurrent use only because they are synchronized, threads creating
+ * sessions at the same time would wait for each other on a shared one. The
+ * ids are unique with an overwhelming probability, no shared counter is
+ * needed.
+ *
+ */
+public class HttpSessionIdGenerator {
+
+	private static final int ID_BYTES = 16;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final class State {
+
+		private SecureRandom random = createRandom();
+
+		private byte[] bytes = new byte[ID_BYTES];
+
+		private char[] chars = new char[ID_BYTES * 2];
+
+	}
+
+	private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	/**
+	 * Generates a new session id.
+	 *
+	 * @return the id
+	 */
+	public String generate() {
+
+		State s = state.get();
+
+		s.random.nextBytes(s.bytes);
+
+		byte[] bytes = s.bytes;
+		char[] chars = s.chars;
+
+		for (int i = 0; i < ID_BYTES; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * Creates the generator of a thread. A DRBG is preferred (available since
+	 * Java 9), the generators that read the operating system entropy pool
+	 * on every call are avoided because they serialize the threads.
+	 *
+	 */
+	private static SecureRandom createRandom() {
+		try {
+			return SecureRandom.getInstance("DRBG");
+		} catch (NoSuchAlgorithmException e) {
+		}
+		try {
+			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			random.setSeed(new SecureRandom().generateSeed(32));
+			return random;
+		} catch (NoSuchAlgorithmException e) {
+		}
+		return new SecureRandom();
+	}
+
+}
@@ -0,0 +1,379 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A session store that appends the saved sessions to a log file. When the
+ * log is opened only the ids and the positions of the records are read, the
+ * variables of a session are read when the session is loaded. When most of
+ * the log consists of records that were replaced or removed the live
+ * records are copied to a new log.
+ *
+ * Only the variables that are {@link Serializable} are stored. Since the log
+ * is read back with Java serialization, only the common value types are
+ * restored: strings, the boxed primitives, numbers, dates, the usual
+ * collections and arrays of these. Other classes must be allowed with
+ * {@link #allow(Class)}, a variable that contains a class that is not
+ * allowed is dropped when the session is loaded.
+ *
+ */
+public class HttpSessionLog implements HttpSessionStore {
+
+	private static final byte RECORD_SAVE = 1, RECORD_REMOVE = 2;
+
+	/**
+	 * logs smaller than this are never compacted
+	 */
+	private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * the classes that are restored by default
+	 */
+	private static final String[] ALLOWED = { "java.lang.String", "java.lang.Boolean",
+			"java.lang.Character", "java.lang.Number", "java.lang.Byte", "java.lang.Short",
+			"java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double",
+			"java.math.BigInteger", "java.math.BigDecimal", "java.util.Date",
+			"java.util.ArrayList", "java.util.LinkedList", "java.util.Vector",
+			"java.util.HashMap", "java.util.LinkedHashMap", "java.util.TreeMap",
+			"java.util.Hashtable", "java.util.HashSet", "java.util.LinkedHashSet",
+			"java.util.TreeSet" };
+
+	private File file;
+
+	private RandomAccessFile log;
+
+	/**
+	 * the position and the length of the last record of every session
+	 */
+	private HashMap<String, long[]> index = new HashMap<String, long[]>();
+
+	private long live = 0;
+
+	private HashSet<String> allowed = new HashSet<String>(Arrays.asList(ALLOWED));
+
+	/**
+	 * Reads the variables of a session, refusing the classes that are not
+	 * allowed before any of their code runs.
+	 */
+	private class VariableInputStream extends ObjectInputStream {
+
+		public VariableInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+				ClassNotFoundException {
+
+			String name = desc.getName();
+
+			int dimensions = 0;
+			while (name.charAt(dimensions) == '[')
+				dimensions++;
+
+			if (dimensions > 0) {
+				String component = name.substring(dimensions);
+				// arrays of primitives
+				if (component.length() == 1)
+					return super.resolveClass(desc);
+				name = component.substring(1, component.length() - 1);
+			}
+
+			if (!allowed.contains(name))
+				throw new InvalidClassException(name, "Class not allowed in a session");
+
+			return super.resolveClass(desc);
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException,
+				ClassNotFoundException {
+			throw new InvalidClassException("Proxy classes are not allowed in a session");
+		}
+
+	}
+
+	/**
+	 * Opens a log, creating it if it does not exist.
+	 *
+	 * @param file
+	 *            the log file
+	 * @throws IOException
+	 *             if the log cannot be opened
+	 */
+	public HttpSessionLog(File file) throws IOException {
+		this.file = file;
+		open();
+	}
+
+	/**
+	 * Allows the variables of a class to be restored. The superclasses that
+	 * are serializable must be allowed too.
+	 *
+	 * @param type
+	 *            the class
+	 */
+	public synchronized void allow(Class<?> type) {
+		allowed.add(type.getName());
+	}
+
+	public synchronized void save(HttpSession session) throws IOException {
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(buffer);
+
+		out.writeByte(RECORD_SAVE);
+		out.writeUTF(session.getId());
+		out.writeLong(session.getLastAccessTime());
+		out.writeInt(session.getHits());
+
+		ByteArrayOutputStream variables = new ByteArrayOutputStream(256);
+		DataOutputStream objects = new DataOutputStream(variables);
+
+		Map<String, Object> copy;
+		synchronized (session.sessionVars) {
+			copy = new HashMap<String, Object>(session.sessionVars);
+		}
+
+		for (Map.Entry<String, Object> e : copy.entrySet()) {
+			if (!(e.getValue() == null || e.getValue() instanceof Serializable))
+				continue;
+			// every variable is written on its own, so a variable that
+			// cannot be written is simply skipped
+			ByteArrayOutputStream single = new ByteArrayOutputStream(64);
+			try {
+				ObjectOutputStream o = new ObjectOutputStream(single);
+				o.writeObject(e.getValue());
+				o.close();
+			} catch (NotSerializableException ex) {
+				continue;
+			}
+			objects.writeBoolean(true);
+			objects.writeUTF(e.getKey());
+			objects.writeInt(single.size());
+			objects.write(single.toByteArray());
+		}
+
+		objects.writeBoolean(false);
+		objects.close();
+
+		out.writeInt(variables.size());
+		variables.writeTo(out);
+		out.close();
+
+		append(session.getId(), buffer.toByteArray(), true);
+	}
+
+	public synchronized HttpSession load(String id) throws IOException {
+
+		long[] position = index.get(id);
+
+		if (position == null)
+			return null;
+
+		byte[] record = new byte[(int) position[1]];
+
+		log.seek(position[0]);
+		log.readFully(record);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+		in.readByte();
+		in.readUTF();
+
+		HttpSession session = new HttpSession(id);
+		session.lastAccessTime = in.readLong();
+		session.hits = in.readInt();
+
+		byte[] variables = new byte[in.readInt()];
+		in.readFully(variables);
+
+		DataInputStream objects = new DataInputStream(new ByteArrayInputStream(variables));
+
+		while (objects.readBoolean()) {
+			String key = objects.readUTF();
+			byte[] value = new byte[objects.readInt()];
+			objects.readFully(value);
+			try {
+				ObjectInputStream o = new VariableInputStream(new ByteArrayInputStream(value));
+				session.sessionVars.put(key, o.readObject());
+			} catch (ClassNotFoundException e) {
+				// the class is gone, drop the variable
+			} catch (InvalidClassException e) {
+				// the class is not allowed, drop the variable
+			}
+		}
+
+		return session;
+	}
+
+	public synchronized void remove(String id) throws IOException {
+
+		if (!index.containsKey(id))
+			return;
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(buffer);
+
+		out.writeByte(RECORD_REMOVE);
+		out.writeUTF(id);
+		out.close();
+
+		append(id, buffer.toByteArray(), false);
+	}
+
+	public synchronized void close() throws IOException {
+		if (log == null)
+			return;
+		log.getFD().sync();
+		log.close();
+		log = null;
+	}
+
+	/**
+	 * Returns the number of the sessions in the log.
+	 *
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	private void append(String id, byte[] record, boolean save) throws IOException {
+
+		long position = log.length();
+
+		log.seek(position);
+		log.writeInt(record.length);
+		log.write(record);
+
+		long[] previous = save ? index.put(id, new long[] { position + 4, record.length })
+				: index.remove(id);
+
+		if (previous != null)
+			live -= previous[1] + 4;
+		if (save)
+			live += record.length + 4;
+
+		if (log.length() > COMPACT_THRESHOLD && log.length() > live * 3)
+			compact();
+	}
+
+	/**
+	 * Reads the index of the log. A record that was not written completely
+	 * (the server stopped while writing it) is cut off.
+	 */
+	private void open() throws IOException {
+
+		log = new RandomAccessFile(file, "rw");
+
+		index.clear();
+		live = 0;
+
+		long position = 0;
+		long length = log.length();
+
+		while (position + 4 <= length) {
+
+			log.seek(position);
+
+			int size = log.readInt();
+
+			if (size <= 0 || position + 4 + size > length)
+				break;
+
+			byte type;
+			String id;
+
+			try {
+				type = log.readByte();
+				id = log.readUTF();
+			} catch (EOFException e) {
+				break;
+			}
+
+			long[] previous;
+
+			if (type == RECORD_SAVE) {
+				previous = index.put(id, new long[] { position + 4, size });
+				live += size + 4;
+			} else
+				previous = index.remove(id);
+
+			if (previous != null)
+				live -= previous[1] + 4;
+
+			position += 4 + size;
+		}
+
+		if (position < length)
+			log.setLength(position);
+	}
+
+	/**
+	 * Copies the live records to a new log and replaces the old one.
+	 */
+	private void compact() throws IOException {
+
+		File temporary = new File(file.getPath() + ".tmp");
+
+		RandomAccessFile compacted = new RandomAccessFile(temporary, "rw");
+
+		try {
+			compacted.setLength(0);
+
+			HashMap<String, long[]> moved = new HashMap<String, long[]>();
+
+			for (Map.Entry<String, long[]> e : index.entrySet()) {
+				byte[] record = new byte[(int) e.getValue()[1]];
+				log.seek(e.getValue()[0]);
+				log.readFully(record);
+
+				long position = compacted.getFilePointer();
+				compacted.writeInt(record.length);
+				compacted.write(record);
+
+				moved.put(e.getKey(), new long[] { position + 4, record.length });
+			}
+
+			compacted.getFD().sync();
+			compacted.close();
+			compacted = null;
+
+			log.close();
+
+			if (!temporary.renameTo(file)) {
+				file.delete();
+				if (!temporary.renameTo(file))
+					throw new IOException("Unable to replace " + file);
+			}
+
+			log = new RandomAccessFile(file, "rw");
+			index = moved;
+
+		} finally {
+			if (compacted != null)
+				compacted.close();
+			if (log == null || !log.getFD().valid())
+				open();
+		}
+	}
+
+}
@@ -2,12 +2,23 @@ package org.coffeeshop.net.http.server;
 
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-import org.coffeeshop.string.Cryptography;
+import org.coffeeshop.application.Application;
 
 /**
  * This class manages sessions. The class automaticly cleans up the sessions
  * if expired and makes it possible to retrieve the sessions for a given user.
+ * <br/>
+ * The sessions are kept in a concurrent map, so looking up a session does not
+ * lock. For the expiry every session is placed in a bucket by its deadline
+ * (rounded up to a tick). Only the buckets whose deadline has passed are
+ * visited, so the cost of the expiry depends on the number of sessions that
+ * are due and not on the number of all sessions. A session that was accessed
+ * after it was placed in a bucket is simply moved to the bucket of its new
+ * deadline when the old one is visited.
  * @author Rick Blommers
  */
 public class HttpSessionManager
@@ -17,14 +28,36 @@ public class HttpSessionManager
 ////////////////////////////////////////////////////////////////////////////////
 
     /**
-     * this hashmap contains all 'HttpSession' objects
+     * the length of a tick of the expiry in ms.
      */
-    private HashMap<String, HttpSession> sessions = new HashMap<String, HttpSession>();
+    private static final long TICK = 1000;
 
     /**
-     * the last given session id
+     * this map contains all 'HttpSession' objects
      */
-    private long sessionCounter=0;
+    private ConcurrentHashMap<String, HttpSession> sessions = new ConcurrentHashMap<String, HttpSession>();
+
+    /**
+     * the expiry buckets, the key is the tick of the deadline
+     */
+    private ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<HttpSession>> buckets =
+        new ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<HttpSession>>();
+
+    /**
+     * the persistent storage of the sessions, null if the sessions are only
+     * kept in memory
+     */
+    private volatile HttpSessionStore store = null;
+
+    /**
+     * the sessions whose variables have changed since they were stored
+     */
+    private ConcurrentLinkedQueue<HttpSession> dirty = new ConcurrentLinkedQueue<HttpSession>();
+
+    /**
+     * the generator of the session ids
+     */
+    private HttpSessionIdGenerator idGenerator = new HttpSessionIdGenerator();
 
     /**
      * the server var. Just for administration purposes
@@ -54,32 +87,12 @@ public class HttpSessionManager
 
     /**
      * this method generations unique session id's
-     * @todo not yet very secure, we need to use MD5 and a more randomness, to make it harder
-     *      to guess the sessionid
      * @return the unique session id
-     * @since V1.01 added better security with the help of MD5
+     * @see HttpSessionIdGenerator
      */
     public String generateNewSessionId()
     {
-        // the result
-        StringBuffer result = new StringBuffer(32);
-
-        // increase the session counter
-        sessionCounter++;
-
-
-        // append the date/time
-        //result.append(System.currentTimeMillis());
-
-        // generate random part
-        result.append( Cryptography.generateRandom32() ) ;
-
-        // append the unique id (this is required, only using MD5 isn't good
-        // enought, we don't have the garantee every MD5 is unique... And we
-        // don't want to mix up sessions!
-        result.append(Long.toHexString(sessionCounter));
-
-        return result.toString();
+        return idGenerator.generate();
     }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -92,7 +105,188 @@ public class HttpSessionManager
      */
     public void destroySession( HttpSession session )
     {
-        sessions.remove(session);
+        if( session.getId() != null && sessions.remove(session.getId(), session) ) unstore(session.getId());
+    }
+
+    /**
+     * this method sets the persistent storage of the sessions. The sessions
+     * whose variables change are saved to the store every second, a session
+     * that is not in memory (after a restart) is loaded from the store when
+     * it is requested for the first time.
+     * @param store the store or null to keep the sessions only in memory
+     */
+    public void setSessionStore( HttpSessionStore store )
+    {
+        this.store = store;
+    }
+
+    public HttpSessionStore getSessionStore()
+    {
+        return store;
+    }
+
+    /**
+     * this method saves the changed sessions to the store.
+     */
+    public void flush()
+    {
+        HttpSessionStore store = this.store;
+        HttpSession session;
+        while( (session = dirty.poll()) != null )
+        {
+            // changes from now on mark the session again
+            session.dirty = false;
+            if( store == null || sessions.get(session.getId()) != session ) continue;
+            try
+            {
+                session.savedAccessTime = session.getLastAccessTime();
+                store.save(session);
+            }
+            catch( Exception e )
+            {
+                Application.getApplicationLogger().report(e);
+            }
+        }
+    }
+
+    /**
+     * this method marks a session for saving
+     * @param session the session
+     */
+    void markDirty( HttpSession session )
+    {
+        if( store != null ) dirty.add(session);
+    }
+
+    private void unstore( String id )
+    {
+        HttpSessionStore store = this.store;
+        if( store == null ) return;
+        try
+        {
+            store.remove(id);
+        }
+        catch( Exception e )
+        {
+            Application.getApplicationLogger().report(e);
+        }
+    }
+
+    /**
+     * this method returns the session with the given id
+     * @param id the session id
+     * @return the session or null if there is no such session or it has expired
+     */
+    public HttpSession getSession( String id )
+    {
+        HttpSession session = sessions.get(id);
+        if( session == null ) return restore(id);
+        if( session.isExpired(server) )
+        {
+            if( sessions.remove(id, session) ) unstore(id);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * this method loads a session that is not in memory from the store
+     * @param id the session id
+     * @return the session or null if the store does not contain it or it has expired
+     */
+    private HttpSession restore( String id )
+    {
+        HttpSessionStore store = this.store;
+        if( store == null ) return null;
+
+        HttpSession session;
+        try
+        {
+            session = store.load(id);
+        }
+        catch( Exception e )
+        {
+            Application.getApplicationLogger().report(e);
+            return null;
+        }
+
+        if( session == null ) return null;
+
+        if( session.isExpired(server) )
+        {
+            unstore(id);
+            return null;
+        }
+
+        session.manager = this;
+        session.savedAccessTime = session.getLastAccessTime();
+
+        // another request may have restored it in the meantime
+        HttpSession previous = sessions.putIfAbsent(id, session);
+        if( previous != null ) return previous;
+
+        schedule(session);
+        return session;
+    }
+
+    /**
+     * this method returns the number of the active sessions
+     * @return the number of sessions
+     */
+    public int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * this method places a session in the bucket of its deadline
+     * @param session the session
+     */
+    private void schedule( HttpSession session )
+    {
+        long deadline = session.getLastAccessTime() + server.getSessionTimeout() * 1000L;
+        Long tick = Long.valueOf(deadline / TICK + 1);
+
+        ConcurrentLinkedQueue<HttpSession> bucket = buckets.get(tick);
+        if( bucket == null )
+        {
+            bucket = new ConcurrentLinkedQueue<HttpSession>();
+            ConcurrentLinkedQueue<HttpSession> previous = buckets.putIfAbsent(tick, bucket);
+            if( previous != null ) bucket = previous;
+        }
+        bucket.add(session);
+    }
+
+    /**
+     * this method removes the expired sessions. Only the buckets whose
+     * deadline has passed are visited.
+     * @param now the current time
+     */
+    void expire( long now )
+    {
+        long tick = now / TICK;
+
+        while( true )
+        {
+            Map.Entry<Long, ConcurrentLinkedQueue<HttpSession>> entry = buckets.firstEntry();
+            if( entry == null || entry.getKey().longValue() > tick ) return;
+
+            buckets.remove(entry.getKey(), entry.getValue());
+
+            HttpSession session;
+            while( (session = entry.getValue().poll()) != null )
+            {
+                // already destroyed
+                if( sessions.get(session.getId()) != session ) continue;
+
+                if( session.isExpired(server) )
+                {
+                    if( sessions.remove(session.getId(), session) ) unstore(session.getId());
+                }
+                // accessed in the meantime, wait for the new deadline
+                else schedule(session);
+            }
+        }
     }
 
 
@@ -115,38 +309,35 @@ public class HttpSessionManager
 			HttpSession session=null;
 
 			// first try to find the given cookie
-			boolean found=false;
 			String id = request.getCookie(server.getSessionKeyName(),"");
 			if( !id.equals("") )
 			{
 				// check if the cookie still exists
-				synchronized( sessions )
+				session = getSession(id);
+				if( session != null )
 				{
-					// check if the session contains the key
-					if( sessions.containsKey(id) )
-					{
-						// check for timeout
-						session = (HttpSession)sessions.get(id);
-						if( !session.isExpired(server) )
-						{
-							session.access();
-							found = true;
-						}
-						else sessions.remove(session);
-					}
+					session.access();
+					// keep the stored access time reasonably recent, so the
+					// session does not expire early after a restart
+					if( session.getLastAccessTime() - session.savedAccessTime > server.getSessionTimeout() * 250L )
+						session.markDirty();
 				}
 			}
 			// not found ? Create the session
-			if( !found )
+			if( session == null )
 			{
-				synchronized( sessions )
+				// create the session object, the ids are random so a
+				// collision is practically impossible, but never reuse one
+				do
 				{
-					// create the session object
-					session = new HttpSession();
 					id = generateNewSessionId();
-					sessions.put(id,session);
-					response.setCookie(server.getSessionKeyName(),id);
+					session = new HttpSession(id);
+					session.manager = this;
 				}
+				while( sessions.putIfAbsent(id,session) != null );
+				schedule(session);
+				session.markDirty();
+				response.setCookie(server.getSessionKeyName(),id);
 			}
 			return session;
 		}
@@ -177,31 +368,16 @@ public class HttpSessionManager
                 e.printStackTrace();
             }
         }
-        /** the main 'check' loop. Garbage collects every 30 seconds */
+        /** the main 'check' loop. Removes the expired sessions every tick */
         public void run()
         {
             try
             {
                 while( !interrupted() )
                 {
-                    sleep(30000);
-                    synchronized( sessions )
-                    {
-                        // check ALL sessions
-                        Iterator<String> i = sessions.keySet().iterator();
-                        while( i.hasNext() )
-                        {
-                            // get the session
-                            String key = (String)i.next();
-                            HttpSession session = (HttpSession)sessions.get(key);
-
-                            // timeout happend
-                            if( session.isExpired(server) )
-                            {
-                                i.remove(); // Fixed memory leak, thanks Gabriel Klein!
-                            }
-                        }
-                    }
+                    sleep(TICK);
+                    expire(System.currentTimeMillis());
+                    flush();
                 }
             }
             catch( InterruptedException e )
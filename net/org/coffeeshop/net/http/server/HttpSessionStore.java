@@ -0,0 +1,55 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.IOException;
+
+/**
+ * A persistent storage of sessions, used by the {@link HttpSessionManager}
+ * to keep the sessions when the server is restarted. The manager saves the
+ * sessions whose variables have changed and loads a session from the store
+ * when it is requested for the first time after a restart.
+ *
+ * @see HttpSessionLog
+ */
+public interface HttpSessionStore {
+
+	/**
+	 * Saves the current state of a session.
+	 *
+	 * @param session
+	 *            the session
+	 * @throws IOException
+	 *             if the session cannot be written
+	 */
+	public void save(HttpSession session) throws IOException;
+
+	/**
+	 * Loads a session.
+	 *
+	 * @param id
+	 *            the id of the session
+	 * @return the session or <code>null</code> if the store does not contain
+	 *         a session with that id
+	 * @throws IOException
+	 *             if the session cannot be read
+	 */
+	public HttpSession load(String id) throws IOException;
+
+	/**
+	 * Removes a session from the store.
+	 *
+	 * @param id
+	 *            the id of the session
+	 * @throws IOException
+	 *             if the store cannot be written
+	 */
+	public void remove(String id) throws IOException;
+
+	/**
+	 * Writes any pending data and releases the store.
+	 *
+	 * @throws IOException
+	 *             if the store cannot be written
+	 */
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,117 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection that is served over a blocking socket. Used by the
+ * default thread-per-connection engine.
+ *
+ */
+class HttpSocketConnection extends HttpConnection {
+
+	private Socket socket;
+
+	private HttpServer server;
+
+	public HttpSocketConnection(HttpServer server, Socket socket) {
+		super(server);
+		this.server = server;
+		this.socket = socket;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	@Override
+	public InetAddress getRemoteAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	/**
+	 * Sends the file directly from the file channel to the socket channel
+	 * (using <code>sendfile</code> where the operating system supports it)
+	 * if the socket was accepted by a channel, falls back to copying
+	 * otherwise.
+	 */
+	@Override
+	public long transfer(FileChannel source, long position, long count)
+			throws IOException {
+
+		SocketChannel channel = socket.getChannel();
+
+		if (channel == null || !channel.isBlocking())
+			return super.transfer(source, position, count);
+
+		getOutputStream().flush();
+
+		long total = 0;
+
+		while (count > 0) {
+			long n = source.transferTo(position, count, channel);
+
+			if (n <= 0 && position >= source.size())
+				throw new EOFException("Unexpected end of file");
+
+			position += n;
+			count -= n;
+			total += n;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Sends the head and the body with one gathering write if the socket was
+	 * accepted by a channel.
+	 */
+	@Override
+	public void gather(byte[] head, int headLength, byte[] body, int offset, int length)
+			throws IOException {
+
+		SocketChannel channel = socket.getChannel();
+
+		if (channel == null || !channel.isBlocking() || length == 0) {
+			super.gather(head, headLength, body, offset, length);
+			return;
+		}
+
+		ByteBuffer[] buffers = { ByteBuffer.wrap(head, 0, headLength), ByteBuffer.wrap(body, offset, length) };
+
+		while (buffers[1].hasRemaining())
+			channel.write(buffers);
+	}
+
+	@Override
+	protected Runnable continuation() {
+		return new HttpServerThread(server, this, true);
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import org.coffeeshop.settings.ReadableSettings;
+
+/**
+ * The options of the listening and the client sockets of a server. The
+ * options are configured using the following keys:
+ * <ul>
+ * <li><code>httpd.socket.reuseaddress</code> - allows binding the port while
+ * old connections are in <code>TIME_WAIT</code> (default true)</li>
+ * <li><code>httpd.socket.reuseport</code> - lets several listening sockets
+ * share the port, the system balances the new connections among them
+ * (default true, used only with several acceptors and only if the JVM and the
+ * system support <code>SO_REUSEPORT</code>)</li>
+ * <li><code>httpd.socket.nodelay</code> - disables the Nagle algorithm on the
+ * client sockets (default true)</li>
+ * <li><code>httpd.socket.keepalive</code> - enables TCP keep-alive probes on
+ * the client sockets (default false)</li>
+ * <li><code>httpd.socket.receivebuffer</code> - size of the receive buffers
+ * in bytes, set on the listening socket so that it also applies to the
+ * window of the accepted connections (default 0, system default)</li>
+ * <li><code>httpd.socket.sendbuffer</code> - size of the send buffers of the
+ * client sockets in bytes (default 0, system default)</li>
+ * </ul>
+ *
+ */
+class HttpSocketOptions {
+
+	/**
+	 * <code>StandardSocketOptions.SO_REUSEPORT</code>, only available since
+	 * Java 9 and looked up by name, <code>null</code> if not available
+	 */
+	private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+	private boolean reuseAddress;
+
+	private boolean reusePort;
+
+	private boolean noDelay;
+
+	private boolean keepAlive;
+
+	private int receiveBuffer;
+
+	private int sendBuffer;
+
+	public HttpSocketOptions(ReadableSettings configuration) {
+		reuseAddress = configuration.getBoolean("httpd.socket.reuseaddress", true);
+		reusePort = configuration.getBoolean("httpd.socket.reuseport", true);
+		noDelay = configuration.getBoolean("httpd.socket.nodelay", true);
+		keepAlive = configuration.getBoolean("httpd.socket.keepalive", false);
+		receiveBuffer = Math.max(0, configuration.getInt("httpd.socket.receivebuffer", 0));
+		sendBuffer = Math.max(0, configuration.getInt("httpd.socket.sendbuffer", 0));
+	}
+
+	/**
+	 * Opens and binds listening sockets. If several sockets are requested
+	 * and the port can be shared with <code>SO_REUSEPORT</code>, each socket
+	 * is bound to the port on its own, otherwise a single socket is returned.
+	 *
+	 * @param address
+	 *            the address to bind to
+	 * @param backlog
+	 *            the maximum number of pending connections of a socket
+	 * @param count
+	 *            the number of sockets wanted
+	 * @return the bound sockets, at least one
+	 * @throws IOException
+	 *             if a socket cannot be bound, no socket is left open
+	 */
+	public ServerSocketChannel[] listen(InetSocketAddress address, int backlog, int count)
+			throws IOException {
+
+		boolean shared = count > 1 && reusePort && SO_REUSEPORT != null;
+
+		ServerSocketChannel[] channels = new ServerSocketChannel[shared ? count : 1];
+
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				channels[i] = ServerSocketChannel.open();
+
+				channels[i].setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+
+				if (shared) {
+					if (!channels[i].supportedOptions().contains(SO_REUSEPORT))
+						throw new IOException("SO_REUSEPORT not supported");
+					channels[i].setOption(SO_REUSEPORT, true);
+				}
+
+				if (receiveBuffer > 0)
+					channels[i].setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+
+				channels[i].bind(address, backlog);
+			}
+		} catch (IOException e) {
+			for (ServerSocketChannel channel : channels) {
+				if (channel != null)
+					channel.close();
+			}
+			throw e;
+		}
+
+		return channels;
+	}
+
+	/**
+	 * Applies the options to an accepted client socket.
+	 */
+	public void configure(Socket socket) throws IOException {
+
+		// responses are written in several parts on persistent
+		// connections, do not let them wait for the acknowledgements
+		socket.setTcpNoDelay(noDelay);
+
+		if (keepAlive)
+			socket.setKeepAlive(true);
+
+		if (sendBuffer > 0)
+			socket.setSendBufferSize(sendBuffer);
+	}
+
+	/**
+	 * Checks if listening sockets can share a port in this JVM.
+	 */
+	public static boolean isReusePortSupported() {
+		return SO_REUSEPORT != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+}
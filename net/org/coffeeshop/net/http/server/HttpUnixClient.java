@@ -0,0 +1,194 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * A minimal client for a server that listens on a Unix domain socket (see
+ * {@link HttpServer#getUnixPath()}). Every request is sent as HTTP/1.0 on a
+ * connection of its own and the whole response is read into memory, which
+ * suits the short calls of local processes. Requires Java 16 or newer.
+ *
+ */
+public class HttpUnixClient {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * A response received by the client.
+	 *
+	 */
+	public static class Response {
+
+		private int status;
+
+		private HashMap<String, String> headers = new HashMap<String, String>();
+
+		private byte[] body;
+
+		/**
+		 * Returns the result code of the response.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the value of a header.
+		 *
+		 * @param name
+		 *            the name of the header (case insensitive, without the
+		 *            colon)
+		 * @return the value or <code>null</code> if the header was not sent
+		 */
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * Returns the body of the response.
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+	}
+
+	private String path;
+
+	/**
+	 * Creates a client for a socket path.
+	 *
+	 * @param path
+	 *            the path of the socket file of the server
+	 */
+	public HttpUnixClient(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * Checks if the JVM supports Unix domain sockets.
+	 */
+	public static boolean isSupported() {
+		return HttpUnixSockets.isSupported();
+	}
+
+	/**
+	 * Opens a connection to the server, for callers that speak HTTP
+	 * themselves.
+	 *
+	 * @return the connected channel in blocking mode
+	 */
+	public SocketChannel connect() throws IOException {
+		return HttpUnixSockets.connect(path);
+	}
+
+	/**
+	 * Sends a <code>GET</code> request.
+	 *
+	 * @param location
+	 *            the location including the query, e.g. <code>/status?x=1</code>
+	 */
+	public Response get(String location) throws IOException {
+		return request("GET", location, null, null);
+	}
+
+	/**
+	 * Sends a request.
+	 *
+	 * @param method
+	 *            the method of the request
+	 * @param location
+	 *            the location including the query
+	 * @param contentType
+	 *            the type of the body or <code>null</code>
+	 * @param body
+	 *            the body or <code>null</code>
+	 * @return the response of the server
+	 * @throws IOException
+	 *             if the connection fails or the response is malformed
+	 */
+	public Response request(String method, String location, String contentType, byte[] body)
+			throws IOException {
+
+		StringBuilder head = new StringBuilder(128);
+
+		head.append(method).append(' ').append(location).append(" HTTP/1.0\r\n");
+		head.append("Host: localhost\r\n");
+
+		if (body != null) {
+			if (contentType != null)
+				head.append("Content-Type: ").append(contentType).append("\r\n");
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+
+		head.append("\r\n");
+
+		SocketChannel channel = connect();
+
+		try {
+			OutputStream out = Channels.newOutputStream(channel);
+			out.write(head.toString().getBytes(ISO_8859_1));
+			if (body != null)
+				out.write(body);
+			out.flush();
+
+			// the server closes the connection after the response
+			InputStream in = Channels.newInputStream(channel);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0)
+				data.write(buffer, 0, n);
+
+			return parse(data.toByteArray());
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static Response parse(byte[] data) throws IOException {
+
+		int end = -1;
+		for (int i = 0; i + 3 < data.length; i++) {
+			if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+				end = i;
+				break;
+			}
+		}
+
+		if (end < 0)
+			throw new IOException("Incomplete response");
+
+		String[] lines = new String(data, 0, end, ISO_8859_1).split("\r\n");
+
+		Response response = new Response();
+
+		String[] status = lines[0].split(" ", 3);
+
+		try {
+			response.status = Integer.parseInt(status[1]);
+		} catch (Exception e) {
+			throw new IOException("Malformed status line: " + lines[0]);
+		}
+
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0)
+				response.headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+						lines[i].substring(colon + 1).trim());
+		}
+
+		response.body = new byte[data.length - end - 4];
+		System.arraycopy(data, end + 4, response.body, 0, response.body.length);
+
+		return response;
+	}
+
+}
@@ -0,0 +1,134 @@
+package org.coffeeshop.net.http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens Unix domain sockets. The sockets are available since Java 16
+ * (<code>StandardProtocolFamily.UNIX</code> and
+ * <code>UnixDomainSocketAddress</code>), the classes are looked up by name so
+ * that the server still runs on older JVMs without them.
+ *
+ */
+class HttpUnixSockets {
+
+	private static ProtocolFamily family = null;
+
+	private static Method address = null, openServer = null, openClient = null;
+
+	static {
+		try {
+			family = StandardProtocolFamily.valueOf("UNIX");
+			address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			openClient = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (Exception e) {
+			family = null;
+		}
+	}
+
+	/**
+	 * Checks if the JVM supports Unix domain sockets.
+	 */
+	public static boolean isSupported() {
+		return family != null;
+	}
+
+	/**
+	 * Binds a listening socket to a path. A file that is left at the path by
+	 * a server that did not stop cleanly is removed, a path where another
+	 * server is listening is refused.
+	 *
+	 * @param path
+	 *            the path of the socket file
+	 * @param backlog
+	 *            the maximum number of pending connections
+	 * @return the bound socket
+	 * @throws IOException
+	 *             if the socket cannot be bound or the JVM does not support
+	 *             Unix domain sockets
+	 */
+	public static ServerSocketChannel listen(String path, int backlog) throws IOException {
+
+		SocketAddress local = address(path);
+
+		File file = new File(path);
+
+		if (file.exists()) {
+			try {
+				connect(path).close();
+				throw new BindException("Address already in use: " + path);
+			} catch (BindException e) {
+				throw e;
+			} catch (IOException e) {
+				// nobody is listening
+				if (!file.delete())
+					throw new BindException("Cannot remove " + path);
+			}
+		}
+
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(openServer, family);
+
+		try {
+			channel.bind(local, backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Connects to a socket path.
+	 *
+	 * @param path
+	 *            the path of the socket file
+	 * @return the connected channel in blocking mode
+	 * @throws IOException
+	 *             if the connection fails or the JVM does not support Unix
+	 *             domain sockets
+	 */
+	public static SocketChannel connect(String path) throws IOException {
+
+		SocketAddress remote = address(path);
+
+		SocketChannel channel = (SocketChannel) invoke(openClient, family);
+
+		try {
+			channel.connect(remote);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	private static SocketAddress address(String path) throws IOException {
+		if (!isSupported())
+			throw new IOException("Unix domain sockets require Java 16 or newer");
+		return (SocketAddress) invoke(address, path);
+	}
+
+	private static Object invoke(Method method, Object argument) throws IOException {
+		try {
+			return method.invoke(null, argument);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
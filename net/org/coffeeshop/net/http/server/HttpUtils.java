@@ -1,13 +1,122 @@
 package org.coffeeshop.net.http.server;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import org.coffeeshop.string.StringUtils;
 
 public class HttpUtils {
 
+	/**
+	 * the date formats are not thread safe, every thread gets its own
+	 */
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	/**
+	 * this method formats a time as an HTTP date (RFC 1123), for instance
+	 * <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+	 * 
+	 * @param time
+	 *            the time in milliseconds since the Unix-epoch
+	 * @return the formatted date
+	 */
+	public static String formatDate(long time) {
+		return dateFormat.get().format(new Date(time));
+	}
+
+	/**
+	 * The current date, formatted once per second.
+	 */
+	private static class CachedDate {
+
+		private final long second;
+
+		private final String value;
+
+		public CachedDate(long second, String value) {
+			this.second = second;
+			this.value = value;
+		}
+
+	}
+
+	private static volatile CachedDate currentDate = new CachedDate(-1, null);
+
+	/**
+	 * this method returns the current time as an HTTP date. The date is
+	 * formatted at most once per second, all the responses within the same
+	 * second share it.
+	 * 
+	 * @return the formatted current date
+	 */
+	public static String currentDate() {
+		long second = System.currentTimeMillis() / 1000;
+		CachedDate date = currentDate;
+		if (date.second != second) {
+			date = new CachedDate(second, formatDate(second * 1000));
+			currentDate = date;
+		}
+		return date.value;
+	}
+
+	/**
+	 * this method URL-encodes the value of a cookie. Values that need no
+	 * encoding (the common case of identifiers and numbers) are returned as
+	 * they are.
+	 * 
+	 * @param value
+	 *            the value of the cookie
+	 * @return the encoded value
+	 */
+	public static String encodeCookieValue(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '.' || c == '-' || c == '*' || c == '_')) {
+				try {
+					return URLEncoder.encode(value, "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					return value;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * this method safely parses an HTTP date (RFC 1123)
+	 * 
+	 * @param value
+	 *            the date to parse
+	 * @param def
+	 *            the value to return if the date is malformed
+	 * @return the time in milliseconds since the Unix-epoch (or def if a
+	 *         parse exception occured)
+	 */
+	public static long parseDate(String value, long def) {
+		if (value == null)
+			return def;
+		try {
+			return dateFormat.get().parse(value.trim()).getTime();
+		} catch (ParseException e) {
+		}
+		return def;
+	}
+
 	/**
 	 * this method safely parses a long
 	 * 
@@ -0,0 +1,96 @@
+package org.coffeeshop.net.http.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An executor that runs every task on its own virtual thread. Virtual
+ * threads are only available on Java 21 or newer, use
+ * {@link #isSupported()} to check if the running JVM provides them.
+ * 
+ * The number of concurrently running tasks can be limited, tasks above the
+ * limit are rejected.
+ * 
+ */
+public class HttpVirtualThreadExecutor implements HttpExecutor {
+
+	private static Method factory = null;
+
+	static {
+		try {
+			factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			// the method exists as a preview on Java 19 and 20 and fails
+			// unless the preview features are enabled
+			((ExecutorService) factory.invoke(null)).shutdown();
+		} catch (Exception e) {
+			factory = null;
+		}
+	}
+
+	/**
+	 * Checks if the running JVM supports virtual threads.
+	 * 
+	 * @return <code>true</code> if virtual threads are available
+	 */
+	public static boolean isSupported() {
+		return factory != null;
+	}
+
+	private ExecutorService executor;
+
+	private Semaphore permits;
+
+	/**
+	 * Creates a new executor.
+	 * 
+	 * @param limit
+	 *            the maximum number of concurrently running tasks, 0 means no
+	 *            limit
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not supported by the JVM
+	 */
+	public HttpVirtualThreadExecutor(int limit) {
+
+		if (factory == null)
+			throw new UnsupportedOperationException("Virtual threads are not supported");
+
+		try {
+			executor = (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported", e);
+		}
+
+		permits = limit > 0 ? new Semaphore(limit) : null;
+	}
+
+	public boolean execute(final Runnable task) {
+
+		if (permits != null && !permits.tryAcquire())
+			return false;
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						if (permits != null)
+							permits.release();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			if (permits != null)
+				permits.release();
+			return false;
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+}
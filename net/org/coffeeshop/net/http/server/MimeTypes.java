@@ -12,6 +12,8 @@ public class MimeTypes
 {
     /** this array contains all supported mime-types, detectable by extension */
     private static HashMap<String, String> ext2mime = new HashMap<String, String>();
+    /** the non-text mime types that compress well */
+    private static HashSet<String> compressible = new HashSet<String>();
     static
     {
         // text
@@ -33,8 +35,20 @@ public class MimeTypes
         ext2mime.put(".avi","video/avi");
         // misc
         ext2mime.put(".js", "application/x-javascript" );
+        ext2mime.put(".json", "application/json" );
+        ext2mime.put(".xml", "application/xml" );
+        ext2mime.put(".svg", "image/svg+xml" );
         
         ext2mime.put(".tar", "application/x-tar");
+
+        compressible.add("application/x-javascript");
+        compressible.add("application/javascript");
+        compressible.add("application/json");
+        compressible.add("application/xml");
+        compressible.add("application/xhtml+xml");
+        compressible.add("application/x-tar");
+        compressible.add("image/svg+xml");
+        compressible.add("image/bmp");
     }
 
 
@@ -67,6 +81,25 @@ public class MimeTypes
         return "text/plain";
     }
 
+    /**
+     * This method checks if the content of the given type is worth
+     * compressing. Text formats compress well, most binary formats (images,
+     * audio, video, archives) are already compressed.
+     * 
+     * @param mimeType the mime type (parameters such as the charset are
+     *      ignored)
+     * @return true if the content should be compressed
+     */
+    public static boolean isCompressible(String mimeType)
+    {
+        if( mimeType == null ) return false;
+        mimeType = mimeType.toLowerCase();
+        int i = mimeType.indexOf(';');
+        if( i >= 0 ) mimeType = mimeType.substring(0, i).trim();
+        if( mimeType.startsWith("text/") ) return true;
+        return compressible.contains(mimeType);
+    }
+
 	public static void addMimeType( String extension, String mimeType )
 	{
 		ext2mime.put( extension, mimeType );
@@ -0,0 +1,100 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.coffeeshop.net.http.server.HttpCompletion;
+import org.coffeeshop.net.http.server.HttpRequest;
+import org.coffeeshop.net.http.server.HttpResponse;
+
+/**
+ * A resource that answers the requests asynchronously. The server hands the
+ * request to {@link #execute(HttpRequest, HttpResponse, HttpCompletion)} and
+ * releases its thread when the method returns, the resource may wait for a
+ * slow backend without holding a thread of the server and write the response
+ * later from any thread. The response is finished when the resource calls the
+ * completion.
+ *
+ * <pre>
+ * new AsyncResource(&quot;quote&quot;, root) {
+ * 	public void execute(HttpRequest request, final HttpResponse response,
+ * 			final HttpCompletion completion) {
+ * 		backend.query(new Callback() {
+ * 			public void done(byte[] result) {
+ * 				try {
+ * 					response.sendContent(result);
+ * 					completion.complete();
+ * 				} catch (IOException e) {
+ * 					completion.fail(e);
+ * 				}
+ * 			}
+ * 		});
+ * 	}
+ * };
+ * </pre>
+ *
+ */
+public abstract class AsyncResource extends Resource {
+
+	public AsyncResource(String name, Folder parent) {
+		super(name, parent);
+	}
+
+	/**
+	 * Starts to serve a request. The method should return as soon as the
+	 * request is handed over, the response may be written after the method
+	 * returned. The request, the response and their streams must not be used
+	 * after the completion was called.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param completion
+	 *            the completion that must be called once the response is
+	 *            written
+	 * @throws Exception
+	 *             an exception completes the request with an error, the
+	 *             resource must not use the response afterwards
+	 */
+	public abstract void execute(HttpRequest request, HttpResponse response, HttpCompletion completion)
+			throws Exception;
+
+	/**
+	 * Serves a request synchronously, the calling thread waits until the
+	 * resource completes the response. Used when the resource is called by
+	 * another resource, for instance as the default child of a folder.
+	 */
+	@Override
+	public void execute(HttpRequest request, HttpResponse response) throws Exception {
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final Throwable[] failure = new Throwable[1];
+
+		execute(request, response, new HttpCompletion() {
+
+			public void complete() {
+				done.countDown();
+			}
+
+			public void fail(Throwable error) {
+				synchronized (failure) {
+					// only the first call counts
+					if (done.getCount() > 0 && failure[0] == null)
+						failure[0] = error;
+					done.countDown();
+				}
+			}
+
+		});
+
+		done.await();
+
+		synchronized (failure) {
+			if (failure[0] instanceof Exception)
+				throw (Exception) failure[0];
+			if (failure[0] != null)
+				throw new Exception(failure[0]);
+		}
+	}
+
+}
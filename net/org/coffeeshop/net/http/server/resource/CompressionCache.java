@@ -0,0 +1,159 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.coffeeshop.cache.MemoryCache;
+
+/**
+ * A cache of the <code>gzip</code> compressed variants of static resources.
+ * The entries are keyed by the path and the modification time of the
+ * resource, so that a resource is compressed only once and compressed again
+ * when it changes. The cache is bounded by the total size of the compressed
+ * data, the least recently used entries are dropped first.
+ *
+ */
+public class CompressionCache {
+
+	private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+
+	/**
+	 * the size that is accounted for an entry besides its data, so that the
+	 * entries of the resources that are not compressible are bounded too
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private static CompressionCache shared = new CompressionCache(16 * 1024 * 1024, 1024 * 1024);
+
+	private static class Entry {
+
+		private long modified;
+
+		private byte[] data;
+
+		public Entry(long modified, byte[] data) {
+			this.modified = modified;
+			this.data = data;
+		}
+
+	}
+
+	private MemoryCache<String, Entry> entries;
+
+	private int maximumEntrySize;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param capacity
+	 *            the maximum total size of the compressed data in bytes
+	 * @param maximumEntrySize
+	 *            the size of the largest resource that is compressed
+	 */
+	public CompressionCache(long capacity, int maximumEntrySize) {
+		this.maximumEntrySize = maximumEntrySize;
+
+		entries = new MemoryCache<String, Entry>(capacity) {
+			@Override
+			protected long getDataLength(Entry entry) {
+				return entry.data.length + ENTRY_OVERHEAD;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cache that is shared by the static resources of all the
+	 * servers.
+	 *
+	 */
+	public static CompressionCache getSharedCache() {
+		return shared;
+	}
+
+	/**
+	 * Returns the size of the largest resource that is compressed. Larger
+	 * resources should be sent as they are.
+	 *
+	 */
+	public int getMaximumEntrySize() {
+		return maximumEntrySize;
+	}
+
+	/**
+	 * Returns the compressed variant of a resource.
+	 *
+	 * @param key
+	 *            the path of the resource
+	 * @param modified
+	 *            the modification time of the resource
+	 * @return the compressed data, an empty array if the resource does not
+	 *         get smaller when compressed or <code>null</code> if the
+	 *         resource is not in the cache
+	 */
+	public byte[] get(String key, long modified) {
+		Entry entry = entries.query(key);
+
+		if (entry == null)
+			return null;
+
+		if (entry.modified != modified) {
+			entries.remove(key);
+			return null;
+		}
+
+		return entry.data;
+	}
+
+	/**
+	 * Compresses a resource and stores the compressed variant.
+	 *
+	 * @param key
+	 *            the path of the resource
+	 * @param modified
+	 *            the modification time of the resource
+	 * @param in
+	 *            the content of the resource, the stream is not closed
+	 * @return the compressed data or an empty array if the resource does not
+	 *         get smaller when compressed
+	 * @throws IOException
+	 *             if the resource cannot be read
+	 */
+	public byte[] compress(String key, long modified, InputStream in) throws IOException {
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		GZIPOutputStream compressor = new GZIPOutputStream(buffer, 8192);
+
+		long length = 0;
+
+		try {
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = in.read(b)) > 0) {
+				compressor.write(b, 0, n);
+				length += n;
+			}
+		} finally {
+			compressor.close();
+		}
+
+		byte[] data = buffer.toByteArray();
+
+		if (data.length >= length)
+			data = NOT_COMPRESSIBLE;
+
+		entries.insert(key, new Entry(modified, data));
+
+		return data;
+	}
+
+	/**
+	 * Removes all the entries.
+	 *
+	 */
+	public void clear() {
+		entries.flush();
+	}
+
+}
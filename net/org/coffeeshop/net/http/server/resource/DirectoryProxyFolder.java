@@ -1,16 +1,12 @@
 package org.coffeeshop.net.http.server.resource;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.OutputStream;
 import java.util.HashMap;
 
-import org.coffeeshop.io.Streams;
 import org.coffeeshop.net.html.SimpleHtmlDocument;
 import org.coffeeshop.net.html.Snippets;
 import org.coffeeshop.net.http.server.HttpRequest;
 import org.coffeeshop.net.http.server.HttpResponse;
-import org.coffeeshop.net.http.server.MimeTypes;
 
 public class DirectoryProxyFolder extends ProxyFolder {
 
@@ -51,6 +47,8 @@ public class DirectoryProxyFolder extends ProxyFolder {
 				
 			}
 			
+			response.enableCompression();
+			
 			SimpleHtmlDocument document = new SimpleHtmlDocument("Listing for " + request.getLocation());
 			
 			document.append(Snippets.htmlTitle("Listing for " + request.getLocation()));
@@ -63,15 +61,7 @@ public class DirectoryProxyFolder extends ProxyFolder {
 		}
 
 		if (file.isFile() && file.canRead()) {
-			OutputStream out = response.getOutputStream();
-			
-			FileInputStream in = new FileInputStream(file);
-			
-			response.setHeader("content-type:", MimeTypes.getMimeType(file.getAbsolutePath()));
-			
-			Streams.copyStream(in, out);
-			
-			in.close();
+			StaticContent.sendFile(request, response, file);
 
 			return;
 		}
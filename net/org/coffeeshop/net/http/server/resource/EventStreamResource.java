@@ -0,0 +1,380 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.coffeeshop.net.http.server.HttpCompletion;
+import org.coffeeshop.net.http.server.HttpRequest;
+import org.coffeeshop.net.http.server.HttpResponse;
+
+/**
+ * A resource that streams events to its clients as
+ * <code>text/event-stream</code> (Server-Sent Events). Every request
+ * subscribes the client, the response stays open and receives the events
+ * that are published to the resource, so clients do not have to poll.
+ *
+ * An event is serialized once and the same frame is queued for all the
+ * subscribers, the frames are written by a small bounded pool of threads, the
+ * threads of the server are not held by the open streams. The queue of every
+ * subscriber is bounded: a client that does not keep up is disconnected when
+ * its queue is full, the publisher never waits for a client. A client that
+ * does not accept a frame within the write timeout is disconnected as well,
+ * so that it does not hold a thread of the pool. Idle streams get a comment
+ * line as a heartbeat, so proxies do not close them and clients that went
+ * away are noticed.
+ *
+ */
+public class EventStreamResource extends AsyncResource {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF8);
+
+	/**
+	 * marks the end of the stream in the queue of a subscriber
+	 */
+	private static final byte[] END = new byte[0];
+
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Event stream");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * the maximum number of threads that write the queued frames
+	 */
+	private static final int SENDERS = 16;
+
+	/**
+	 * the threads that write the queued frames, shared by all the resources.
+	 * A client whose writes block holds a thread until the write timeout
+	 * disconnects it, meanwhile the frames of the other clients wait in
+	 * their queues.
+	 */
+	private static final ThreadPoolExecutor senders = new ThreadPoolExecutor(SENDERS, SENDERS, 60,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), DAEMONS);
+
+	static {
+		senders.allowCoreThreadTimeOut(true);
+	}
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(DAEMONS);
+
+	/**
+	 * A client that receives the events.
+	 *
+	 */
+	private class Subscriber implements Runnable {
+
+		private OutputStream out;
+
+		private HttpCompletion completion;
+
+		private ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(bufferSize);
+
+		private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private AtomicBoolean closed = new AtomicBoolean(false);
+
+		private volatile long lastWrite = System.currentTimeMillis();
+
+		/**
+		 * the time the current write started, 0 if the client is not written
+		 */
+		private volatile long writing = 0;
+
+		public Subscriber(OutputStream out, HttpCompletion completion) {
+			this.out = out;
+			this.completion = completion;
+		}
+
+		private void offer(byte[] frame) {
+
+			if (closed.get())
+				return;
+
+			if (!queue.offer(frame)) {
+				close(new IOException("Event stream client does not keep up, disconnected"));
+				return;
+			}
+
+			if (scheduled.compareAndSet(false, true))
+				senders.execute(this);
+		}
+
+		public void run() {
+
+			boolean end = false;
+
+			try {
+				byte[] frame;
+				while (!end && (frame = queue.poll()) != null) {
+					if (frame == END) {
+						end = true;
+					} else {
+						writing = System.currentTimeMillis();
+						out.write(frame);
+					}
+				}
+				writing = System.currentTimeMillis();
+				out.flush();
+				lastWrite = System.currentTimeMillis();
+			} catch (IOException e) {
+				close(e);
+				return;
+			} finally {
+				writing = 0;
+				scheduled.set(false);
+			}
+
+			if (end) {
+				if (closed.compareAndSet(false, true)) {
+					subscribers.remove(this);
+					completion.complete();
+				}
+				return;
+			}
+
+			// frames that were queued while the stream was flushed
+			if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+				senders.execute(this);
+		}
+
+		/**
+		 * Disconnects the client if a write takes longer than the timeout.
+		 * Closing the connection also ends the blocked write.
+		 */
+		private void check(long now) {
+			long started = writing;
+			if (started != 0 && now - started > writeTimeout)
+				close(new SocketTimeoutException("Event stream client does not accept the events, disconnected"));
+		}
+
+		/**
+		 * Disconnects the client without waiting for the queued frames.
+		 */
+		private void close(Throwable reason) {
+			if (!closed.compareAndSet(false, true))
+				return;
+			subscribers.remove(this);
+			queue.clear();
+			completion.fail(reason);
+		}
+
+	}
+
+	private ConcurrentHashMap<Subscriber, Boolean> subscribers = new ConcurrentHashMap<Subscriber, Boolean>();
+
+	private int bufferSize;
+
+	private long heartbeat;
+
+	private long writeTimeout;
+
+	/**
+	 * the periodic task that sends the heartbeats and enforces the write
+	 * timeout, runs while the resource is open
+	 */
+	private ScheduledFuture<?> ticker = null;
+
+	/**
+	 * Creates a new event stream with a buffer of 256 events per client, a
+	 * heartbeat every 15 seconds and a write timeout of 30 seconds.
+	 *
+	 */
+	public EventStreamResource(String name, Folder parent) {
+		this(name, parent, 256, 15000);
+	}
+
+	/**
+	 * Creates a new event stream with a write timeout of 30 seconds.
+	 *
+	 * @param bufferSize
+	 *            the number of events that are queued for a client before it
+	 *            is disconnected
+	 * @param heartbeat
+	 *            the interval of the heartbeats in milliseconds
+	 */
+	public EventStreamResource(String name, Folder parent, int bufferSize, long heartbeat) {
+		this(name, parent, bufferSize, heartbeat, 30000);
+	}
+
+	/**
+	 * Creates a new event stream.
+	 *
+	 * @param bufferSize
+	 *            the number of events that are queued for a client before it
+	 *            is disconnected
+	 * @param heartbeat
+	 *            the interval of the heartbeats in milliseconds
+	 * @param writeTimeout
+	 *            the time in milliseconds a client may take to accept a frame
+	 *            before it is disconnected, checked every half of the
+	 *            heartbeat interval
+	 */
+	public EventStreamResource(String name, Folder parent, int bufferSize, long heartbeat, long writeTimeout) {
+		super(name, parent);
+
+		if (bufferSize < 1 || heartbeat < 1 || writeTimeout < 1)
+			throw new IllegalArgumentException("Illegal buffer size, heartbeat or write timeout");
+
+		this.bufferSize = bufferSize;
+		this.heartbeat = heartbeat;
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Starts the heartbeats if they are not running, they run from the first
+	 * subscription until the resource is closed.
+	 *
+	 */
+	private synchronized void start() {
+
+		if (ticker != null)
+			return;
+
+		ticker = timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				long now = System.currentTimeMillis();
+				for (Subscriber subscriber : subscribers.keySet()) {
+					subscriber.check(now);
+					if (now - subscriber.lastWrite >= heartbeat)
+						subscriber.offer(HEARTBEAT);
+				}
+			}
+		}, heartbeat, Math.max(1, heartbeat / 2), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void execute(HttpRequest request, HttpResponse response, HttpCompletion completion) throws Exception {
+
+		response.setHeader("content-type:", "text/event-stream; charset=utf-8");
+		response.setHeader("cache-control:", "no-cache");
+		response.deleteHeader("pragma:");
+
+		OutputStream out = response.getOutputStream();
+
+		// sends the headers, the client knows it is subscribed
+		out.write(("retry: " + heartbeat + "\n\n").getBytes(UTF8));
+		out.flush();
+
+		Subscriber subscriber = new Subscriber(out, completion);
+
+		subscribers.put(subscriber, Boolean.TRUE);
+
+		start();
+
+		onSubscribe(request);
+	}
+
+	/**
+	 * Called when a client subscribed. The default implementation does
+	 * nothing, override it to send the current state to the new client with
+	 * a {@link #publish} call.
+	 *
+	 * @param request
+	 *            the request of the client
+	 */
+	protected void onSubscribe(HttpRequest request) {
+	}
+
+	/**
+	 * Publishes an event without a name.
+	 *
+	 * @param data
+	 *            the data of the event, may contain several lines
+	 */
+	public void publish(String data) {
+		publish(null, null, data);
+	}
+
+	/**
+	 * Publishes an event to all the subscribed clients.
+	 *
+	 * @param event
+	 *            the name of the event or <code>null</code>
+	 * @param id
+	 *            the id of the event or <code>null</code>
+	 * @param data
+	 *            the data of the event, may contain several lines
+	 */
+	public void publish(String event, String id, String data) {
+
+		if (subscribers.isEmpty())
+			return;
+
+		byte[] frame = format(event, id, data);
+
+		for (Subscriber subscriber : subscribers.keySet())
+			subscriber.offer(frame);
+	}
+
+	/**
+	 * Ends the streams of all the clients after the events that are already
+	 * queued for them and stops the heartbeats. The clients reconnect after
+	 * the retry interval, a client that subscribes again starts the
+	 * heartbeats again.
+	 *
+	 */
+	public void close() {
+
+		synchronized (this) {
+			if (ticker != null) {
+				ticker.cancel(false);
+				ticker = null;
+			}
+		}
+
+		for (Subscriber subscriber : subscribers.keySet())
+			subscriber.offer(END);
+	}
+
+	/**
+	 * Returns the number of subscribed clients.
+	 *
+	 */
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	private static byte[] format(String event, String id, String data) {
+
+		StringBuilder frame = new StringBuilder(data.length() + 32);
+
+		if (id != null)
+			frame.append("id: ").append(id).append('\n');
+
+		if (event != null)
+			frame.append("event: ").append(event).append('\n');
+
+		// every line of the data is a field of its own
+		int start = 0;
+		while (true) {
+			int end = data.indexOf('\n', start);
+			frame.append("data: ").append(data, start, end < 0 ? data.length() : end).append('\n');
+			if (end < 0)
+				break;
+			start = end + 1;
+		}
+
+		frame.append('\n');
+
+		return frame.toString().getBytes(UTF8);
+	}
+
+}
@@ -15,6 +15,18 @@ public class Folder extends Resource {
 	
 	protected String defaultChild = "index";
 	
+	/**
+	 * the compiled index of the tree below this folder, rebuilt on the first
+	 * lookup after the tree has changed
+	 */
+	private volatile RouteIndex index = null;
+	
+	/**
+	 * the priority of the resources in this folder, inherited from the
+	 * parent if not set
+	 */
+	private Integer priority = null;
+	
 	public String getDefaultChild() {
 		return defaultChild;
 	}
@@ -23,6 +35,28 @@ public class Folder extends Resource {
 		this.defaultChild = defaultChild;
 	}
 
+	/**
+	 * Sets the priority of the requests for the resources in this folder
+	 * (and its subfolders) when the server is overloaded.
+	 * 
+	 * @param priority
+	 *            one of {@link Resource#PRIORITY_LOW},
+	 *            {@link Resource#PRIORITY_NORMAL} or
+	 *            {@link Resource#PRIORITY_CRITICAL}, <code>null</code> to
+	 *            inherit the priority of the parent
+	 */
+	public void setPriority(Integer priority) {
+		this.priority = priority;
+	}
+	
+	@Override
+	public int getPriority() {
+		Integer p = priority;
+		if (p != null)
+			return p;
+		return super.getPriority();
+	}
+
 	public Folder(String name, Folder parent) {
 		super(name, parent);
 		
@@ -38,36 +72,52 @@ public class Folder extends Resource {
 					children.put(o.getName(), o);
 				}
 			}
+			invalidate();
 		}
 	}
 	
+	/**
+	 * Discards the compiled index of this folder and of all the folders
+	 * above it.
+	 */
+	private void invalidate() {
+		synchronized (this) {
+			index = null;
+		}
+		if (getParent() != null)
+			getParent().invalidate();
+	}
+	
 	public Resource get(String s) {
-		
-		int i = s.indexOf(SEPARATOR);
-
-		if (i == -1) {
-			if (s.length() == 0)
-				return this;
-			
-			return children.get(s);
-		} else {
-			
-			String name = s.substring(0, i);
-			
-			Resource r = children.get(name);
-			
-			if (r == null)
-				return null;
-			
-			if (Folder.class.isInstance(r))
-				return ((Folder) r).get(s.substring(i+1));
+		return route(s, null);
+	}
 	
-			if (VirtualResource.class.isInstance(r))
-				return r;
-			
-			return null;
-			
+	/**
+	 * Finds the resource that handles a path. Folders resolve the following
+	 * segments of the path, virtual resources handle all the paths below
+	 * them. A child named <code>{name}</code> matches any segment, the
+	 * segment is stored in the map of parameters under <code>name</code>.
+	 * 
+	 * @param s
+	 *            the path relative to this folder
+	 * @param parameters
+	 *            the map that receives the path parameters, can be
+	 *            <code>null</code>
+	 * @return the resource or <code>null</code> if there is none
+	 */
+	public Resource route(String s, Map<String, String> parameters) {
+		
+		RouteIndex i = index;
+		
+		if (i == null) {
+			synchronized (this) {
+				if (index == null)
+					index = RouteIndex.compile(this);
+				i = index;
+			}
 		}
+		
+		return i.find(s, parameters);
 			
 	}
 	
@@ -92,6 +142,8 @@ public class Folder extends Resource {
 		
 		listChildren(listing);
 		
+		response.enableCompression();
+		
 		SimpleHtmlDocument document = new SimpleHtmlDocument("Listing for " + request.getLocation());
 		
 		document.append(Snippets.htmlTitle("Listing for " + request.getLocation()));
@@ -0,0 +1,178 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.coffeeshop.net.http.server.HttpLatencyHistogram;
+import org.coffeeshop.net.http.server.HttpRequest;
+import org.coffeeshop.net.http.server.HttpResponse;
+import org.coffeeshop.net.http.server.HttpServerMetrics;
+
+/**
+ * A resource that reports the metrics of a server. The report is plain text
+ * in the exposition format of Prometheus by default, JSON is sent if the
+ * request has the parameter <code>format=json</code> or accepts
+ * <code>application/json</code>. Mount it like any other resource:
+ *
+ * <pre>
+ * new MetricsResource(&quot;metrics&quot;, server.getRoot(), server.getMetrics());
+ * </pre>
+ *
+ */
+public class MetricsResource extends Resource {
+
+	private static final double[] QUANTILES = { 50, 90, 99, 99.9 };
+
+	private HttpServerMetrics metrics;
+
+	public MetricsResource(String name, Folder parent, HttpServerMetrics metrics) {
+		super(name, parent);
+
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void execute(HttpRequest request, HttpResponse response) throws Exception {
+
+		String format = request.getGet("format", null);
+
+		if (format == null) {
+			String accept = request.getHeader("accept", "");
+			format = accept.contains("application/json") ? "json" : "text";
+		}
+
+		String report;
+
+		if (format.equals("json")) {
+			response.setHeader("content-type:", "application/json; charset=utf-8");
+			report = toJson();
+		} else {
+			response.setHeader("content-type:", "text/plain; version=0.0.4; charset=utf-8");
+			report = toText();
+		}
+
+		response.sendContent(report.getBytes("UTF-8"));
+
+	}
+
+	private String toText() {
+
+		StringBuilder out = new StringBuilder(4096);
+
+		line(out, "http_uptime_seconds", null, (System.currentTimeMillis() - metrics.getStartTime()) / 1000);
+		line(out, "http_connections_open", null, metrics.getOpenConnections());
+		line(out, "http_connections_idle", null, metrics.getIdleConnections());
+		line(out, "http_connections_total", null, metrics.getTotalConnections());
+		line(out, "http_requests_active", null, metrics.getActiveRequests());
+		line(out, "http_requests_total", null, metrics.getTotalRequests());
+		line(out, "http_requests_per_second", null, metrics.getRequestRate());
+		line(out, "http_received_bytes_total", null, metrics.getBytesReceived());
+		line(out, "http_sent_bytes_total", null, metrics.getBytesSent());
+
+		for (Map.Entry<Integer, Long> e : metrics.getStatusCounts().entrySet())
+			line(out, "http_responses_total", "status=\"" + e.getKey() + "\"", e.getValue());
+
+		for (Map.Entry<String, HttpLatencyHistogram> e : metrics.getRouteLatencies().entrySet()) {
+
+			String route = "route=\"" + escape(e.getKey()) + "\"";
+			HttpLatencyHistogram histogram = e.getValue();
+
+			for (double q : QUANTILES)
+				line(out, "http_request_duration_microseconds", route + ",quantile=\"" + number(q / 100) + "\"",
+						histogram.getPercentile(q));
+
+			line(out, "http_request_duration_microseconds_sum", route, histogram.getTotal());
+			line(out, "http_request_duration_microseconds_count", route, histogram.getCount());
+			line(out, "http_request_duration_microseconds_max", route, histogram.getMaximum());
+		}
+
+		return out.toString();
+	}
+
+	private String toJson() {
+
+		StringBuilder out = new StringBuilder(4096);
+
+		out.append("{\"uptime\":").append((System.currentTimeMillis() - metrics.getStartTime()) / 1000);
+		out.append(",\"connections\":{\"open\":").append(metrics.getOpenConnections());
+		out.append(",\"idle\":").append(metrics.getIdleConnections());
+		out.append(",\"total\":").append(metrics.getTotalConnections()).append('}');
+		out.append(",\"requests\":{\"active\":").append(metrics.getActiveRequests());
+		out.append(",\"total\":").append(metrics.getTotalRequests());
+		out.append(",\"rate\":").append(number(metrics.getRequestRate())).append('}');
+		out.append(",\"bytes\":{\"received\":").append(metrics.getBytesReceived());
+		out.append(",\"sent\":").append(metrics.getBytesSent()).append('}');
+
+		out.append(",\"statuses\":{");
+
+		boolean first = true;
+
+		for (Map.Entry<Integer, Long> e : metrics.getStatusCounts().entrySet()) {
+			if (!first)
+				out.append(',');
+			first = false;
+			out.append('"').append(e.getKey()).append("\":").append(e.getValue());
+		}
+
+		out.append("},\"routes\":{");
+
+		first = true;
+
+		for (Map.Entry<String, HttpLatencyHistogram> e : metrics.getRouteLatencies().entrySet()) {
+
+			if (!first)
+				out.append(',');
+			first = false;
+
+			HttpLatencyHistogram histogram = e.getValue();
+
+			out.append('"').append(escape(e.getKey())).append("\":{");
+			out.append("\"count\":").append(histogram.getCount());
+			out.append(",\"mean\":").append(number(histogram.getMean()));
+			out.append(",\"max\":").append(histogram.getMaximum());
+
+			for (double q : QUANTILES)
+				out.append(",\"p").append(number(q)).append("\":").append(histogram.getPercentile(q));
+
+			out.append('}');
+		}
+
+		out.append("}}\n");
+
+		return out.toString();
+	}
+
+	private static void line(StringBuilder out, String name, String labels, Object value) {
+		out.append(name);
+		if (labels != null)
+			out.append('{').append(labels).append('}');
+		out.append(' ');
+		out.append(value instanceof Double ? number((Double) value) : value.toString());
+		out.append('\n');
+	}
+
+	private static String number(double value) {
+		if (value == Math.rint(value))
+			return String.valueOf((long) value);
+		return String.format(Locale.ROOT, "%.3f", value).replaceAll("0+$", "");
+	}
+
+	/**
+	 * Escapes the quotes and backslashes of a name, the escaping is the same
+	 * for both formats.
+	 */
+	private static String escape(String s) {
+		StringBuilder out = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c == '\n')
+				out.append("\\n");
+			else
+				out.append(c);
+		}
+		return out.toString();
+	}
+
+}
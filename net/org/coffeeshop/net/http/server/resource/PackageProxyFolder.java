@@ -1,9 +1,7 @@
 package org.coffeeshop.net.http.server.resource;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.URL;
 
-import org.coffeeshop.io.Streams;
 import org.coffeeshop.net.http.server.HttpRequest;
 import org.coffeeshop.net.http.server.HttpResponse;
 
@@ -11,28 +9,67 @@ public class PackageProxyFolder extends ProxyFolder {
 
 	private Class<?> origin;
 	
+	private ResourceCache cache = null;
+	
 	public PackageProxyFolder(String name, Folder parent, Class<?> origin) {
 		super(name, parent);
 
 		this.origin = origin;
 		
 	}
+	
+	/**
+	 * Creates a folder that keeps the resources it serves in memory, so that
+	 * a resource is read from the class path only once.
+	 * 
+	 * @param name
+	 *            the name of the folder
+	 * @param parent
+	 *            the parent folder
+	 * @param origin
+	 *            the class relative to which the resources are loaded
+	 * @param cacheSize
+	 *            the maximum total size of the cached resources in bytes,
+	 *            resources larger than a quarter of it are not cached
+	 */
+	public PackageProxyFolder(String name, Folder parent, Class<?> origin, long cacheSize) {
+		this(name, parent, origin);
+		
+		if (cacheSize > 0)
+			this.cache = new ResourceCache(cacheSize, (int) Math.min(cacheSize / 4, Integer.MAX_VALUE));
+		
+	}
 
 	@Override
 	protected void execute(HttpRequest request, HttpResponse response,
 			String virtualPath) throws Exception {
-		final InputStream in = origin.getResourceAsStream(virtualPath);
 		
-		if (in == null) {
+		if (cache != null) {
+			ResourceCache.Entry entry = cache.get(virtualPath);
+			
+			if (entry != null) {
+				StaticContent.sendEntry(request, response, entry);
+				return;
+			}
+		}
+		
+		URL resource = origin.getResource(virtualPath);
+		
+		if (resource == null) {
 			response.setHttpResult(404);
 			return;
 		}
 		
-		OutputStream out = response.getOutputStream();
-		
-		Streams.copyStream(in, out);
+		if (cache != null) {
+			ResourceCache.Entry entry = cache.load(virtualPath, resource);
+			
+			if (entry != null) {
+				StaticContent.sendEntry(request, response, entry);
+				return;
+			}
+		}
 		
-		in.close();
+		StaticContent.sendResource(request, response, resource);
 		
 	}
 		
@@ -8,10 +8,25 @@ public abstract class Resource {
 
 	public static final String SEPARATOR = "/";
 	
+	/**
+	 * the resources that are refused first when the server is overloaded
+	 */
+	public static final int PRIORITY_LOW = -1;
+	
+	public static final int PRIORITY_NORMAL = 0;
+	
+	/**
+	 * the resources that are served even when the server is overloaded, for
+	 * instance health checks and metrics
+	 */
+	public static final int PRIORITY_CRITICAL = 1;
+	
 	private String name;
 	
 	private Folder parent;
 	
+	private String fullName = null;
+	
 	protected Resource(String name) {
 		this.name = name;
 	}
@@ -29,15 +44,31 @@ public abstract class Resource {
 	}
 	
 	public String getFullName() {
-		if (parent == null)
-			return name;
-		return parent.getFullName() + SEPARATOR + name;
+		// the name and the parent never change, build the name only once
+		if (fullName == null) {
+			if (parent == null)
+				fullName = name;
+			else
+				fullName = parent.getFullName() + SEPARATOR + name;
+		}
+		return fullName;
 	}
 	
 	public Folder getParent() {
 		return parent;
 	}
 	
+	/**
+	 * Returns the priority of the requests for this resource when the server
+	 * is overloaded. The priority is set on the folders and applies to
+	 * everything below them.
+	 * 
+	 * @see Folder#setPriority(Integer)
+	 */
+	public int getPriority() {
+		return parent == null ? PRIORITY_NORMAL : parent.getPriority();
+	}
+	
 	public abstract void execute(HttpRequest request, HttpResponse response) throws Exception;
 	
 }
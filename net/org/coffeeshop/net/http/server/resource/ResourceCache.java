@@ -0,0 +1,186 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.zip.GZIPOutputStream;
+
+import org.coffeeshop.cache.MemoryCache;
+import org.coffeeshop.net.http.server.MimeTypes;
+import org.coffeeshop.string.Cryptography;
+
+/**
+ * An in-memory cache of resources that do not change while the server is
+ * running, such as the class path resources of a {@link PackageProxyFolder}.
+ * Every entry holds the content of a resource together with the values that
+ * are needed to answer a request (the mime type, the entity tag and the
+ * compressed variant), so a cached resource is answered with a single write.
+ * The cache is bounded by the total size of the entries, the least recently
+ * used entries are dropped first.
+ *
+ */
+public class ResourceCache {
+
+	/**
+	 * resources smaller than this are not worth compressing
+	 */
+	static final int MINIMUM_COMPRESSED_SIZE = 256;
+
+	/**
+	 * A cached resource.
+	 *
+	 */
+	public static class Entry {
+
+		private String type;
+
+		private byte[] data;
+
+		private String etag;
+
+		private long modified;
+
+		private byte[] compressed = null;
+
+		private Entry(String type, byte[] data, String etag, long modified) {
+			this.type = type;
+			this.data = data;
+			this.etag = etag;
+			this.modified = modified;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Returns the <code>gzip</code> variant of the content.
+		 *
+		 * @return the compressed content or <code>null</code> if the content
+		 *         is not worth compressing
+		 */
+		public byte[] getCompressed() {
+			return compressed;
+		}
+
+		private long getSize() {
+			return data.length + (compressed == null ? 0 : compressed.length);
+		}
+
+	}
+
+	private MemoryCache<String, Entry> entries;
+
+	private int maximumEntrySize;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param capacity
+	 *            the maximum total size of the cached resources in bytes
+	 * @param maximumEntrySize
+	 *            the size of the largest resource that is cached
+	 */
+	public ResourceCache(long capacity, int maximumEntrySize) {
+		this.maximumEntrySize = maximumEntrySize;
+
+		entries = new MemoryCache<String, Entry>(capacity) {
+			@Override
+			protected long getDataLength(Entry entry) {
+				return entry.getSize();
+			}
+		};
+	}
+
+	/**
+	 * Returns a cached resource.
+	 *
+	 * @param key
+	 *            the path of the resource
+	 * @return the entry or <code>null</code> if the resource is not cached
+	 */
+	public Entry get(String key) {
+		return entries.query(key);
+	}
+
+	/**
+	 * Reads a resource and stores it in the cache.
+	 *
+	 * @param key
+	 *            the path of the resource
+	 * @param resource
+	 *            the location of the resource
+	 * @return the entry or <code>null</code> if the resource is too large to
+	 *         be cached
+	 * @throws IOException
+	 *             if the resource cannot be read
+	 */
+	public Entry load(String key, URL resource) throws IOException {
+
+		URLConnection connection = resource.openConnection();
+
+		long length = connection.getContentLengthLong();
+
+		if (length > maximumEntrySize)
+			return null;
+
+		InputStream in = connection.getInputStream();
+
+		byte[] data;
+
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = in.read(b)) > 0) {
+				buffer.write(b, 0, n);
+				if (buffer.size() > maximumEntrySize)
+					return null;
+			}
+			data = buffer.toByteArray();
+		} finally {
+			in.close();
+		}
+
+		String type = MimeTypes.getMimeType(resource.getPath());
+
+		Entry entry = new Entry(type, data, Cryptography.sha1(data), connection.getLastModified());
+
+		if (data.length >= MINIMUM_COMPRESSED_SIZE && MimeTypes.isCompressible(type)) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 64);
+			GZIPOutputStream compressor = new GZIPOutputStream(buffer);
+			compressor.write(data);
+			compressor.close();
+
+			if (buffer.size() < data.length)
+				entry.compressed = buffer.toByteArray();
+		}
+
+		entries.insert(key, entry);
+
+		return entry;
+	}
+
+	/**
+	 * Removes all the entries.
+	 *
+	 */
+	public void clear() {
+		entries.flush();
+	}
+
+}
@@ -0,0 +1,197 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A compiled index of a resource tree. The index is a trie of path segments,
+ * the children of every node are kept in an open addressing hash table that
+ * is probed directly with a region of the requested path, so a lookup does
+ * not create any strings. The index is immutable, a {@link Folder} compiles a
+ * new one when the tree below it changes.
+ *
+ * Children named <code>{name}</code> match any single segment, the matched
+ * segment is returned as the path parameter <code>name</code>. Named
+ * children take precedence over a parameter.
+ *
+ */
+final class RouteIndex {
+
+	private static final class Node {
+
+		private Resource resource;
+
+		/**
+		 * the resource is a folder, the following segments are resolved by
+		 * the children of this node
+		 */
+		private boolean folder;
+
+		/**
+		 * the resource is virtual, it handles all the paths below it
+		 */
+		private boolean prefix;
+
+		private String[] keys;
+
+		private int[] hashes;
+
+		private Node[] children;
+
+		private int mask;
+
+		private Node parameter = null;
+
+		private String parameterName;
+
+		private Node get(String path, int from, int to) {
+
+			if (keys == null)
+				return null;
+
+			int hash = 0;
+			for (int i = from; i < to; i++)
+				hash = 31 * hash + path.charAt(i);
+
+			int length = to - from;
+
+			for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+				String key = keys[i];
+				if (key == null)
+					return null;
+				if (hashes[i] == hash && key.length() == length && path.regionMatches(from, key, 0, length))
+					return children[i];
+			}
+		}
+
+	}
+
+	private Node root;
+
+	private RouteIndex(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * Compiles the index of a folder.
+	 *
+	 * @param folder
+	 *            the root of the tree
+	 * @return the index
+	 */
+	static RouteIndex compile(Folder folder) {
+		return new RouteIndex(compile((Resource) folder));
+	}
+
+	/**
+	 * Finds the resource that handles a path.
+	 *
+	 * @param path
+	 *            the path relative to the root of the index, without the
+	 *            leading separator
+	 * @param parameters
+	 *            the map that receives the path parameters, can be
+	 *            <code>null</code>
+	 * @return the resource or <code>null</code> if no resource matches the
+	 *         path
+	 */
+	Resource find(String path, Map<String, String> parameters) {
+		return find(root, path, 0, parameters);
+	}
+
+	private static Resource find(Node node, String path, int from, Map<String, String> parameters) {
+
+		if (from == path.length())
+			return node.resource;
+
+		int separator = path.indexOf(Resource.SEPARATOR, from);
+		int end = separator < 0 ? path.length() : separator;
+
+		Resource r = match(node.get(path, from, end), path, separator, parameters);
+
+		if (r == null && node.parameter != null && end > from) {
+			r = match(node.parameter, path, separator, parameters);
+			if (r != null && parameters != null)
+				parameters.put(node.parameterName, path.substring(from, end));
+		}
+
+		return r;
+	}
+
+	private static Resource match(Node child, String path, int separator, Map<String, String> parameters) {
+
+		if (child == null)
+			return null;
+
+		// the last segment, any resource
+		if (separator < 0)
+			return child.resource;
+
+		if (child.folder)
+			return find(child, path, separator + 1, parameters);
+
+		if (child.prefix)
+			return child.resource;
+
+		return null;
+	}
+
+	private static Node compile(Resource resource) {
+
+		Node node = new Node();
+		node.resource = resource;
+		node.prefix = resource instanceof VirtualResource;
+
+		if (!(resource instanceof Folder))
+			return node;
+
+		node.folder = true;
+
+		ArrayList<Resource> list = new ArrayList<Resource>();
+
+		Folder folder = (Folder) resource;
+
+		synchronized (folder.children) {
+			list.addAll(folder.children.values());
+		}
+
+		ArrayList<Resource> named = new ArrayList<Resource>(list.size());
+
+		for (Resource child : list) {
+			String name = child.getName();
+			if (name.length() > 2 && name.startsWith("{") && name.endsWith("}")) {
+				node.parameter = compile(child);
+				node.parameterName = name.substring(1, name.length() - 1);
+			} else
+				named.add(child);
+		}
+
+		if (named.isEmpty())
+			return node;
+
+		int capacity = Integer.highestOneBit(named.size() * 2 - 1) << 1;
+
+		node.keys = new String[capacity];
+		node.hashes = new int[capacity];
+		node.children = new Node[capacity];
+		node.mask = capacity - 1;
+
+		for (Resource child : named) {
+			String key = child.getName();
+			int hash = key.hashCode();
+			int i = spread(hash) & node.mask;
+			while (node.keys[i] != null)
+				i = (i + 1) & node.mask;
+			node.keys[i] = key;
+			node.hashes[i] = hash;
+			node.children[i] = compile(child);
+		}
+
+		return node;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+}
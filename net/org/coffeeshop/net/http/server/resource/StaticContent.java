@@ -0,0 +1,354 @@
+package org.coffeeshop.net.http.server.resource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.coffeeshop.cache.MemoryCache;
+import org.coffeeshop.io.Streams;
+import org.coffeeshop.net.http.server.HttpRequest;
+import org.coffeeshop.net.http.server.HttpResponse;
+import org.coffeeshop.net.http.server.HttpUtils;
+import org.coffeeshop.net.http.server.MimeTypes;
+import org.coffeeshop.string.Cryptography;
+
+/**
+ * Sends static content (files and class path resources) to the client. The
+ * content type is set from the name of the resource and compressible content
+ * is sent in its <code>gzip</code> variant from the
+ * {@link CompressionCache} to the clients that accept it. The responses carry
+ * validators (<code>etag</code>, <code>last-modified</code>) and conditional
+ * requests for an unchanged resource are answered without a body. Files can
+ * also be requested in ranges.
+ *
+ */
+public class StaticContent {
+
+	/**
+	 * resources smaller than this are not worth compressing
+	 */
+	private static final int MINIMUM_COMPRESSED_SIZE = ResourceCache.MINIMUM_COMPRESSED_SIZE;
+
+	/**
+	 * the content hashes of the resources without a modification time, the
+	 * least recently used of them are forgotten
+	 */
+	private static final MemoryCache<String, String> hashes = new MemoryCache<String, String>(1024) {
+		@Override
+		protected long getDataLength(String hash) {
+			return 1;
+		}
+	};
+
+	private StaticContent() {
+	}
+
+	/**
+	 * Sends a file as the response.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param file
+	 *            the file to send
+	 * @throws IOException
+	 *             if the file cannot be read or on a communication error
+	 */
+	public static void sendFile(HttpRequest request, HttpResponse response, File file) throws IOException {
+
+		String type = MimeTypes.getMimeType(file.getAbsolutePath());
+
+		response.setHeader("content-type:", type);
+
+		long length = file.length();
+		long modified = file.lastModified();
+
+		String etag = Long.toHexString(length) + "-" + Long.toHexString(modified);
+
+		long[] ranges = request.getRanges(length);
+
+		// the ranges only apply to the version the client already holds
+		String condition = request.getHeader("if-range", null);
+		if (ranges != null && condition != null && !condition.equals("\"" + etag + "\"")
+				&& HttpUtils.parseDate(condition, -1) / 1000 != modified / 1000)
+			ranges = null;
+
+		byte[] data = null;
+
+		if (isCompressible(type, length)) {
+
+			response.setHeader("vary:", "accept-encoding");
+
+			// ranges are served from the uncompressed file
+			if (ranges == null && request.acceptsEncoding("gzip")) {
+
+				String key = file.getAbsolutePath();
+
+				data = CompressionCache.getSharedCache().get(key, modified);
+
+				if (data == null) {
+					InputStream in = new FileInputStream(file);
+					try {
+						data = CompressionCache.getSharedCache().compress(key, modified, in);
+					} finally {
+						in.close();
+					}
+				}
+
+			}
+
+		}
+
+		// the compressed variant is a different representation
+		boolean compressed = data != null && data.length > 0;
+
+		if (sendValidators(request, response, compressed ? etag + "-gzip" : etag, modified))
+			return;
+
+		if (compressed) {
+			response.setHeader("content-encoding:", "gzip");
+			response.sendContent(data);
+			return;
+		}
+
+		response.setHeader("accept-ranges:", "bytes");
+
+		if (ranges == null) {
+			response.sendFile(file);
+			return;
+		}
+
+		FileInputStream in = new FileInputStream(file);
+
+		try {
+			response.sendFileRanges(in.getChannel(), length, ranges);
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Sends a resource (for instance a class path resource) as the response.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param resource
+	 *            the location of the resource
+	 * @throws IOException
+	 *             if the resource cannot be read or on a communication error
+	 */
+	public static void sendResource(HttpRequest request, HttpResponse response, URL resource) throws IOException {
+
+		URLConnection connection = resource.openConnection();
+
+		String type = MimeTypes.getMimeType(resource.getPath());
+
+		response.setHeader("content-type:", type);
+
+		String key = resource.toString();
+		long length = connection.getContentLengthLong();
+		long modified = connection.getLastModified();
+
+		InputStream in = connection.getInputStream();
+
+		try {
+
+			String etag;
+
+			if (modified > 0 && length >= 0) {
+				etag = Long.toHexString(length) + "-" + Long.toHexString(modified);
+			} else {
+				// no metadata, the tag is derived from the content
+				etag = getContentHash(resource);
+			}
+
+			byte[] data = null;
+
+			if (isCompressible(type, length)) {
+
+				response.setHeader("vary:", "accept-encoding");
+
+				if (request.acceptsEncoding("gzip")) {
+
+					data = CompressionCache.getSharedCache().get(key, modified);
+
+					if (data == null) {
+						data = CompressionCache.getSharedCache().compress(key, modified, in);
+						// the stream was consumed by the cache
+						in.close();
+						in = resource.openStream();
+					}
+
+				}
+
+			}
+
+			boolean compressed = data != null && data.length > 0;
+
+			if (etag != null && sendValidators(request, response, compressed ? etag + "-gzip" : etag, modified))
+				return;
+
+			if (compressed) {
+				response.setHeader("content-encoding:", "gzip");
+				response.sendContent(data);
+				return;
+			}
+
+			if (length >= 0)
+				response.setHeader("content-length:", String.valueOf(length));
+
+			// the headers are sent by the server when the body is empty
+			if (request.getHttpMethod() == HttpRequest.HTTP_METHOD_HEAD)
+				return;
+
+			OutputStream out = response.getOutputStream();
+
+			Streams.copyStream(in, out);
+
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Sends a resource from a {@link ResourceCache} as the response. The
+	 * content (or its compressed variant) is sent with a single write.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param entry
+	 *            the cached resource
+	 * @throws IOException
+	 *             on a communication error
+	 */
+	public static void sendEntry(HttpRequest request, HttpResponse response, ResourceCache.Entry entry)
+			throws IOException {
+
+		response.setHeader("content-type:", entry.getType());
+
+		byte[] data = entry.getData();
+		byte[] compressed = entry.getCompressed();
+
+		if (compressed != null) {
+			response.setHeader("vary:", "accept-encoding");
+			if (!request.acceptsEncoding("gzip"))
+				compressed = null;
+		}
+
+		if (sendValidators(request, response, compressed != null ? entry.getETag() + "-gzip" : entry.getETag(),
+				entry.getModified()))
+			return;
+
+		if (compressed != null) {
+			response.setHeader("content-encoding:", "gzip");
+			data = compressed;
+		}
+
+		response.sendContent(data);
+
+	}
+
+	/**
+	 * Sets the validators of the response (<code>etag</code> and
+	 * <code>last-modified</code>) and answers with
+	 * <code>304 Not Modified</code> if the client already holds the same
+	 * version.
+	 *
+	 * @param etag
+	 *            the entity tag without the quotes
+	 * @param modified
+	 *            the modification time or 0 if not known
+	 * @return true if the response was sent
+	 */
+	private static boolean sendValidators(HttpRequest request, HttpResponse response, String etag,
+			long modified) throws IOException {
+
+		etag = "\"" + etag + "\"";
+
+		response.setHeader("etag:", etag);
+
+		if (modified > 0)
+			response.setHeader("last-modified:", HttpUtils.formatDate(modified));
+
+		boolean notModified;
+
+		String match = request.getHeader("if-none-match", null);
+
+		if (match != null) {
+			notModified = matches(match, etag);
+		} else {
+			long since = HttpUtils.parseDate(request.getHeader("if-modified-since", null), -1);
+			// the dates are sent with a precision of one second
+			notModified = modified > 0 && since >= 0 && modified / 1000 <= since / 1000;
+		}
+
+		if (!notModified)
+			return false;
+
+		response.sendNotModified();
+
+		return true;
+	}
+
+	/**
+	 * Checks if the value of an <code>if-none-match</code> header contains
+	 * the given tag. Weak tags match too.
+	 */
+	private static boolean matches(String header, String etag) {
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*"))
+				return true;
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the hash of the content of a resource, computed once and
+	 * remembered for the following requests.
+	 *
+	 */
+	private static String getContentHash(URL resource) throws IOException {
+
+		String key = resource.toString();
+
+		String hash = hashes.query(key);
+
+		if (hash != null)
+			return hash;
+
+		InputStream in = resource.openStream();
+
+		try {
+			hash = Cryptography.sha1(in);
+		} finally {
+			in.close();
+		}
+
+		hashes.insert(key, hash);
+
+		return hash;
+	}
+
+	private static boolean isCompressible(String type, long length) {
+		return length >= MINIMUM_COMPRESSED_SIZE
+				&& length <= CompressionCache.getSharedCache().getMaximumEntrySize()
+				&& MimeTypes.isCompressible(type);
+	}
+
+}
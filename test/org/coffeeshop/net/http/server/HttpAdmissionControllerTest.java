@@ -0,0 +1,168 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.coffeeshop.net.http.server.resource.Resource;
+import org.junit.Test;
+
+public class HttpAdmissionControllerTest {
+
+	private static final long MILLISECOND = 1000000L;
+
+	private static class Leaf extends Resource {
+
+		public Leaf(String name) {
+			super(name, null);
+		}
+
+		@Override
+		public void execute(HttpRequest request, HttpResponse response) {
+		}
+
+	}
+
+	private static final Resource RESOURCE = new Leaf("resource");
+
+	/**
+	 * Admits the given number of requests and completes them all with the
+	 * same latency.
+	 */
+	private static void serve(HttpAdmissionController controller, Resource resource, int requests, long nanos) {
+		for (int i = 0; i < requests; i++)
+			assertTrue(controller.acquire(Resource.PRIORITY_NORMAL));
+		for (int i = 0; i < requests; i++)
+			controller.release(resource, nanos);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalLimits() {
+		new HttpAdmissionController(10, 20, 10, 0, 1);
+	}
+
+	@Test
+	public void testInitialLimitIsClamped() {
+		assertEquals(4, new HttpAdmissionController(1, 4, 100, 0, 1).getLimit(), 0);
+		assertEquals(100, new HttpAdmissionController(1000, 4, 100, 0, 1).getLimit(), 0);
+		assertEquals(2, new HttpAdmissionController(10, 4, 100, 0, 2).getRetryAfter());
+	}
+
+	@Test
+	public void testLimit() {
+		HttpAdmissionController controller = new HttpAdmissionController(4, 1, 100, 100, 1);
+
+		for (int i = 0; i < 4; i++)
+			assertTrue(controller.acquire(Resource.PRIORITY_NORMAL));
+
+		assertEquals(4, controller.getInFlight());
+		assertFalse(controller.acquire(Resource.PRIORITY_NORMAL));
+
+		controller.release();
+
+		assertEquals(3, controller.getInFlight());
+		assertTrue(controller.acquire(Resource.PRIORITY_NORMAL));
+	}
+
+	@Test
+	public void testPriorities() {
+		HttpAdmissionController controller = new HttpAdmissionController(8, 1, 100, 100, 1);
+
+		// low priority requests are refused when three quarters are used
+		for (int i = 0; i < 6; i++)
+			assertTrue(controller.acquire(Resource.PRIORITY_LOW));
+		assertFalse(controller.acquire(Resource.PRIORITY_LOW));
+
+		assertTrue(controller.acquire(Resource.PRIORITY_NORMAL));
+		assertTrue(controller.acquire(Resource.PRIORITY_NORMAL));
+		assertFalse(controller.acquire(Resource.PRIORITY_NORMAL));
+
+		// critical requests are always admitted and not counted
+		for (int i = 0; i < 10; i++)
+			assertTrue(controller.acquire(Resource.PRIORITY_CRITICAL));
+		assertEquals(8, controller.getInFlight());
+	}
+
+	@Test
+	public void testAdditiveIncrease() {
+		HttpAdmissionController controller = new HttpAdmissionController(10, 1, 100, 100, 1);
+
+		serve(controller, RESOURCE, 10, MILLISECOND);
+
+		double limit = controller.getLimit();
+		assertTrue(limit > 10 && limit < 11);
+
+		for (int i = 0; i < 20; i++)
+			serve(controller, RESOURCE, (int) controller.getLimit(), MILLISECOND);
+
+		assertTrue(controller.getLimit() > limit + 5);
+		assertEquals(0, controller.getInFlight());
+	}
+
+	@Test
+	public void testNoIncreaseWhenUnused() {
+		HttpAdmissionController controller = new HttpAdmissionController(10, 1, 100, 100, 1);
+
+		for (int i = 0; i < 1000; i++)
+			serve(controller, RESOURCE, 1, MILLISECOND);
+
+		assertEquals(10, controller.getLimit(), 0);
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() {
+		HttpAdmissionController controller = new HttpAdmissionController(10, 1, 100, 10, 1);
+
+		serve(controller, RESOURCE, 1, 1000 * MILLISECOND);
+
+		assertEquals(9, controller.getLimit(), 1e-9);
+
+		// the requests admitted under the old limit do not cut it again
+		for (int i = 0; i < 8; i++)
+			serve(controller, RESOURCE, 1, 1000 * MILLISECOND);
+
+		assertEquals(9, controller.getLimit(), 1e-9);
+
+		serve(controller, RESOURCE, 1, 1000 * MILLISECOND);
+
+		assertEquals(8.1, controller.getLimit(), 1e-9);
+	}
+
+	@Test
+	public void testBounds() {
+		HttpAdmissionController controller = new HttpAdmissionController(10, 4, 20, 10, 1);
+
+		for (int i = 0; i < 1000; i++)
+			serve(controller, RESOURCE, 1, 1000 * MILLISECOND);
+
+		assertEquals(4, controller.getLimit(), 0);
+
+		for (int i = 0; i < 1000; i++)
+			serve(controller, RESOURCE, (int) controller.getLimit(), MILLISECOND / 10);
+
+		assertEquals(20, controller.getLimit(), 0);
+	}
+
+	@Test
+	public void testLatencyWithoutLoad() {
+		HttpAdmissionController controller = new HttpAdmissionController(10, 1, 100, 0, 1);
+
+		Resource slow = new Leaf("slow");
+
+		// a slow resource is not congestion by itself
+		for (int i = 0; i < 100; i++) {
+			serve(controller, RESOURCE, 5, MILLISECOND);
+			serve(controller, slow, 5, 500 * MILLISECOND);
+		}
+
+		double limit = controller.getLimit();
+		assertTrue(limit > 10);
+
+		// the same resources getting several times slower is
+		for (int i = 0; i < 10; i++)
+			serve(controller, slow, 1, 5000 * MILLISECOND);
+
+		assertTrue(controller.getLimit() < limit);
+	}
+
+}
@@ -0,0 +1,214 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HttpChunkedOutputStreamTest {
+
+	private static class Target extends ByteArrayOutputStream {
+
+		private int flushes = 0;
+
+		private boolean closed = false;
+
+		@Override
+		public void flush() {
+			flushes++;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	/**
+	 * Decodes a chunked body, checking its framing.
+	 *
+	 * @param chunks
+	 *            receives the sizes of the chunks
+	 */
+	private static byte[] decode(byte[] encoded, List<Integer> chunks) throws IOException {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		int position = 0;
+
+		while (true) {
+			int end = position;
+			while (encoded[end] != '\r')
+				end++;
+
+			int size = Integer.parseInt(new String(encoded, position, end - position, "ISO-8859-1"), 16);
+			assertEquals('\n', encoded[end + 1]);
+			position = end + 2;
+
+			if (size == 0)
+				break;
+
+			chunks.add(size);
+			body.write(encoded, position, size);
+			position += size;
+
+			assertEquals('\r', encoded[position]);
+			assertEquals('\n', encoded[position + 1]);
+			position += 2;
+		}
+
+		assertEquals('\r', encoded[position]);
+		assertEquals('\n', encoded[position + 1]);
+		assertEquals(encoded.length, position + 2);
+
+		return body.toByteArray();
+	}
+
+	@Test
+	public void testEmptyBody() throws IOException {
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+
+		out.finish();
+
+		assertEquals("0\r\n\r\n", target.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void testSmallWritesAreCollected() throws IOException {
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+
+		out.write("abc".getBytes("ISO-8859-1"));
+		out.write('d');
+		out.write("xefx".getBytes("ISO-8859-1"), 1, 2);
+
+		assertEquals(0, target.size());
+
+		out.finish();
+
+		assertEquals("6\r\nabcdef\r\n0\r\n\r\n", target.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+
+		out.flush();
+
+		assertEquals(0, target.size());
+		assertEquals(1, target.flushes);
+
+		out.write("abc".getBytes("ISO-8859-1"));
+		out.flush();
+
+		assertEquals("3\r\nabc\r\n", target.toString("ISO-8859-1"));
+		assertEquals(2, target.flushes);
+
+		out.write("de".getBytes("ISO-8859-1"));
+		out.finish();
+
+		assertEquals("3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n", target.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void testChunkSizes() throws IOException {
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+
+		// a large write follows the buffered bytes in a chunk of its own
+		out.write(new byte[10]);
+		out.write(new byte[10000]);
+		// a write that does not fit into the buffer flushes it first
+		out.write(new byte[8000]);
+		out.write(new byte[1000]);
+		out.finish();
+
+		ArrayList<Integer> chunks = new ArrayList<Integer>();
+		assertEquals(19010, decode(target.toByteArray(), chunks).length);
+		assertEquals(Arrays.asList(10, 10000, 8000, 1000), chunks);
+		// the sizes are in lower case hexadecimal
+		String encoded = target.toString("ISO-8859-1");
+		assertEquals("a\r\n", encoded.substring(0, 3));
+		assertEquals("2710\r\n", encoded.substring(15, 21));
+	}
+
+	@Test
+	public void testFullBuffer() throws IOException {
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+
+		for (int i = 0; i < 8193; i++)
+			out.write(i);
+		out.finish();
+
+		ArrayList<Integer> chunks = new ArrayList<Integer>();
+		byte[] body = decode(target.toByteArray(), chunks);
+
+		assertEquals(Arrays.asList(8192, 1), chunks);
+		for (int i = 0; i < body.length; i++)
+			assertEquals((byte) i, body[i]);
+	}
+
+	@Test
+	public void testRandomWrites() throws IOException {
+		Random random = new Random(3);
+
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+		for (int i = 0; i < 500; i++) {
+			byte[] b = new byte[random.nextInt(random.nextBoolean() ? 100 : 20000)];
+			random.nextBytes(b);
+			int off = b.length == 0 ? 0 : random.nextInt(b.length);
+			out.write(b, off, b.length - off);
+			expected.write(b, off, b.length - off);
+			if (random.nextInt(10) == 0)
+				out.flush();
+		}
+
+		out.close();
+
+		assertArrayEquals(expected.toByteArray(), decode(target.toByteArray(), new ArrayList<Integer>()));
+	}
+
+	@Test
+	public void testFinish() throws IOException {
+		Target target = new Target();
+		HttpChunkedOutputStream out = new HttpChunkedOutputStream(target);
+
+		out.write('x');
+		out.finish();
+		out.finish();
+		out.close();
+
+		assertEquals("1\r\nx\r\n0\r\n\r\n", target.toString("ISO-8859-1"));
+		// the connection stays open
+		assertFalse(target.closed);
+
+		try {
+			out.write('y');
+			fail("A write after the last chunk was accepted");
+		} catch (IOException e) {
+		}
+
+		try {
+			out.write(new byte[10], 0, 10);
+			fail("A write after the last chunk was accepted");
+		} catch (IOException e) {
+		}
+	}
+
+}
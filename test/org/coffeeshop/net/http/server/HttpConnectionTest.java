@@ -0,0 +1,279 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import org.coffeeshop.io.BufferPool;
+import org.coffeeshop.net.http.server.resource.Proxy;
+import org.coffeeshop.net.http.server.resource.ProxyResource;
+import org.coffeeshop.settings.PropertiesSettings;
+import org.junit.Test;
+
+public class HttpConnectionTest {
+
+	private static final String BOUNDARY = "----boundary7MA4YWxk";
+
+	/**
+	 * A connection that reads the requests from a buffer and collects the
+	 * responses. Sending the head of a response can be made to fail.
+	 */
+	private static class TestConnection extends HttpConnection {
+
+		private InputStream in;
+
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		private boolean failing = false;
+
+		/**
+		 * the number of idle head buffers when the last head was sent
+		 */
+		private int available = -1;
+
+		public TestConnection(HttpServer server, byte[] requests) {
+			super(server);
+			in = new ByteArrayInputStream(requests);
+		}
+
+		@Override
+		public InetAddress getRemoteAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		protected Runnable continuation() {
+			return null;
+		}
+
+		@Override
+		public void gather(byte[] head, int headLength, byte[] body, int offset, int length)
+				throws IOException {
+			available = HttpHeadEncoder.getBuffers().getAvailable();
+			if (failing)
+				throw new IOException("Broken pipe");
+			super.gather(head, headLength, body, offset, length);
+		}
+
+	}
+
+	private static HttpServer server() throws IOException {
+		HttpServer server = new HttpServer(0, null, new PropertiesSettings());
+
+		new ProxyResource("small", server.getRoot(), new Proxy() {
+			public void execute(HttpRequest request, HttpResponse response) throws Exception {
+				response.sendContent("small".getBytes("ISO-8859-1"));
+			}
+		});
+
+		return server;
+	}
+
+	private static byte[] get(String location, int count) throws IOException {
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++)
+			requests.write(("GET " + location + " HTTP/1.1\r\nhost: localhost\r\n\r\n").getBytes("ISO-8859-1"));
+		return requests.toByteArray();
+	}
+
+	/**
+	 * Returns a request that uploads a file, the body may be cut short.
+	 */
+	private static byte[] upload(byte[] content, int cut) throws IOException {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+		body.write("Content-Disposition: form-data; name=\"f\"; filename=\"a.bin\"\r\n".getBytes("ISO-8859-1"));
+		body.write("Content-Type: application/octet-stream\r\n\r\n".getBytes("ISO-8859-1"));
+		body.write(content);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+
+		byte[] b = body.toByteArray();
+
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+		request.write(("POST /upload HTTP/1.1\r\nhost: localhost\r\ncontent-type: multipart/form-data; boundary="
+				+ BOUNDARY + "\r\ncontent-length: " + b.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+		request.write(b, 0, b.length - cut);
+
+		return request.toByteArray();
+	}
+
+	@Test
+	public void testHeadBufferReused() throws IOException {
+
+		BufferPool pool = HttpHeadEncoder.getBuffers();
+
+		TestConnection connection = new TestConnection(server(), get("/small", 2));
+
+		assertEquals(HttpConnection.KEEP_ALIVE, connection.serve());
+
+		int idle = pool.getAvailable();
+		assertTrue(idle > 0);
+
+		assertEquals(HttpConnection.KEEP_ALIVE, connection.serve());
+
+		// the second head was assembled in a pooled buffer and returned
+		assertEquals(idle - 1, connection.available);
+		assertEquals(idle, pool.getAvailable());
+
+		String responses = connection.out.toString("ISO-8859-1");
+		assertTrue(responses.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(responses.endsWith("\r\n\r\nsmall"));
+	}
+
+	@Test
+	public void testHeadBufferReleasedWhenSendFails() throws IOException {
+
+		BufferPool pool = HttpHeadEncoder.getBuffers();
+
+		HttpServer server = server();
+
+		new TestConnection(server, get("/small", 1)).serve();
+
+		int idle = pool.getAvailable();
+
+		// the small body is sent with the head when the response finishes
+		TestConnection connection = new TestConnection(server, get("/small", 1));
+		connection.failing = true;
+
+		try {
+			connection.serve();
+			fail("The failed send was not reported");
+		} catch (IOException e) {
+		}
+
+		assertEquals(idle - 1, connection.available);
+		assertEquals(idle, pool.getAvailable());
+	}
+
+	@Test
+	public void testHeadBufferReleasedWhenBodySendFails() throws IOException {
+
+		BufferPool pool = HttpHeadEncoder.getBuffers();
+
+		HttpServer server = server();
+
+		final IOException[] failure = new IOException[1];
+
+		// a body that does not fit the buffer of the head is sent with it
+		new ProxyResource("large", server.getRoot(), new Proxy() {
+			public void execute(HttpRequest request, HttpResponse response) throws Exception {
+				try {
+					response.sendContent(new byte[65536]);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+
+		new TestConnection(server, get("/small", 1)).serve();
+
+		int idle = pool.getAvailable();
+
+		TestConnection connection = new TestConnection(server, get("/large", 1));
+		connection.failing = true;
+
+		try {
+			connection.serve();
+		} catch (IOException e) {
+		}
+
+		assertNotNull(failure[0]);
+		assertEquals(idle, pool.getAvailable());
+	}
+
+	@Test
+	public void testUploadBufferReused() throws IOException {
+
+		HttpServer server = server();
+
+		final ArrayList<byte[]> buffers = new ArrayList<byte[]>();
+
+		new ProxyResource("upload", server.getRoot(), new Proxy() {
+			public void execute(HttpRequest request, HttpResponse response) throws Exception {
+				HttpFileUpload upload = request.getPostFile("f");
+				buffers.add(upload.data);
+				response.sendContent(String.valueOf(upload.getSize()).getBytes("ISO-8859-1"));
+			}
+		});
+
+		BufferPool pool = server.getUploadBuffers();
+
+		byte[] content = new byte[1000];
+
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		requests.write(upload(content, 0));
+		requests.write(upload(content, 0));
+
+		TestConnection connection = new TestConnection(server, requests.toByteArray());
+
+		assertEquals(HttpConnection.KEEP_ALIVE, connection.serve());
+
+		// returned when the response was finished
+		assertEquals(1, pool.getAvailable());
+
+		assertEquals(HttpConnection.KEEP_ALIVE, connection.serve());
+
+		assertEquals(2, buffers.size());
+		assertNotNull(buffers.get(0));
+		assertSame(buffers.get(0), buffers.get(1));
+		assertEquals(1, pool.getAvailable());
+	}
+
+	@Test
+	public void testUploadBufferReleasedWhenBodyTruncated() throws IOException {
+
+		HttpServer server = server();
+
+		final ArrayList<HttpFileUpload> uploads = new ArrayList<HttpFileUpload>();
+
+		new ProxyResource("upload", server.getRoot(), new Proxy() {
+			public void execute(HttpRequest request, HttpResponse response) throws Exception {
+				uploads.add(request.getPostFile("f"));
+				response.sendContent("done".getBytes("ISO-8859-1"));
+			}
+		});
+
+		BufferPool pool = server.getUploadBuffers();
+
+		// the client goes away in the middle of the file
+		TestConnection connection = new TestConnection(server, upload(new byte[1000], 500));
+
+		try {
+			connection.serve();
+		} catch (IOException e) {
+		}
+
+		assertEquals(1, uploads.size());
+		assertNull(uploads.get(0));
+		assertEquals(1, pool.getAvailable());
+	}
+
+}
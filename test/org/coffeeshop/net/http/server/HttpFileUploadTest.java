@@ -0,0 +1,115 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.coffeeshop.io.BufferPool;
+import org.junit.Test;
+
+public class HttpFileUploadTest {
+
+	private static final byte[] CONTENT = "uploaded content".getBytes();
+
+	private static File spool() throws IOException {
+		File file = File.createTempFile("upload", ".test");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(CONTENT);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				content.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return content.toByteArray();
+	}
+
+	@Test
+	public void releaseDeletesTemporaryFile() throws IOException {
+
+		File file = spool();
+
+		HttpFileUpload upload = new HttpFileUpload("a.txt", file, HttpFileUpload.RESULT_OK);
+
+		upload.release();
+
+		assertFalse(file.exists());
+		assertNull(upload.getTempFile());
+	}
+
+	@Test
+	public void movedFileIsKept() throws IOException {
+
+		File file = spool();
+		File target = File.createTempFile("moved", ".test");
+
+		try {
+			HttpFileUpload upload = new HttpFileUpload("a.txt", file, HttpFileUpload.RESULT_OK);
+
+			upload.moveTo(target);
+
+			assertFalse(file.exists());
+			assertEquals(target, upload.getTempFile());
+
+			upload.release();
+
+			assertTrue(target.exists());
+			assertArrayEquals(CONTENT, read(target));
+		} finally {
+			target.delete();
+		}
+	}
+
+	@Test
+	public void movedMemoryIsWrittenAndReleased() throws IOException {
+
+		BufferPool pool = new BufferPool(64, 4);
+		byte[] data = pool.acquire();
+		System.arraycopy(CONTENT, 0, data, 0, CONTENT.length);
+
+		File target = File.createTempFile("moved", ".test");
+
+		try {
+			HttpFileUpload upload = new HttpFileUpload("a.txt", data, pool, HttpFileUpload.RESULT_OK,
+					CONTENT.length, "text/plain");
+
+			upload.moveTo(target);
+
+			assertFalse(upload.isInMemory());
+
+			upload.release();
+
+			assertArrayEquals(CONTENT, read(target));
+			// returned to the pool by the move, not twice by the release
+			assertSame(data, pool.acquire());
+			assertNotSame(data, pool.acquire());
+		} finally {
+			target.delete();
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Test;
+
+public class HttpHeadEncoderTest {
+
+	private static String encoded(HttpHeadEncoder encoder) throws UnsupportedEncodingException {
+		return new String(encoder.getBuffer(), 0, encoder.getLength(), "ISO-8859-1");
+	}
+
+	@Test
+	public void testHead() throws UnsupportedEncodingException {
+		HttpHeadEncoder encoder = new HttpHeadEncoder();
+
+		encoder.status("HTTP/1.1 200 OK");
+		encoder.header("content-type:", "text/html");
+		encoder.header("x-custom:", "value");
+		encoder.name("set-cookie: ");
+		encoder.append("a=1");
+		encoder.end();
+		encoder.end();
+
+		assertEquals("HTTP/1.1 200 OK\r\ncontent-type:text/html\r\nx-custom:value\r\n"
+				+ "set-cookie: a=1\r\n\r\n", encoded(encoder));
+
+		encoder.release();
+	}
+
+	@Test
+	public void testStatusLines() throws UnsupportedEncodingException {
+		int[] codes = { HttpResponse.HTTP_OK, HttpResponse.HTTP_NOT_MODIFIED, HttpResponse.HTTP_NOT_FOUND,
+				HttpResponse.HTTP_SERVICE_UNAVAILABLE };
+
+		for (int code : codes) {
+			String line = "HTTP/1.1 " + code + " " + HttpResponse.getHttpResultText(code);
+
+			HttpHeadEncoder encoder = new HttpHeadEncoder();
+			encoder.status(line);
+			assertEquals(line + "\r\n", encoded(encoder));
+			encoder.release();
+		}
+
+		// a status line that is not known in advance
+		HttpHeadEncoder encoder = new HttpHeadEncoder();
+		encoder.status("HTTP/1.0 299 Custom");
+		assertEquals("HTTP/1.0 299 Custom\r\n", encoded(encoder));
+		encoder.release();
+	}
+
+	@Test
+	public void testSingleByteCharacters() {
+		HttpHeadEncoder encoder = new HttpHeadEncoder();
+
+		encoder.append("\u00e9");
+		encoder.append('\u00fc');
+		encoder.append(new byte[] { 1, 2, 3, 4 }, 1, 2);
+
+		assertEquals(4, encoder.getLength());
+		assertEquals((byte) 0xe9, encoder.getBuffer()[0]);
+		assertEquals((byte) 0xfc, encoder.getBuffer()[1]);
+		assertEquals(2, encoder.getBuffer()[2]);
+		assertEquals(3, encoder.getBuffer()[3]);
+
+		encoder.release();
+	}
+
+	@Test
+	public void testRemaining() {
+		HttpHeadEncoder encoder = new HttpHeadEncoder();
+
+		int capacity = encoder.remaining();
+		assertEquals(encoder.getBuffer().length, capacity);
+
+		encoder.header("content-length:", "100");
+
+		assertEquals(capacity - "content-length:100\r\n".length(), encoder.remaining());
+
+		encoder.release();
+	}
+
+	@Test
+	public void testLargeHead() throws UnsupportedEncodingException {
+		HttpHeadEncoder encoder = new HttpHeadEncoder();
+
+		int capacity = encoder.getBuffer().length;
+
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < capacity; i++)
+			value.append((char) ('a' + i % 26));
+
+		encoder.status("HTTP/1.1 200 OK");
+		encoder.header("location:", value.toString());
+		encoder.header("location:", value.toString());
+		encoder.end();
+
+		String expected = "HTTP/1.1 200 OK\r\nlocation:" + value + "\r\nlocation:" + value + "\r\n\r\n";
+
+		assertEquals(expected, encoded(encoder));
+		assertTrue(encoder.getBuffer().length > capacity);
+
+		encoder.release();
+		assertNull(encoder.getBuffer());
+
+		// the grown buffer is not returned to the pool
+		HttpHeadEncoder next = new HttpHeadEncoder();
+		assertEquals(capacity, next.getBuffer().length);
+		assertEquals(0, next.getLength());
+		next.release();
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HttpLatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotal());
+		assertEquals(0, histogram.getMaximum());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+
+		for (int i = 0; i < 16; i++)
+			histogram.record(i);
+
+		assertEquals(16, histogram.getCount());
+		assertEquals(120, histogram.getTotal());
+		assertEquals(15, histogram.getMaximum());
+		assertEquals(7.5, histogram.getMean(), 1e-9);
+
+		assertEquals(0, histogram.getPercentile(0));
+		assertEquals(7, histogram.getPercentile(50));
+		assertEquals(11, histogram.getPercentile(75));
+		assertEquals(15, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testRelativeError() {
+		Random random = new Random(1);
+
+		for (int i = 0; i < 10000; i++) {
+
+			long value = (long) Math.pow(2, random.nextDouble() * 34);
+
+			HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+			histogram.record(value);
+			// a larger value, so the percentile is not capped by the maximum
+			histogram.record(1L << 35);
+
+			long bound = histogram.getPercentile(50);
+
+			assertTrue(value + " reported as " + bound, bound >= value);
+			assertTrue(value + " reported as " + bound, bound <= value + value / 8);
+		}
+	}
+
+	@Test
+	public void testPercentileIsCappedByMaximum() {
+		HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+
+		histogram.record(1000);
+
+		assertEquals(1000, histogram.getPercentile(50));
+		assertEquals(1000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testPercentiles() {
+		HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 100);
+
+		long previous = 0;
+		for (double p = 0; p <= 100; p += 0.5) {
+			long value = histogram.getPercentile(p);
+			assertTrue(value >= previous);
+			previous = value;
+		}
+
+		long median = histogram.getPercentile(50);
+		assertTrue(median >= 50000 && median <= 50000 * 9 / 8);
+
+		long tail = histogram.getPercentile(99.9);
+		assertTrue(tail >= 99900 && tail <= 100000);
+
+		// out of range shares are clamped
+		assertEquals(histogram.getPercentile(100), histogram.getPercentile(150));
+		assertEquals(histogram.getPercentile(0), histogram.getPercentile(-5));
+		assertEquals(100000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testOutOfRangeValues() {
+		HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+
+		histogram.record(-5);
+
+		assertEquals(0, histogram.getTotal());
+		assertEquals(0, histogram.getPercentile(100));
+
+		histogram.record(1L << 40);
+
+		// the total and the maximum keep the value, the buckets end at
+		// about 19 hours
+		assertEquals(1L << 40, histogram.getMaximum());
+		assertEquals(1L << 40, histogram.getTotal());
+		assertEquals((1L << 36) - 1, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		final HttpLatencyHistogram histogram = new HttpLatencyHistogram();
+
+		Thread[] threads = new Thread[4];
+
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++)
+						histogram.record(i % 100 + offset);
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(40000, histogram.getCount());
+		assertEquals(4 * 10000 * 99 / 2 + 10000 * (0 + 1 + 2 + 3), histogram.getTotal());
+		assertEquals(102, histogram.getMaximum());
+		assertEquals(102, histogram.getPercentile(100));
+	}
+
+}
@@ -0,0 +1,221 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HttpMultipartParserTest {
+
+	private static final String BOUNDARY = "----boundary7MA4YWxk";
+
+	/**
+	 * Returns at most a given number of bytes per read, so that the
+	 * delimiters are split between reads at every possible offset.
+	 */
+	private static class ChunkedInputStream extends ByteArrayInputStream {
+
+		private int chunk;
+
+		public ChunkedInputStream(byte[] data, int chunk) {
+			super(data);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, chunk));
+		}
+
+	}
+
+	private static byte[] body(String preamble, String[] names, byte[][] contents, String epilogue)
+			throws IOException {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		body.write(preamble.getBytes("ISO-8859-1"));
+
+		for (int i = 0; i < names.length; i++) {
+			body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+			body.write(("Content-Disposition: form-data; name=\"" + names[i] + "\"\r\n")
+					.getBytes("ISO-8859-1"));
+			body.write("Content-Type: application/octet-stream\r\n\r\n".getBytes("ISO-8859-1"));
+			body.write(contents[i]);
+			body.write("\r\n".getBytes("ISO-8859-1"));
+		}
+
+		body.write(("--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+		body.write(epilogue.getBytes("ISO-8859-1"));
+
+		return body.toByteArray();
+	}
+
+	private static byte[] readPart(HttpMultipartParser parser, int length) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] b = new byte[length];
+		int n;
+		while ((n = parser.read(b, 0, b.length)) >= 0)
+			content.write(b, 0, n);
+		return content.toByteArray();
+	}
+
+	private static void assertParts(InputStream in, String[] names, byte[][] contents, int readLength)
+			throws IOException {
+
+		HttpMultipartParser parser = new HttpMultipartParser(in, BOUNDARY);
+
+		for (int i = 0; i < names.length; i++) {
+			assertTrue(parser.next());
+			assertEquals(names[i],
+					HttpMultipartParser.getParameter(parser.getHeader("content-disposition"), "name"));
+			assertArrayEquals(contents[i], readPart(parser, readLength));
+		}
+
+		assertFalse(parser.next());
+		assertFalse(parser.next());
+	}
+
+	@Test
+	public void testParts() throws IOException {
+		String[] names = { "a", "b", "empty" };
+		byte[][] contents = { "first".getBytes("UTF-8"), "second\r\nline".getBytes("UTF-8"), new byte[0] };
+
+		byte[] body = body("", names, contents, "");
+
+		HttpMultipartParser parser = new HttpMultipartParser(new ByteArrayInputStream(body), BOUNDARY);
+
+		assertTrue(parser.next());
+		assertEquals("form-data; name=\"a\"", parser.getHeader("Content-Disposition"));
+		assertEquals("application/octet-stream", parser.getHeader("content-type"));
+		assertNull(parser.getHeader("content-length"));
+
+		assertParts(new ByteArrayInputStream(body), names, contents, 8192);
+	}
+
+	@Test
+	public void testBoundarySplitAcrossReads() throws IOException {
+		String[] names = { "a", "b" };
+		byte[][] contents = { "some content".getBytes("UTF-8"), "x".getBytes("UTF-8") };
+
+		byte[] body = body("", names, contents, "");
+
+		// every split of the delimiters, with reads of the content that are
+		// shorter and longer than the delimiter
+		for (int chunk = 1; chunk <= BOUNDARY.length() + 8; chunk++) {
+			assertParts(new ChunkedInputStream(body, chunk), names, contents, 3);
+			assertParts(new ChunkedInputStream(body, chunk), names, contents, 1024);
+		}
+	}
+
+	@Test
+	public void testPartLargerThanBuffer() throws IOException {
+		Random random = new Random(42);
+
+		byte[] large = new byte[200000];
+		random.nextBytes(large);
+
+		String[] names = { "large", "small" };
+		byte[][] contents = { large, "tail".getBytes("UTF-8") };
+
+		byte[] body = body("", names, contents, "");
+
+		for (int chunk : new int[] { 1000, 4093, 65535, 65536, 70000 })
+			assertParts(new ChunkedInputStream(body, chunk), names, contents, 8191);
+	}
+
+	@Test
+	public void testContentResemblingTheDelimiter() throws IOException {
+		String[] names = { "a", "b" };
+		byte[][] contents = { ("\r\n--" + BOUNDARY.substring(0, 10) + "\r\n--" + BOUNDARY.substring(1)
+				+ "\r\n-" + BOUNDARY).getBytes("ISO-8859-1"),
+				("--" + BOUNDARY + " without a line break\r\n").getBytes("ISO-8859-1") };
+
+		byte[] body = body("", names, contents, "");
+
+		for (int chunk = 1; chunk <= 64; chunk++)
+			assertParts(new ChunkedInputStream(body, chunk), names, contents, 5);
+	}
+
+	@Test
+	public void testPreambleAndEpilogue() throws IOException {
+		String[] names = { "a" };
+		byte[][] contents = { "value".getBytes("UTF-8") };
+
+		byte[] body = body("This is a preamble.\r\n", names, contents, "This is an epilogue.\r\n");
+
+		assertParts(new ChunkedInputStream(body, 7), names, contents, 100);
+	}
+
+	@Test
+	public void testUnreadPartsAreSkipped() throws IOException {
+		byte[] large = new byte[100000];
+		new Random(7).nextBytes(large);
+
+		String[] names = { "a", "b", "c" };
+		byte[][] contents = { large, "skipped".getBytes("UTF-8"), "read".getBytes("UTF-8") };
+
+		byte[] body = body("", names, contents, "");
+
+		HttpMultipartParser parser = new HttpMultipartParser(new ChunkedInputStream(body, 3000), BOUNDARY);
+
+		assertTrue(parser.next());
+		byte[] b = new byte[10];
+		assertEquals(10, parser.read(b, 0, b.length));
+
+		assertTrue(parser.next());
+		assertTrue(parser.next());
+		assertEquals("c", HttpMultipartParser.getParameter(parser.getHeader("content-disposition"), "name"));
+		assertArrayEquals(contents[2], readPart(parser, 100));
+		assertFalse(parser.next());
+	}
+
+	@Test
+	public void testTruncatedBody() throws IOException {
+		byte[] body = body("", new String[] { "a" }, new byte[][] { "value".getBytes("UTF-8") }, "");
+
+		ArrayList<byte[]> truncated = new ArrayList<byte[]>();
+		// cut in the headers, in the content and in the closing delimiter
+		for (int length : new int[] { 30, 100, body.length - 10 }) {
+			byte[] b = new byte[length];
+			System.arraycopy(body, 0, b, 0, length);
+			truncated.add(b);
+		}
+
+		for (byte[] b : truncated) {
+			HttpMultipartParser parser = new HttpMultipartParser(new ByteArrayInputStream(b), BOUNDARY);
+			try {
+				while (parser.next())
+					readPart(parser, 100);
+				fail("A truncated body of " + b.length + " bytes was accepted");
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testGetParameter() {
+		assertEquals("abc", HttpMultipartParser.getBoundary("multipart/form-data; boundary=abc"));
+		assertEquals("a b", HttpMultipartParser.getBoundary("multipart/form-data; charset=utf-8; BOUNDARY=\"a b\""));
+		assertEquals("abc", HttpMultipartParser.getBoundary("multipart/form-data;boundary=abc ; x=y"));
+		assertNull(HttpMultipartParser.getBoundary("multipart/form-data"));
+		assertNull(HttpMultipartParser.getBoundary(null));
+
+		String disposition = "form-data; filename=\"f.txt\"; name=\"n\"";
+		assertEquals("n", HttpMultipartParser.getParameter(disposition, "name"));
+		assertEquals("f.txt", HttpMultipartParser.getParameter(disposition, "filename"));
+		assertNull(HttpMultipartParser.getParameter(disposition, "size"));
+	}
+
+}
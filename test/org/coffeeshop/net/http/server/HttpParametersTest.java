@@ -0,0 +1,153 @@
+package org.coffeeshop.net.http.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HttpParametersTest {
+
+	@Test
+	public void testPlainValues() {
+		HttpParameters parameters = new HttpParameters("a=1&b=two&c=", '&');
+
+		assertEquals("1", parameters.get("a", null));
+		assertEquals("two", parameters.get("b", null));
+		assertEquals("", parameters.get("c", null));
+		assertEquals("-", parameters.get("d", "-"));
+	}
+
+	@Test
+	public void testDecoding() {
+		HttpParameters parameters = new HttpParameters("q=caf%C3%A9+au+lait&r=%41%62c&s=caf\u00e9", '&');
+
+		assertEquals("caf\u00e9 au lait", parameters.get("q", null));
+		assertEquals("Abc", parameters.get("r", null));
+		// characters that the client did not encode are kept
+		assertEquals("caf\u00e9", parameters.get("s", null));
+	}
+
+	@Test
+	public void testDecodedOnce() {
+		HttpParameters parameters = new HttpParameters("a=x%20y&b=plain", '&');
+
+		String first = parameters.get("a", null);
+		assertSame(first, parameters.get("a", null));
+		assertSame(first, parameters.get("a", 0, null));
+		assertEquals("plain", parameters.get("b", null));
+	}
+
+	@Test
+	public void testMalformedEscapes() {
+		HttpParameters parameters = new HttpParameters("a=%zz&b=%4&c=100%&d=%%41&e=%G1", '&');
+
+		assertEquals("%zz", parameters.get("a", null));
+		assertEquals("%4", parameters.get("b", null));
+		assertEquals("100%", parameters.get("c", null));
+		assertEquals("%A", parameters.get("d", null));
+		assertEquals("%G1", parameters.get("e", null));
+	}
+
+	@Test
+	public void testMultipleValues() {
+		HttpParameters parameters = new HttpParameters("a=1&b=2&a=3&a=%34", '&');
+
+		// the last value wins
+		assertEquals("4", parameters.get("a", null));
+		assertEquals("1", parameters.get("a", 0, null));
+		assertEquals("3", parameters.get("a", 1, null));
+		assertEquals("4", parameters.get("a", 2, null));
+		assertEquals("-", parameters.get("a", 3, "-"));
+		assertEquals(3, parameters.getCount("a"));
+		assertEquals(1, parameters.getCount("b"));
+		assertArrayEquals(new String[] { "1", "3", "4" }, parameters.getAll("a"));
+		assertArrayEquals(new String[0], parameters.getAll("x"));
+	}
+
+	@Test
+	public void testNames() {
+		HttpParameters parameters = new HttpParameters("b=1&flag&=x&&a=2&b=3", '&');
+
+		Set<String> names = parameters.getNames();
+		assertEquals(Arrays.asList("b", "flag", "a"), Arrays.asList(names.toArray()));
+
+		assertTrue(parameters.contains("flag"));
+		assertEquals("", parameters.get("flag", null));
+		assertFalse(parameters.contains(""));
+	}
+
+	@Test
+	public void testNamesAreCaseSensitive() {
+		HttpParameters parameters = new HttpParameters("Name=1&name=2", '&');
+
+		assertEquals("1", parameters.get("Name", null));
+		assertEquals("2", parameters.get("name", null));
+		assertEquals(0, parameters.getCount("NAME"));
+	}
+
+	@Test
+	public void testCookies() {
+		HttpParameters parameters = new HttpParameters("a=1; b=x%3Dy;c=3", ';');
+
+		assertEquals("1", parameters.get("a", null));
+		assertEquals("x=y", parameters.get("b", null));
+		assertEquals("3", parameters.get("c", null));
+		assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(parameters.getNames().toArray()));
+	}
+
+	@Test
+	public void testSetReplacesAllValues() {
+		HttpParameters parameters = new HttpParameters("a=1&a=2", '&');
+
+		parameters.set("a", "x");
+		parameters.set("n", "y");
+
+		assertEquals("x", parameters.get("a", null));
+		assertEquals("x", parameters.get("a", 0, null));
+		assertEquals("-", parameters.get("a", 1, "-"));
+		assertEquals(1, parameters.getCount("a"));
+		assertArrayEquals(new String[] { "x" }, parameters.getAll("a"));
+		assertTrue(parameters.getNames().contains("n"));
+		// the raw string is not changed
+		assertEquals("a=1&a=2", parameters.getRaw());
+	}
+
+	@Test
+	public void testReset() {
+		HttpParameters parameters = new HttpParameters("a=%41", '&');
+
+		assertEquals("A", parameters.get("a", null));
+		parameters.set("b", "x");
+
+		parameters.reset("a=%42&c=%43");
+
+		assertEquals("B", parameters.get("a", null));
+		assertEquals("C", parameters.get("c", null));
+		assertFalse(parameters.contains("b"));
+
+		parameters.reset(null);
+
+		assertEquals("", parameters.getRaw());
+		assertTrue(parameters.getNames().isEmpty());
+	}
+
+	@Test
+	public void testManyParameters() {
+		StringBuilder raw = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			raw.append("p").append(i).append("=v%20").append(i).append('&');
+
+		HttpParameters parameters = new HttpParameters(raw.toString(), '&');
+
+		assertEquals(100, parameters.getNames().size());
+		assertEquals("v 0", parameters.get("p0", null));
+		assertEquals("v 99", parameters.get("p99", null));
+	}
+
+}
@@ -0,0 +1,168 @@
+package org.coffeeshop.net.http.server.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.coffeeshop.net.http.server.HttpRequest;
+import org.coffeeshop.net.http.server.HttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RouteIndexTest {
+
+	private static class Leaf extends Resource {
+
+		public Leaf(String name, Folder parent) {
+			super(name, parent);
+		}
+
+		@Override
+		public void execute(HttpRequest request, HttpResponse response) {
+		}
+
+	}
+
+	private static class Virtual extends VirtualResource {
+
+		public Virtual(String name, Folder parent) {
+			super(name, parent);
+		}
+
+		@Override
+		public void execute(HttpRequest request, HttpResponse response) {
+		}
+
+	}
+
+	private Folder root, a, b, users, user;
+
+	private Resource leaf, virtual, me, profile;
+
+	@Before
+	public void setUp() {
+		root = new Folder("", null);
+		a = new Folder("a", root);
+		b = new Folder("b", a);
+		leaf = new Leaf("leaf", b);
+		virtual = new Virtual("v", root);
+		users = new Folder("users", root);
+		me = new Leaf("me", users);
+		user = new Folder("{id}", users);
+		profile = new Leaf("profile", user);
+	}
+
+	@Test
+	public void testNestedFolders() {
+		RouteIndex index = RouteIndex.compile(root);
+
+		assertSame(root, index.find("", null));
+		assertSame(a, index.find("a", null));
+		assertSame(a, index.find("a/", null));
+		assertSame(b, index.find("a/b", null));
+		assertSame(leaf, index.find("a/b/leaf", null));
+	}
+
+	@Test
+	public void testMissing() {
+		RouteIndex index = RouteIndex.compile(root);
+
+		assertNull(index.find("x", null));
+		assertNull(index.find("a/x", null));
+		assertNull(index.find("a/b/lea", null));
+		assertNull(index.find("a/b/leafs", null));
+		// a resource that is not a folder has no children
+		assertNull(index.find("a/b/leaf/x", null));
+	}
+
+	@Test
+	public void testVirtualResourceHandlesTheSubtree() {
+		RouteIndex index = RouteIndex.compile(root);
+
+		assertSame(virtual, index.find("v", null));
+		assertSame(virtual, index.find("v/x", null));
+		assertSame(virtual, index.find("v/x/y.html", null));
+	}
+
+	@Test
+	public void testParameters() {
+		RouteIndex index = RouteIndex.compile(root);
+
+		HashMap<String, String> parameters = new HashMap<String, String>();
+
+		assertSame(profile, index.find("users/42/profile", parameters));
+		assertEquals("42", parameters.get("id"));
+
+		parameters.clear();
+
+		assertSame(user, index.find("users/42", parameters));
+		assertEquals("42", parameters.get("id"));
+
+		// the parameter may be omitted
+		assertSame(profile, index.find("users/7/profile", null));
+	}
+
+	@Test
+	public void testNamedChildTakesPrecedence() {
+		RouteIndex index = RouteIndex.compile(root);
+
+		HashMap<String, String> parameters = new HashMap<String, String>();
+
+		assertSame(me, index.find("users/me", parameters));
+		assertTrue(parameters.isEmpty());
+
+		// the named child does not match further segments, the parameter does
+		assertSame(profile, index.find("users/me/profile", parameters));
+		assertEquals("me", parameters.get("id"));
+	}
+
+	@Test
+	public void testFailedParameterMatch() {
+		RouteIndex index = RouteIndex.compile(root);
+
+		HashMap<String, String> parameters = new HashMap<String, String>();
+
+		assertNull(index.find("users/42/unknown", parameters));
+		assertNull(index.find("users//profile", parameters));
+		assertFalse(parameters.containsKey("id"));
+	}
+
+	@Test
+	public void testManyChildren() {
+		Folder folder = new Folder("many", root);
+
+		Resource[] children = new Resource[100];
+		for (int i = 0; i < children.length; i++)
+			children[i] = new Leaf("child" + i, folder);
+
+		// the names have the same hash code
+		Resource aa = new Leaf("Aa", folder);
+		Resource bb = new Leaf("BB", folder);
+
+		RouteIndex index = RouteIndex.compile(root);
+
+		for (int i = 0; i < children.length; i++)
+			assertSame(children[i], index.find("many/child" + i, null));
+
+		assertSame(aa, index.find("many/Aa", null));
+		assertSame(bb, index.find("many/BB", null));
+		assertNull(index.find("many/child100", null));
+	}
+
+	@Test
+	public void testFolderRecompilesAfterChange() {
+		assertNull(root.route("a/b/new", null));
+
+		Resource added = new Leaf("new", b);
+
+		// adding to a subfolder invalidates the index of the root
+		assertSame(added, root.route("a/b/new", null));
+		assertSame(added, a.route("b/new", null));
+		assertSame(leaf, root.get("a/b/leaf"));
+	}
+
+}